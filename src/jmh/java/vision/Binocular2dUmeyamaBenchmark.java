@@ -0,0 +1,123 @@
+package vision;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-solve latency of the binocular Umeyama estimator: triangulating with
+ * Mats (makeBMat2d, makeXMat2d) and then fitting, vs the Mat-free solve, vs
+ * the whole getPose, and the cost of finding the inliers first
+ * (RansacRigid2d).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Binocular2dUmeyamaBenchmark {
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    // a typical mid-field view
+    final double pan = Math.PI / 16;
+    final double xPos = -1.0;
+    final double zPos = -4.0;
+
+    Binocular2dUmeyamaPoseEstimator estimator;
+    MatOfPoint3f targetGeometryMeters;
+    MatOfPoint2f[] imagePoints;
+    float[] left;
+    float[] right;
+    float[] target;
+    int count;
+    double[] rt = new double[6];
+    double[] from;
+    double[] to;
+    boolean[] inliers;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        estimator = new Binocular2dUmeyamaPoseEstimator(false);
+        targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        Mat[] kMat = estimator.getIntrinsicMatrices();
+        double[] b = estimator.getXOffsets();
+        imagePoints = new MatOfPoint2f[kMat.length];
+        for (int cameraIdx = 0; cameraIdx < kMat.length; ++cameraIdx) {
+            Mat worldToCameraCenterHomogeneous = VisionUtil.makeWorldToCameraHomogeneous(pan, xPos, 0, zPos);
+            Mat worldToEye = VisionUtil.translateX(worldToCameraCenterHomogeneous, b[cameraIdx]);
+            imagePoints[cameraIdx] = VisionUtil.imagePoints(kMat[cameraIdx],
+                    estimator.getDistortionMatrices()[cameraIdx], targetGeometryMeters, worldToEye);
+        }
+        count = (int) targetGeometryMeters.total();
+        left = new float[2 * count];
+        right = new float[2 * count];
+        target = new float[3 * count];
+        imagePoints[0].get(0, 0, left);
+        imagePoints[1].get(0, 0, right);
+        targetGeometryMeters.get(0, 0, target);
+        inliers = new boolean[count];
+        from = new double[2 * count];
+        to = new double[2 * count];
+    }
+
+    /** what getPose did before the Mat-free solve */
+    @Benchmark
+    public double[] matTriangulation() {
+        Mat bMat = VisionUtil.makeBMat2d(imagePoints[0], imagePoints[1], estimator.b, estimator.f, estimator.cx);
+        Mat XMat = VisionUtil.makeXMat2d(targetGeometryMeters);
+        double[] XData = new double[3 * count];
+        XMat.get(0, 0, XData);
+        double[] bData = new double[3 * count];
+        bMat.get(0, 0, bData);
+        double[] from = new double[2 * count];
+        double[] to = new double[2 * count];
+        for (int col = 0; col < count; ++col) {
+            from[2 * col] = XData[col];
+            from[2 * col + 1] = XData[count + col];
+            to[2 * col] = bData[col];
+            to[2 * col + 1] = bData[count + col];
+        }
+        MyCalib3d.estimateRigid2D(from, to, null, count, Double.NaN, rt);
+        return rt;
+    }
+
+    @Benchmark
+    public double[] matFree() {
+        Binocular2dUmeyamaPoseEstimator.solve(left, right, target, count, estimator.b, estimator.f, estimator.cx,
+                false, 0, from, to, rt);
+        return rt;
+    }
+
+    /** matFree after finding the inliers; they all are, so no compacting */
+    @Benchmark
+    public double[] robust() {
+        int n = RansacRigid2d.findInliers(left, right, target, count, estimator.b, estimator.f, estimator.cx,
+                false, 0, RansacRigid2d.THRESHOLD_PIXELS, inliers);
+        Binocular2dUmeyamaPoseEstimator.solve(left, right, target, n, estimator.b, estimator.f, estimator.cx,
+                false, 0, from, to, rt);
+        return rt;
+    }
+
+    /** matFree plus getting the points out of the Mats and making the result */
+    @Benchmark
+    public Mat getPose() {
+        return estimator.getPose(pan, targetGeometryMeters, imagePoints);
+    }
+}
@@ -0,0 +1,93 @@
+package vision;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The OpenCV Umeyama port vs the primitive one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MyCalib3dBenchmark {
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Param({ "4", "40" })
+    public int count;
+
+    double[] from;
+    double[] to;
+    double[] from2d;
+    double[] to2d;
+    double[] transform = new double[12];
+    Mat fromMat;
+    Mat toMat;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random rand = new Random(42);
+        from = new double[3 * count];
+        to = new double[3 * count];
+        from2d = new double[2 * count];
+        to2d = new double[2 * count];
+        double c = Math.cos(0.3);
+        double s = Math.sin(0.3);
+        for (int i = 0; i < count; ++i) {
+            double x = rand.nextGaussian();
+            double y = rand.nextGaussian();
+            double z = rand.nextGaussian();
+            from[3 * i] = x;
+            from[3 * i + 1] = y;
+            from[3 * i + 2] = z;
+            to[3 * i] = c * x - s * z + 1.0;
+            to[3 * i + 1] = y + 0.5;
+            to[3 * i + 2] = s * x + c * z - 4.0;
+            from2d[2 * i] = x;
+            from2d[2 * i + 1] = z;
+            to2d[2 * i] = to[3 * i];
+            to2d[2 * i + 1] = to[3 * i + 2];
+        }
+        fromMat = new Mat(count, 3, CvType.CV_64F);
+        fromMat.put(0, 0, from);
+        toMat = new Mat(count, 3, CvType.CV_64F);
+        toMat.put(0, 0, to);
+    }
+
+    @Benchmark
+    public Mat openCV3d() {
+        return MyCalib3d.estimateAffine3D(fromMat, toMat, null, true);
+    }
+
+    @Benchmark
+    public double[] primitive3d() {
+        MyCalib3d.estimateAffine3D(from, to, count, false, true, transform);
+        return transform;
+    }
+
+    @Benchmark
+    public double[] primitive2d() {
+        MyCalib3d.estimateRigid2D(from2d, to2d, null, count, Double.NaN, transform);
+        return transform;
+    }
+}
@@ -0,0 +1,147 @@
+package vision;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Size;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of each {@link PoseEstimator}, both from ideal points and from
+ * images. The images are rendered (and noised) once in setup, so only the
+ * estimator is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PoseEstimatorBenchmark {
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Param({
+            "ConstantPoseEstimator",
+            "MonocularPoseEstimator",
+            "MonocularPoseEstimatorIMU",
+            "MonocularPoseEstimatorWarm",
+            "MonocularPoseEstimatorBlob",
+            "Binocular2dSVDPoseEstimator",
+            "Binocular2dSVDPoseEstimatorIMU",
+            "Binocular2dUmeyamaPoseEstimator",
+            "Binocular2dUmeyamaPoseEstimatorIMU",
+            "BinocularConstrainedPoseEstimator",
+            "BinocularConstrainedPoseEstimatorIMU",
+            "NCameraPoseEstimatorQuadIMU" })
+    public String estimatorName;
+
+    // a typical mid-field view
+    final double pan = Math.PI / 16;
+    final double xPos = -1.0;
+    final double yPos = 0.0;
+    final double zPos = -4.0;
+    final int targetBrightness = 230;
+
+    PoseEstimator estimator;
+    MatOfPoint3f targetGeometryMeters;
+    MatOfPoint2f[] imagePoints;
+    Mat[] images;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        estimator = PoseEstimatorBenchmark.make(estimatorName);
+        targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        Mat[] kMat = estimator.getIntrinsicMatrices();
+        MatOfDouble[] dMat = estimator.getDistortionMatrices();
+        Mat[] extrinsics = estimator.getExtrinsics();
+        Size[] sizes = estimator.getSizes();
+        imagePoints = new MatOfPoint2f[kMat.length];
+        images = new Mat[kMat.length];
+        Mat worldToCameraCenterHomogeneous = VisionUtil.makeWorldToCameraHomogeneous(pan, xPos, yPos, zPos);
+        for (int cameraIdx = 0; cameraIdx < kMat.length; ++cameraIdx) {
+            Mat worldToEye = VisionUtil.worldToCamera(worldToCameraCenterHomogeneous, extrinsics[cameraIdx]);
+            Mat cameraView;
+            if (VisionUtil.inFront(targetGeometryMeters, worldToEye)) {
+                imagePoints[cameraIdx] = VisionUtil.imagePoints(kMat[cameraIdx], dMat[cameraIdx],
+                        targetGeometryMeters, worldToEye);
+                cameraView = VisionUtil.renderImage(targetBrightness, sizes[cameraIdx], targetGeometryMeters,
+                        imagePoints[cameraIdx]);
+            } else {
+                // e.g. the back of a quad rig, which sees only noise
+                cameraView = Mat.zeros(sizes[cameraIdx], CvType.CV_8UC1);
+            }
+            VisionUtil.addSaltAndPepper(cameraView);
+            VisionUtil.addGaussianNoise(cameraView);
+            images[cameraIdx] = cameraView;
+        }
+        // make sure the image path actually does the whole job.
+        if (estimator.getPose(0, false, pan, targetGeometryMeters, images) == null)
+            throw new IllegalStateException("fixture yields no pose for " + estimatorName);
+    }
+
+    @Benchmark
+    public Mat points() {
+        return estimator.getPose(pan, targetGeometryMeters, imagePoints);
+    }
+
+    @Benchmark
+    public Mat image() {
+        return estimator.getPose(0, false, pan, targetGeometryMeters, images);
+    }
+
+    static PoseEstimator make(String name) {
+        switch (name) {
+            case "ConstantPoseEstimator":
+                return new ConstantPoseEstimator();
+            case "MonocularPoseEstimator":
+                return new MonocularPoseEstimator(false);
+            case "MonocularPoseEstimatorIMU":
+                return new MonocularPoseEstimator(true);
+            case "MonocularPoseEstimatorWarm": {
+                // every frame is the same, so this is the best case.
+                MonocularPoseEstimator e = new MonocularPoseEstimator(false);
+                e.setWarmStart(true);
+                return e;
+            }
+            case "MonocularPoseEstimatorBlob": {
+                MonocularPoseEstimator e = new MonocularPoseEstimator(false);
+                e.setBlobDetector(true);
+                return e;
+            }
+            case "Binocular2dSVDPoseEstimator":
+                return new Binocular2dSVDPoseEstimator(false);
+            case "Binocular2dSVDPoseEstimatorIMU":
+                return new Binocular2dSVDPoseEstimator(true);
+            case "Binocular2dUmeyamaPoseEstimator":
+                return new Binocular2dUmeyamaPoseEstimator(false);
+            case "Binocular2dUmeyamaPoseEstimatorIMU":
+                return new Binocular2dUmeyamaPoseEstimator(true);
+            case "BinocularConstrainedPoseEstimator":
+                return new BinocularConstrainedPoseEstimator(false);
+            case "BinocularConstrainedPoseEstimatorIMU":
+                return new BinocularConstrainedPoseEstimator(true);
+            case "NCameraPoseEstimatorQuadIMU":
+                return NCameraPoseEstimator.quad(0.3, true);
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package vision;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Corners from an already-preprocessed frame: threshold + findContours +
+ * approxPolyDP vs {@link BlobDetector}, near and far.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TargetDetectorBenchmark {
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    // camera z, meters
+    @Param({ "-2", "-5", "-9" })
+    public double zPos;
+
+    final double pan = Math.PI / 16;
+    final double xPos = -0.5;
+    final int targetBrightness = 230;
+
+    Mat image;
+    MatPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Size size = new Size(1280, 800);
+        Mat kMat = VisionUtil.makeIntrinsicMatrix(985, size);
+        MatOfDouble dMat = new MatOfDouble(Mat.zeros(4, 1, CvType.CV_64F));
+        MatOfPoint3f targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        Mat worldToCamera = VisionUtil.makeWorldToCameraHomogeneous(pan, xPos, 0, zPos);
+        MatOfPoint2f pts = VisionUtil.imagePoints(kMat, dMat, targetGeometryMeters, worldToCamera);
+        image = VisionUtil.rasterizeImage(targetBrightness, size, pts, new Mat());
+        // what BasePoseEstimator does before finding the corners
+        VisionUtil.addSaltAndPepper(image);
+        VisionUtil.addGaussianNoise(image);
+        VisionUtil.removeSaltAndPepperInPlace(image);
+        Imgproc.GaussianBlur(image, image, new Size(3, 3), 0);
+        pool = new MatPool();
+        if (contours() == null || blobs() == null)
+            throw new IllegalStateException("fixture yields no corners at z " + zPos);
+    }
+
+    @Benchmark
+    public MatOfPoint2f contours() {
+        return VisionUtil.findTargetCornersInImage(0, false, image, 200, pool, StageTimings.NONE, false);
+    }
+
+    @Benchmark
+    public MatOfPoint2f blobs() {
+        return BlobDetector.findTargetCorners(image, 200, StageTimings.NONE, false);
+    }
+
+    @Benchmark
+    public MatOfPoint2f blobsRefined() {
+        return BlobDetector.findTargetCorners(image, 200, StageTimings.NONE, true);
+    }
+}
@@ -0,0 +1,68 @@
+// Copyright (c) FIRST and other WPILib contributors.
+// Open Source Software; you can modify and/or share it under the terms of
+// the WPILib BSD license file in the root directory of this project.
+
+package frc.robot;
+
+import edu.wpi.first.cameraserver.CameraServer;
+import edu.wpi.first.cscore.CvSink;
+import edu.wpi.first.cscore.UsbCamera;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * USB cameras via CameraServer, one per estimator camera. The cameras aren't synchronized, so the
+ * frame timestamp is the earliest of the per-camera timestamps.
+ */
+public class CameraFrameSource implements FrameSource {
+  private final CvSink[] m_sinks;
+  // color frames from the sinks, reused.
+  private final Mat[] m_color;
+  private String m_error = "";
+
+  /**
+   * @param sizes resolution of each camera, e.g. PoseEstimator.getSizes()
+   * @param fps frame rate to ask the cameras for
+   */
+  public CameraFrameSource(Size[] sizes, int fps) {
+    m_sinks = new CvSink[sizes.length];
+    m_color = new Mat[sizes.length];
+    for (int i = 0; i < sizes.length; ++i) {
+      UsbCamera camera = CameraServer.startAutomaticCapture(i);
+      camera.setResolution((int) sizes[i].width, (int) sizes[i].height);
+      camera.setFPS(fps);
+      m_sinks[i] = CameraServer.getVideo(camera);
+      m_color[i] = new Mat();
+    }
+  }
+
+  @Override
+  public int getCameras() {
+    return m_sinks.length;
+  }
+
+  @Override
+  public long grabFrame(Mat[] frames) {
+    long earliest = Long.MAX_VALUE;
+    for (int i = 0; i < m_sinks.length; ++i) {
+      long time = m_sinks[i].grabFrame(m_color[i]);
+      if (time == 0) {
+        m_error = m_sinks[i].getError();
+        return 0;
+      }
+      earliest = Math.min(earliest, time);
+      if (m_color[i].channels() == 1) {
+        m_color[i].copyTo(frames[i]);
+      } else {
+        Imgproc.cvtColor(m_color[i], frames[i], Imgproc.COLOR_BGR2GRAY);
+      }
+    }
+    return earliest;
+  }
+
+  @Override
+  public String getError() {
+    return m_error;
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright (c) FIRST and other WPILib contributors.
+// Open Source Software; you can modify and/or share it under the terms of
+// the WPILib BSD license file in the root directory of this project.
+
+package frc.robot;
+
+import edu.wpi.first.wpilibj.RobotController;
+import java.io.File;
+import java.util.Arrays;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Frames from image files, for desktop simulation. The files in the directory are taken in name
+ * order, in groups of one per camera, e.g. "frame-0000-0.png", "frame-0000-1.png",
+ * "frame-0001-0.png", ..., and replayed in a loop at a fixed frame rate.
+ */
+public class FileFrameSource implements FrameSource {
+  private final File[] m_files;
+  private final int m_cameras;
+  private final long m_periodMicros;
+  private int m_next = 0;
+  private long m_deadline = 0;
+  private String m_error = "";
+
+  /**
+   * @param directory where the images are
+   * @param cameras images per frame
+   * @param fps replay rate
+   */
+  public FileFrameSource(File directory, int cameras, double fps) {
+    File[] files =
+        directory.listFiles(
+            (dir, name) -> {
+              String lower = name.toLowerCase();
+              return lower.endsWith(".png") || lower.endsWith(".jpg");
+            });
+    if (files == null) {
+      files = new File[0];
+    }
+    Arrays.sort(files);
+    // drop a trailing partial frame
+    m_files = Arrays.copyOf(files, files.length - files.length % cameras);
+    m_cameras = cameras;
+    m_periodMicros = (long) (1e6 / fps);
+    if (m_files.length == 0) {
+      m_error = "no images in " + directory;
+    }
+  }
+
+  @Override
+  public int getCameras() {
+    return m_cameras;
+  }
+
+  @Override
+  public long grabFrame(Mat[] frames) {
+    if (m_files.length == 0) {
+      return 0;
+    }
+    // pace to the frame rate, like a camera would
+    long now = RobotController.getFPGATime();
+    if (m_deadline == 0) {
+      m_deadline = now;
+    }
+    long wait = m_deadline - now;
+    if (wait > 0) {
+      try {
+        Thread.sleep(wait / 1000, (int) (wait % 1000) * 1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        m_error = "interrupted";
+        return 0;
+      }
+    }
+    if (wait < -m_periodMicros) {
+      // fell behind, e.g. in the debugger; don't burst to catch up.
+      m_deadline = now;
+    }
+    m_deadline += m_periodMicros;
+    long captureTime = RobotController.getFPGATime();
+    for (int i = 0; i < m_cameras; ++i) {
+      File file = m_files[m_next];
+      m_next = (m_next + 1) % m_files.length;
+      Mat image = Imgcodecs.imread(file.getPath(), Imgcodecs.IMREAD_GRAYSCALE);
+      if (image.empty()) {
+        m_error = "can't read " + file;
+        return 0;
+      }
+      image.copyTo(frames[i]);
+      image.release();
+    }
+    return captureTime;
+  }
+
+  @Override
+  public String getError() {
+    return m_error;
+  }
+}
@@ -0,0 +1,26 @@
+// Copyright (c) FIRST and other WPILib contributors.
+// Open Source Software; you can modify and/or share it under the terms of
+// the WPILib BSD license file in the root directory of this project.
+
+package frc.robot;
+
+import org.opencv.core.Mat;
+
+/** Where the vision pipeline gets its frames: cameras on the robot, files in simulation. */
+public interface FrameSource {
+  /** @return the number of images per frame, one per camera. */
+  int getCameras();
+
+  /**
+   * Block until the next frame is available and copy it, as 8-bit monochrome, into the given Mats
+   * (one per camera). The Mats are reused from frame to frame, so after the first frame this
+   * shouldn't allocate.
+   *
+   * @return capture time in microseconds, in the RobotController.getFPGATime() timebase, or 0 on
+   *     error.
+   */
+  long grabFrame(Mat[] frames);
+
+  /** @return a description of the last error. */
+  String getError();
+}
@@ -4,62 +4,87 @@
 
 package frc.robot;
 
-import edu.wpi.first.cameraserver.CameraServer;
-import edu.wpi.first.cscore.CvSink;
-import edu.wpi.first.cscore.CvSource;
-import edu.wpi.first.cscore.UsbCamera;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Filesystem;
+import edu.wpi.first.wpilibj.RobotController;
+import edu.wpi.first.wpilibj.RobotBase;
 import edu.wpi.first.wpilibj.TimedRobot;
-import org.opencv.core.Mat;
-import org.opencv.core.Point;
-import org.opencv.core.Scalar;
-import org.opencv.imgproc.Imgproc;
+import java.io.File;
+import java.io.IOException;
+import java.util.function.DoubleSupplier;
+import vision.AccuracyMap;
+import vision.Binocular2dUmeyamaPoseEstimator;
+import vision.FrameLogWriter;
+import vision.GyroHistory;
+import vision.PoseEstimator;
 
 /**
- * This is a demo program showing the use of OpenCV to do vision processing. The image is acquired
- * from the USB camera, then a rectangle is put on the image and sent to the dashboard. OpenCV has
- * many methods for different types of processing.
+ * Runs the vision pipeline: frames from the cameras (or, in simulation, from image files in the
+ * deploy directory under "frames") go through a PoseEstimator, and the pose, latency, and capture
+ * timestamp are published to the "vision" NetworkTable. See VisionPipeline.
  */
 public class Robot extends TimedRobot {
-  Thread m_visionThread;
+  // Which estimator to run; see PoseEstimatorHarness for the alternatives. There's no gyro yet,
+  // so this shouldn't be one of the IMU variants.
+  private final PoseEstimator m_estimator = new Binocular2dUmeyamaPoseEstimator(false);
 
-  @Override
-  public void robotInit() {
-    m_visionThread =
-        new Thread(
-            () -> {
-              // Get the UsbCamera from CameraServer
-              UsbCamera camera = CameraServer.startAutomaticCapture();
-              // Set the resolution
-              camera.setResolution(640, 480);
+  // Camera frame rate.
+  private static final int kFps = 50;
+
+  // True = record every frame to vision.flog in the operating directory, for FrameLogReplay.
+  private static final boolean kRecord = false;
+
+  // Poses from where the estimator's accuracy map (deploy/accuracy/<name>.acc, from
+  // AccuracyMapGenerator) expects more error or failures than this aren't trusted.
+  private static final double kMaxExpectedErrorMeters = 0.2;
+  private static final double kMaxFailureProbability = 0.25;
 
-              // Get a CvSink. This will capture Mats from the camera
-              CvSink cvSink = CameraServer.getVideo();
-              // Setup a CvSource. This will send images back to the Dashboard
-              CvSource outputStream = CameraServer.putVideo("Rectangle", 640, 480);
+  // How often to sample the gyro into m_gyroHistory, seconds; several samples per frame, so the
+  // heading at each frame's capture time can be interpolated.
+  private static final double kGyroPeriodSeconds = 0.005;
 
-              // Mats are very memory expensive. Lets reuse this Mat.
-              Mat mat = new Mat();
+  // The gyro heading, radians; replace with the real gyro.
+  private final DoubleSupplier m_gyro = () -> 0.0;
 
-              // This cannot be 'true'. The program will never exit if it is. This
-              // lets the robot stop this thread when restarting robot code or
-              // deploying.
-              while (!Thread.interrupted()) {
-                // Tell the CvSink to grab a frame from the camera and put it
-                // in the source mat.  If there is an error notify the output.
-                if (cvSink.grabFrame(mat) == 0) {
-                  // Send the output the error.
-                  outputStream.notifyError(cvSink.getError());
-                  // skip the rest of the current iteration
-                  continue;
-                }
-                // Put a rectangle on the image
-                Imgproc.rectangle(
-                    mat, new Point(100, 100), new Point(400, 400), new Scalar(255, 255, 255), 5);
-                // Give the output stream a new image to display
-                outputStream.putFrame(mat);
-              }
-            });
-    m_visionThread.setDaemon(true);
-    m_visionThread.start();
+  private final GyroHistory m_gyroHistory = new GyroHistory();
+
+  VisionPipeline m_pipeline;
+
+  @Override
+  public void robotInit() {
+    FrameSource source;
+    if (RobotBase.isSimulation()) {
+      source =
+          new FileFrameSource(
+              new File(Filesystem.getDeployDirectory(), "frames"),
+              m_estimator.getSizes().length,
+              kFps);
+    } else {
+      source = new CameraFrameSource(m_estimator.getSizes(), kFps);
+    }
+    addPeriodic(
+        () -> m_gyroHistory.add(RobotController.getFPGATime(), m_gyro.getAsDouble()),
+        kGyroPeriodSeconds);
+    m_pipeline = new VisionPipeline(m_estimator, source, m_gyroHistory);
+    File accuracyMap =
+        new File(
+            new File(Filesystem.getDeployDirectory(), "accuracy"), m_estimator.getName() + ".acc");
+    if (accuracyMap.isFile()) {
+      try {
+        m_pipeline.setAccuracyMap(
+            AccuracyMap.load(accuracyMap.toPath()),
+            kMaxExpectedErrorMeters,
+            kMaxFailureProbability);
+      } catch (IOException e) {
+        DriverStation.reportWarning("can't load " + accuracyMap + ": " + e.getMessage(), false);
+      }
+    }
+    if (kRecord) {
+      m_pipeline.setRecorder(
+          new FrameLogWriter(
+              new File(Filesystem.getOperatingDirectory(), "vision.flog").toPath(),
+              m_estimator.getSizes()));
+    }
+    m_pipeline.start();
   }
 }
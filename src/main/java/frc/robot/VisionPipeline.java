@@ -0,0 +1,333 @@
+// Copyright (c) FIRST and other WPILib contributors.
+// Open Source Software; you can modify and/or share it under the terms of
+// the WPILib BSD license file in the root directory of this project.
+
+package frc.robot;
+
+import edu.wpi.first.networktables.DoubleArrayPublisher;
+import edu.wpi.first.networktables.DoublePublisher;
+import edu.wpi.first.networktables.IntegerPublisher;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.RobotController;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint3f;
+import vision.AccuracyMap;
+import vision.FrameLogWriter;
+import vision.GyroHistory;
+import vision.PoseEstimator;
+import vision.VisionUtil;
+
+/**
+ * Runs a PoseEstimator on a stream of frames, and publishes the pose, latency, and timestamps to
+ * NetworkTables (table "vision") and to {@link #getLatest()}. With an {@link AccuracyMap}, only
+ * poses from where the estimator is usually good enough are published as trusted.
+ *
+ * <p>Capture and solve run on separate threads, so the next frame is captured while the current
+ * one is solved. Between them is a one-deep mailbox: if the solver is still busy when a new frame
+ * arrives, the waiting frame is stale and is dropped (and its buffers reused), so the solver always
+ * works on the newest frame and latency doesn't build up. There are three sets of frame buffers
+ * (capturing, waiting, solving), allocated once.
+ */
+public class VisionPipeline implements AutoCloseable {
+  /** One set of images, and when it was captured. */
+  static class Frame {
+    final Mat[] m_images;
+    long m_captureTimeMicros;
+    long m_sequence;
+
+    Frame(int cameras) {
+      m_images = new Mat[cameras];
+      for (int i = 0; i < cameras; ++i) {
+        m_images[i] = new Mat();
+      }
+    }
+  }
+
+  /** The outcome of one solved frame. */
+  public static class Result {
+    /** Frame number, counting dropped frames. */
+    public final long sequence;
+    /** Capture time in microseconds, in the RobotController.getFPGATime() timebase. */
+    public final long captureTimeMicros;
+    /** Capture to publish, microseconds. */
+    public final long latencyMicros;
+    /** False if the estimator found nothing; the pose fields are then NaN. */
+    public final boolean valid;
+    /** True if valid, and the accuracy map (if any) says this pose is usually good enough. */
+    public final boolean trusted;
+    /** Position RMS error there, from the accuracy map, meters, or NaN without one. */
+    public final double expectedError;
+    /** Robot position relative to the target, meters, and heading, radians. */
+    public final double x;
+    public final double z;
+    public final double heading;
+
+    Result(
+        long sequence,
+        long captureTimeMicros,
+        long latencyMicros,
+        boolean valid,
+        boolean trusted,
+        double expectedError,
+        double x,
+        double z,
+        double heading) {
+      this.sequence = sequence;
+      this.captureTimeMicros = captureTimeMicros;
+      this.latencyMicros = latencyMicros;
+      this.valid = valid;
+      this.trusted = trusted;
+      this.expectedError = expectedError;
+      this.x = x;
+      this.z = z;
+      this.heading = heading;
+    }
+  }
+
+  private final PoseEstimator m_estimator;
+  private final FrameSource m_source;
+  private final GyroHistory m_gyro;
+  private final MatOfPoint3f m_targetGeometryMeters;
+
+  // the mailbox: the newest captured frame not yet taken by the solver.
+  private final AtomicReference<Frame> m_pending = new AtomicReference<>();
+  private final ArrayBlockingQueue<Frame> m_free = new ArrayBlockingQueue<>(3);
+
+  private final Thread m_captureThread;
+  private final Thread m_solveThread;
+
+  // if set, every captured frame is appended here, see setRecorder(). cleared by the capture
+  // thread if a write fails.
+  private volatile FrameLogWriter m_recorder;
+
+  // if set, gates the published poses, see setAccuracyMap().
+  private AccuracyMap m_accuracyMap;
+  private double m_maxExpectedError;
+  private double m_maxFailureProbability;
+
+  private volatile Result m_latest;
+  private volatile long m_captured = 0;
+  private volatile long m_dropped = 0;
+  private volatile long m_errors = 0;
+  // written only by the solve thread, like m_errors by the capture thread
+  private volatile long m_solveErrors = 0;
+
+  private final DoubleArrayPublisher m_posePublisher;
+  private final DoublePublisher m_latencyPublisher;
+  private final IntegerPublisher m_timestampPublisher;
+  private final IntegerPublisher m_droppedPublisher;
+
+  /**
+   * @param estimator solves each frame
+   * @param source provides the frames, with as many cameras as the estimator has
+   * @param gyro recent gyro headings, for estimators that use them; each frame is solved with the
+   *     heading at its capture time, so it should be fed faster than the frame rate.
+   */
+  public VisionPipeline(PoseEstimator estimator, FrameSource source, GyroHistory gyro) {
+    if (source.getCameras() != estimator.getSizes().length) {
+      throw new IllegalArgumentException(
+          "estimator has "
+              + estimator.getSizes().length
+              + " cameras but source has "
+              + source.getCameras());
+    }
+    m_estimator = estimator;
+    m_source = source;
+    m_gyro = gyro;
+    m_targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+    for (int i = 0; i < 3; ++i) {
+      m_free.add(new Frame(source.getCameras()));
+    }
+
+    NetworkTable table = NetworkTableInstance.getDefault().getTable("vision");
+    m_posePublisher = table.getDoubleArrayTopic("pose").publish();
+    m_latencyPublisher = table.getDoubleTopic("latencyMs").publish();
+    m_timestampPublisher = table.getIntegerTopic("captureTimeMicros").publish();
+    m_droppedPublisher = table.getIntegerTopic("dropped").publish();
+
+    m_captureThread = new Thread(this::capture, "VisionCapture");
+    m_captureThread.setDaemon(true);
+    m_solveThread = new Thread(this::solve, "VisionSolve");
+    m_solveThread.setDaemon(true);
+  }
+
+  /**
+   * Record every captured frame (including the ones that are dropped) for replay; call before
+   * start(). Recording runs on the capture thread, so a slow disk lowers the frame rate.
+   */
+  public void setRecorder(FrameLogWriter recorder) {
+    m_recorder = recorder;
+  }
+
+  /**
+   * Publish only poses from where the estimator's expected position error and failure rate are
+   * within these limits; call before start().
+   *
+   * @param map from AccuracyMapGenerator, for this estimator
+   * @param maxExpectedError meters
+   * @param maxFailureProbability 0 to 1
+   */
+  public void setAccuracyMap(AccuracyMap map, double maxExpectedError, double maxFailureProbability) {
+    m_accuracyMap = map;
+    m_maxExpectedError = maxExpectedError;
+    m_maxFailureProbability = maxFailureProbability;
+  }
+
+  public void start() {
+    m_solveThread.start();
+    m_captureThread.start();
+  }
+
+  /** @return the most recent result, or null if nothing has been solved yet. */
+  public Result getLatest() {
+    return m_latest;
+  }
+
+  /** @return frames captured so far. */
+  public long getCaptured() {
+    return m_captured;
+  }
+
+  /** @return frames captured but never solved because a newer one came along. */
+  public long getDropped() {
+    return m_dropped;
+  }
+
+  /** @return failed captures. */
+  public long getErrors() {
+    return m_errors;
+  }
+
+  /** @return frames whose solve threw, and were published as invalid. */
+  public long getSolveErrors() {
+    return m_solveErrors;
+  }
+
+  @Override
+  public void close() {
+    m_captureThread.interrupt();
+    m_solveThread.interrupt();
+    if (m_recorder != null) {
+      try {
+        m_captureThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      // null if a write failed, and the capture thread closed it
+      FrameLogWriter recorder = m_recorder;
+      if (recorder != null) {
+        recorder.close();
+      }
+    }
+  }
+
+  private void capture() {
+    try {
+      Frame frame = m_free.take();
+      long sequence = 0;
+      while (!Thread.interrupted()) {
+        long captureTime = m_source.grabFrame(frame.m_images);
+        if (captureTime == 0) {
+          ++m_errors;
+          // don't spin on a source that's gone away
+          Thread.sleep(20);
+          continue;
+        }
+        FrameLogWriter recorder = m_recorder;
+        if (recorder != null) {
+          try {
+            recorder.append(captureTime, m_gyro.getHeading(captureTime), null, frame.m_images);
+          } catch (UncheckedIOException e) {
+            // e.g. a full disk; losing the recording is better than losing vision.
+            stopRecording(recorder, e);
+          }
+        }
+        frame.m_captureTimeMicros = captureTime;
+        frame.m_sequence = sequence++;
+        ++m_captured;
+        Frame stale = m_pending.getAndSet(frame);
+        LockSupport.unpark(m_solveThread);
+        if (stale != null) {
+          ++m_dropped;
+          frame = stale;
+        } else {
+          // there's always one free here: one frame is pending and the solver has at most one.
+          frame = m_free.take();
+        }
+      }
+    } catch (InterruptedException e) {
+      // done
+    }
+  }
+
+  private void stopRecording(FrameLogWriter recorder, UncheckedIOException e) {
+    m_recorder = null;
+    DriverStation.reportError("vision recording stopped: " + e.getMessage(), false);
+    try {
+      recorder.close();
+    } catch (UncheckedIOException closeError) {
+      // already reported
+    }
+  }
+
+  private void solve() {
+    double[] pose = new double[3];
+    while (!Thread.interrupted()) {
+      Frame frame = m_pending.getAndSet(null);
+      if (frame == null) {
+        LockSupport.park(this);
+        continue;
+      }
+      long captureTime = frame.m_captureTimeMicros;
+      long sequence = frame.m_sequence;
+      boolean valid = false;
+      try {
+        Mat transform =
+            m_estimator.getPose(
+                (int) sequence, false, m_gyro, captureTime, m_targetGeometryMeters, frame.m_images);
+        valid = transform != null;
+        if (valid) {
+          VisionUtil.transformToPose(transform, pose);
+          transform.release();
+        }
+      } catch (RuntimeException e) {
+        // e.g. a CvException or a degenerate point set; losing one frame is better than losing
+        // vision.
+        ++m_solveErrors;
+        DriverStation.reportError("vision solve failed: " + e, e.getStackTrace());
+        valid = false;
+      } finally {
+        m_free.add(frame);
+      }
+      if (!valid) {
+        pose[0] = Double.NaN;
+        pose[1] = Double.NaN;
+        pose[2] = Double.NaN;
+      }
+
+      boolean trusted = valid;
+      double expectedError = Double.NaN;
+      if (valid && m_accuracyMap != null) {
+        expectedError = m_accuracyMap.get(AccuracyMap.POSITION_ERROR, pose);
+        trusted = m_accuracyMap.isTrusted(pose, m_maxExpectedError, m_maxFailureProbability);
+      }
+
+      long latency = RobotController.getFPGATime() - captureTime;
+      m_latest =
+          new Result(
+              sequence, captureTime, latency, valid, trusted, expectedError, pose[0], pose[1], pose[2]);
+      if (trusted) {
+        m_posePublisher.set(pose);
+      }
+      m_latencyPublisher.set(latency / 1e3);
+      m_timestampPublisher.set(captureTime);
+      m_droppedPublisher.set(m_dropped);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package vision;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * How good an estimator is at each pose, precomputed by
+ * {@link AccuracyMapGenerator}, so the robot can decide how far to trust a
+ * measurement with a lookup instead of a covariance computation.
+ *
+ * The grid is over range, bearing, and pan: range and bearing are where the
+ * robot is, in polar coordinates around the target, with bearing
+ * atan2(x, -z) as in PoseEstimatorHarness, and pan is its heading. Each grid
+ * point has the position and heading RMS error of the poses that came out,
+ * and the fraction that didn't. Between grid points the values are
+ * interpolated (trilinearly), and beyond the grid they're clamped to the edge.
+ * The errors are NaN where nothing ever came out; those grid points are left
+ * out of the interpolation.
+ *
+ * The file is a small header followed by the floats, little-endian, grid
+ * point by grid point with pan varying fastest. It's read by mapping it, so
+ * loading is instant and lookups don't allocate; any number of threads may
+ * look things up at once.
+ */
+public class AccuracyMap {
+    // bump this when the layout changes.
+    static final int VERSION = 1;
+    static final int MAGIC = 0x41434d50; // "ACMP"
+    // magic, version, fields, and three axes of {count, min, step}
+    static final int HEADER = 4 + 4 + 4 + 3 * (4 + 8 + 8);
+
+    /** position RMS error, meters */
+    public static final int POSITION_ERROR = 0;
+    /** heading RMS error, radians */
+    public static final int HEADING_ERROR = 1;
+    /** fraction of frames with no pose, or a wild one */
+    public static final int FAILURE_PROBABILITY = 2;
+    public static final int FIELDS = 3;
+
+    /** Grid points from min, step apart. */
+    public static class Axis {
+        public final int count;
+        public final double min;
+        public final double step;
+
+        public Axis(int count, double min, double step) {
+            if (count < 1 || !(step > 0))
+                throw new IllegalArgumentException("bad axis " + count + " " + step);
+            this.count = count;
+            this.min = min;
+            this.step = step;
+        }
+
+        public double get(int i) {
+            return min + i * step;
+        }
+
+        /** fractional grid index, clamped to the grid */
+        double index(double value) {
+            double f = (value - min) / step;
+            if (!(f > 0))
+                return 0;
+            return Math.min(f, count - 1);
+        }
+    }
+
+    private final Axis range;
+    private final Axis bearing;
+    private final Axis pan;
+    private final FloatBuffer data;
+    // keeps the mapping alive as long as the map is in use.
+    @SuppressWarnings("unused")
+    private final ByteBuffer buffer;
+
+    AccuracyMap(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC)
+            throw new IOException("not an accuracy map");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("accuracy map version " + buffer.getInt(4) + ", expected " + VERSION);
+        if (buffer.getInt(8) != FIELDS)
+            throw new IOException("accuracy map has " + buffer.getInt(8) + " fields, expected " + FIELDS);
+        range = readAxis(buffer, 12);
+        bearing = readAxis(buffer, 32);
+        pan = readAxis(buffer, 52);
+        long floats = (long) range.count * bearing.count * pan.count * FIELDS;
+        if (buffer.capacity() != HEADER + 4 * floats)
+            throw new IOException("accuracy map is " + buffer.capacity() + " bytes, expected "
+                    + (HEADER + 4 * floats));
+        ByteBuffer body = buffer.duplicate();
+        body.position(HEADER);
+        data = body.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        this.buffer = buffer;
+    }
+
+    private static Axis readAxis(ByteBuffer buffer, int offset) throws IOException {
+        try {
+            return new Axis(buffer.getInt(offset), buffer.getDouble(offset + 4), buffer.getDouble(offset + 12));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("accuracy map: " + e.getMessage());
+        }
+    }
+
+    /** Map the file. */
+    public static AccuracyMap load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new AccuracyMap(buffer);
+        }
+    }
+
+    /**
+     * @param data FIELDS floats per grid point, see {@link #index}
+     */
+    public static void write(Path path, Axis range, Axis bearing, Axis pan, float[] data) throws IOException {
+        if (data.length != range.count * bearing.count * pan.count * FIELDS)
+            throw new IllegalArgumentException("expected " + range.count * bearing.count * pan.count * FIELDS
+                    + " values, got " + data.length);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + 4 * data.length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(FIELDS);
+        for (Axis axis : new Axis[] { range, bearing, pan }) {
+            buf.putInt(axis.count);
+            buf.putDouble(axis.min);
+            buf.putDouble(axis.step);
+        }
+        buf.asFloatBuffer().put(data);
+        buf.position(buf.capacity());
+        buf.flip();
+        // write under a temporary name and rename, so a robot never maps half
+        // a file.
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tmp = Files.createTempFile(directory, "tmp", ".acc");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return where the first of a grid point's fields is in the data */
+    public static int index(Axis bearing, Axis pan, int rangeIdx, int bearingIdx, int panIdx) {
+        return ((rangeIdx * bearing.count + bearingIdx) * pan.count + panIdx) * FIELDS;
+    }
+
+    public Axis getRange() {
+        return range;
+    }
+
+    public Axis getBearing() {
+        return bearing;
+    }
+
+    public Axis getPan() {
+        return pan;
+    }
+
+    /**
+     * @param field e.g. {@link #POSITION_ERROR}
+     * @return the interpolated value, or NaN if there's no data nearby
+     */
+    public double get(int field, double rangeMeters, double bearingRadians, double panRadians) {
+        if (Double.isNaN(rangeMeters) || Double.isNaN(bearingRadians) || Double.isNaN(panRadians))
+            return Double.NaN;
+        double fr = range.index(rangeMeters);
+        double fb = bearing.index(bearingRadians);
+        double fp = pan.index(panRadians);
+        int r0 = Math.min((int) fr, Math.max(0, range.count - 2));
+        int b0 = Math.min((int) fb, Math.max(0, bearing.count - 2));
+        int p0 = Math.min((int) fp, Math.max(0, pan.count - 2));
+        double tr = fr - r0;
+        double tb = fb - b0;
+        double tp = fp - p0;
+        int r1 = Math.min(r0 + 1, range.count - 1);
+        int b1 = Math.min(b0 + 1, bearing.count - 1);
+        int p1 = Math.min(p0 + 1, pan.count - 1);
+        double sum = 0;
+        double weights = 0;
+        for (int corner = 0; corner < 8; ++corner) {
+            double w = ((corner & 4) == 0 ? 1 - tr : tr)
+                    * ((corner & 2) == 0 ? 1 - tb : tb)
+                    * ((corner & 1) == 0 ? 1 - tp : tp);
+            if (w == 0)
+                continue;
+            int i = index(bearing, pan, (corner & 4) == 0 ? r0 : r1, (corner & 2) == 0 ? b0 : b1,
+                    (corner & 1) == 0 ? p0 : p1);
+            float v = data.get(i + field);
+            if (Float.isNaN(v))
+                continue;
+            sum += w * v;
+            weights += w;
+        }
+        if (weights == 0)
+            return Double.NaN;
+        return sum / weights;
+    }
+
+    /**
+     * @param pose {x, z, heading} as in
+     *             {@link VisionUtil#transformToPose(org.opencv.core.Mat, double[])}
+     */
+    public double get(int field, double[] pose) {
+        return get(field, Math.hypot(pose[0], pose[1]), Math.atan2(pose[0], -pose[1]), pose[2]);
+    }
+
+    /**
+     * @return true if, at this pose, the estimator is usually no worse than
+     *         maxPositionError, and doesn't fail more often than
+     *         maxFailureProbability
+     */
+    public boolean isTrusted(double[] pose, double maxPositionError, double maxFailureProbability) {
+        return get(FAILURE_PROBABILITY, pose) <= maxFailureProbability
+                && get(POSITION_ERROR, pose) <= maxPositionError;
+    }
+}
@@ -0,0 +1,148 @@
+package vision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
+
+/**
+ * Sweeps each estimator over a dense grid of range, bearing, and pan, the same
+ * way PoseEstimatorHarness evaluates its cells (rendered, noisy images), and
+ * writes the results as an {@link AccuracyMap} per estimator, for the robot to
+ * look up.
+ *
+ * Each grid point is solved several times with different noise. A pose more
+ * than maxError off counts as a failure, like no pose at all, rather than
+ * swamping the RMS error.
+ *
+ * <pre>
+ * java vision.AccuracyMapGenerator [directory]
+ * </pre>
+ *
+ * writes one "name.acc" for each of the harness estimators, into the
+ * directory, or "accuracy-maps" in the temp directory; copy them to the
+ * robot's deploy directory under "accuracy".
+ */
+public class AccuracyMapGenerator {
+    // 1 to 10 meters
+    final AccuracyMap.Axis rangeAxis = new AccuracyMap.Axis(19, 1.0, 0.5);
+    // +-60 degrees, 5 degree steps
+    final AccuracyMap.Axis bearingAxis = new AccuracyMap.Axis(25, -Math.PI / 3, Math.PI / 36);
+    // +-67.5 degrees, like the harness, 5.6 degree steps
+    final AccuracyMap.Axis panAxis = new AccuracyMap.Axis(25, -3 * Math.PI / 8, Math.PI / 32);
+
+    // noisy solves per grid point
+    final int samples = 4;
+    // worse than this, meters, is a failure
+    final double maxError = 1.0;
+
+    final int threads = Runtime.getRuntime().availableProcessors();
+
+    // evaluates the cells, without debug images or the scenario cache, which
+    // would be huge for a grid this dense.
+    private final PoseEstimatorHarness harness = new PoseEstimatorHarness(false, false);
+
+    /**
+     * @return the map data, see {@link AccuracyMap#write}
+     */
+    float[] generate(PoseEstimator e) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<float[]>> futures = new ArrayList<Future<float[]>>();
+            for (int rangeIdx = 0; rangeIdx < rangeAxis.count; ++rangeIdx) {
+                for (int bearingIdx = 0; bearingIdx < bearingAxis.count; ++bearingIdx) {
+                    for (int panIdx = 0; panIdx < panAxis.count; ++panIdx) {
+                        final int r = rangeIdx;
+                        final int b = bearingIdx;
+                        final int p = panIdx;
+                        futures.add(pool.submit(() -> evaluate(e, r, b, p)));
+                    }
+                }
+            }
+            float[] data = new float[futures.size() * AccuracyMap.FIELDS];
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    System.arraycopy(futures.get(i).get(), 0, data, i * AccuracyMap.FIELDS, AccuracyMap.FIELDS);
+                } catch (InterruptedException | ExecutionException ex) {
+                    throw new RuntimeException(ex);
+                }
+                // one collection per batch of points rather than one per point
+                // per thread
+                if (i % threads == threads - 1)
+                    System.gc();
+            }
+            return data;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Solve one grid point several times.
+     *
+     * @return {position RMS error, heading RMS error, failure fraction}
+     */
+    float[] evaluate(PoseEstimator e, int rangeIdx, int bearingIdx, int panIdx) {
+        double range = rangeAxis.get(rangeIdx);
+        double bearing = bearingAxis.get(bearingIdx);
+        double pan = panAxis.get(panIdx);
+        double xPos = range * Math.sin(bearing);
+        double zPos = -range * Math.cos(bearing);
+        double positionSquareSum = 0;
+        double headingSquareSum = 0;
+        int ok = 0;
+        for (int sample = 0; sample < samples; ++sample) {
+            // the indices seed the noise, so each sample gets its own.
+            int idx = (rangeIdx * bearingAxis.count + bearingIdx) * panAxis.count + panIdx;
+            PoseEstimatorHarness.Cell cell = new PoseEstimatorHarness.Cell(idx, panIdx, rangeIdx,
+                    bearingIdx * samples + sample, pan, zPos, xPos);
+            PoseEstimatorHarness.CellResult r = harness.evaluate(e, cell);
+            if (r.skipped() || r.failed() || !(r.posErr <= maxError))
+                continue;
+            ++ok;
+            positionSquareSum += r.posErr * r.posErr;
+            headingSquareSum += r.panErr * r.panErr;
+        }
+        float[] result = new float[AccuracyMap.FIELDS];
+        result[AccuracyMap.POSITION_ERROR] = ok == 0 ? Float.NaN : (float) Math.sqrt(positionSquareSum / ok);
+        result[AccuracyMap.HEADING_ERROR] = ok == 0 ? Float.NaN : (float) Math.sqrt(headingSquareSum / ok);
+        result[AccuracyMap.FAILURE_PROBABILITY] = (float) (samples - ok) / samples;
+        return result;
+    }
+
+    public void run(PoseEstimator e, Path path) {
+        long start = System.nanoTime();
+        float[] data = generate(e);
+        try {
+            AccuracyMap.write(path, rangeAxis, bearingAxis, panAxis, data);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        double failures = 0;
+        for (int i = AccuracyMap.FAILURE_PROBABILITY; i < data.length; i += AccuracyMap.FIELDS) {
+            failures += data[i];
+        }
+        System.out.printf("%40s %6d points, mean failure rate %5.3f, %6.1f s, in %s\n", e.getName(),
+                data.length / AccuracyMap.FIELDS, failures * AccuracyMap.FIELDS / data.length,
+                (System.nanoTime() - start) / 1e9, path);
+    }
+
+    public static void main(String... args) {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        File directory = args.length > 0 ? new File(args[0])
+                : new File(System.getProperty("java.io.tmpdir"), "accuracy-maps");
+        AccuracyMapGenerator generator = new AccuracyMapGenerator();
+        for (PoseEstimator e : generator.harness.poseEstimators) {
+            generator.run(e, Paths.get(directory.getPath(), e.getName() + ".acc"));
+        }
+    }
+}
@@ -1,68 +1,416 @@
 package vision;
 
-import org.opencv.calib3d.Calib3d;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Rect;
 import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
+import vision.StageTimings.Stage;
+
 public abstract class BasePoseEstimator implements PoseEstimator {
     final static Log log = new Log(2, BasePoseEstimator.class.getName());
 
+    // combined undistort+untilt tables, {map1, map2} per camera, made on first
+    // use since the camera parameters come from the subclass.
+    private volatile Mat[][] remapTables;
+
+    // scratch buffers, one pool per camera per thread; estimators may be shared
+    // by harness threads.
+    private final ThreadLocal<MatPool[]> matPools = new ThreadLocal<MatPool[]>();
+
+    // true = look near the previous target first, see TargetTracker.
+    private volatile boolean tracking = false;
+    private final ThreadLocal<TargetTracker[]> trackers = new ThreadLocal<TargetTracker[]>();
+
+    private final StageTimings timings = new StageTimings();
+
+    // true = find each camera's corners on its own thread, see
+    // setParallelCameras().
+    private volatile boolean parallelCameras = false;
+    private static ExecutorService cameraExecutor;
+
+    // true = subpixel corners, see setRefineCorners().
+    private volatile boolean refineCorners = false;
+
+    // true = BlobDetector instead of findContours, see setBlobDetector().
+    private volatile boolean blobDetector = false;
+
+    // true = ignore corners that don't fit, see setRobust().
+    private volatile boolean robust = false;
+
+    // assumed noise, for getCovariance(), see setPixelStdDev().
+    private volatile double pixelStdDev = PoseCovariance.DEFAULT_PIXEL_STD_DEV;
+    private volatile double headingStdDev = PoseCovariance.DEFAULT_GYRO_STD_DEV;
+
     /**
      * includes untilting, which means i should (TODO) add a "tall" size here.
      */
     @Override
     public Mat getPose(int idx, boolean writeFiles, double heading, MatOfPoint3f targetPoints, Mat[] images) {
+        timings.beginFrame();
+        long start = System.nanoTime();
         MatOfPoint2f[] imagePointArray = new MatOfPoint2f[images.length];
-        Mat[] intrinsics = getIntrinsicMatrices();
-        Mat[] distortion = getDistortionMatrices();
-        double[] f = getF();
-        double[] tilt = getTilt();
-        Size[] size = getSizes();
-        for (int i = 0; i < images.length; ++i) {
-
-            Mat cameraView = images[i];
-
-            // manually undistort the camera view.
-            Mat undistortedCameraView = new Mat();
-            Calib3d.undistort(cameraView, undistortedCameraView, intrinsics[i], distortion[i]);
-            if (writeFiles)
-                Imgcodecs.imwrite(String.format("C:\\Users\\joelt\\Desktop\\pics\\target-%d-undistorted.png", idx),
-                        undistortedCameraView);
-
-            // for now use the same size/kmat as the real camera, which is not optimal.
-            Mat untiltedCameraView = VisionUtil.removeTilt(undistortedCameraView, tilt[i], f[i], intrinsics[i],
-                    size[i]);
-            if (writeFiles)
-                Imgcodecs.imwrite(String.format("C:\\Users\\joelt\\Desktop\\pics\\target-%d-raw.png", idx),
-                        untiltedCameraView);
-
-            VisionUtil.removeSaltAndPepperInPlace(untiltedCameraView);
-            if (writeFiles)
-                Imgcodecs.imwrite(String.format("C:\\Users\\joelt\\Desktop\\pics\\target-%d-nosalt.png", idx),
-                        untiltedCameraView);
-
-            // lower the contrast of the background
-            Imgproc.GaussianBlur(untiltedCameraView, untiltedCameraView, new Size(3, 3), 0);
-            if (writeFiles)
-                Imgcodecs.imwrite(String.format("C:\\Users\\joelt\\Desktop\\pics\\target-%d-degauss.png", idx),
-                        untiltedCameraView);
-
-            // push the histogram around to try to make the bright part easy to find?
-            // actualy this seems to make the noise more prominent.
-            // Imgproc.equalizeHist(untiltedCameraView, untiltedCameraView);
-
-            MatOfPoint2f imagePoints = VisionUtil.findTargetCornersInImage(idx, writeFiles,
-                    untiltedCameraView, 200);
-            if (imagePoints == null) {
-                log.debugmsg(2, "no points");
-                return null;
+        Mat[][] tables = getRemapTables();
+        MatPool[] pools = getMatPools(images.length);
+        TargetTracker[] cameraTrackers = tracking ? getTrackers(images.length) : null;
+        int found = 0;
+        if (parallelCameras && images.length > 1) {
+            findCornersInParallel(idx, writeFiles, images, tables, pools, cameraTrackers, imagePointArray);
+            for (MatOfPoint2f imagePoints : imagePointArray) {
+                if (imagePoints != null)
+                    ++found;
+            }
+        } else {
+            for (int i = 0; i < images.length; ++i) {
+                imagePointArray[i] = findCorners(idx, writeFiles, images[i], tables[i], pools[i],
+                        cameraTrackers == null ? null : cameraTrackers[i]);
+                if (imagePointArray[i] != null)
+                    ++found;
+                else if (requiresAllCameras())
+                    break;
+            }
+        }
+        if (found == 0 || (found < images.length && requiresAllCameras())) {
+            log.debugmsg(2, "no points");
+            timings.lap(Stage.TOTAL, start);
+            return null;
+        }
+        long t = System.nanoTime();
+        Mat pose = getPose(heading, targetPoints, imagePointArray);
+        timings.lap(Stage.SOLVE, t);
+        timings.lap(Stage.TOTAL, start);
+        return pose;
+    }
+
+    /**
+     * @param tracker this camera's tracker, or null for no tracking
+     * @return corners in (untilted) frame coordinates, or null
+     */
+    MatOfPoint2f findCorners(int idx, boolean writeFiles, Mat cameraView, Mat[] table, MatPool pool,
+            TargetTracker tracker) {
+        if (tracker == null)
+            return findTargetCorners(idx, writeFiles, cameraView, table, pool, null);
+        return trackTargetCorners(idx, writeFiles, cameraView, table, pool, tracker);
+    }
+
+    /**
+     * Find each camera's corners on its own thread: this one does the first
+     * camera, the shared camera executor does the rest. The pools and trackers
+     * are per camera, so each task has its own. The helpers' stage times are
+     * added to this thread's frame.
+     */
+    void findCornersInParallel(int idx, boolean writeFiles, Mat[] images, Mat[][] tables, MatPool[] pools,
+            TargetTracker[] cameraTrackers, MatOfPoint2f[] imagePointArray) {
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>(images.length - 1);
+        ExecutorService executor = getCameraExecutor();
+        for (int i = 1; i < images.length; ++i) {
+            final int cameraIdx = i;
+            futures.add(executor.submit(() -> {
+                timings.beginFrame();
+                imagePointArray[cameraIdx] = findCorners(idx, writeFiles, images[cameraIdx], tables[cameraIdx],
+                        pools[cameraIdx], cameraTrackers == null ? null : cameraTrackers[cameraIdx]);
+                return timings.getFrame().clone();
+            }));
+        }
+        RuntimeException failure = null;
+        try {
+            imagePointArray[0] = findCorners(idx, writeFiles, images[0], tables[0], pools[0],
+                    cameraTrackers == null ? null : cameraTrackers[0]);
+        } catch (RuntimeException ex) {
+            failure = ex;
+        }
+        // always wait for all of them, since they're using this thread's pools.
+        boolean interrupted = false;
+        for (Future<long[]> future : futures) {
+            while (true) {
+                try {
+                    timings.addFrame(future.get());
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (failure == null)
+                        failure = new IllegalStateException(ex.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Look in the region around the previous target, and then, if that doesn't
+     * work, in the whole frame.
+     * 
+     * @return corners in (untilted) frame coordinates
+     */
+    MatOfPoint2f trackTargetCorners(int idx, boolean writeFiles, Mat cameraView, Mat[] table, MatPool pool,
+            TargetTracker tracker) {
+        Size frameSize = table[0].size();
+        Rect region = tracker.getRegion(frameSize);
+        MatOfPoint2f regionPoints = findTargetCorners(idx, writeFiles, cameraView, table, pool, region);
+        MatOfPoint2f imagePoints = tracker.update(regionPoints, region, frameSize);
+        if (regionPoints != null)
+            regionPoints.release();
+        if (imagePoints != null || TargetTracker.isFullFrame(region, frameSize))
+            return imagePoints;
+        log.debugmsg(1, "lost target, trying full frame");
+        Rect fullFrame = new Rect(0, 0, (int) frameSize.width, (int) frameSize.height);
+        MatOfPoint2f fullFramePoints = findTargetCorners(idx, writeFiles, cameraView, table, pool, null);
+        imagePoints = tracker.update(fullFramePoints, fullFrame, frameSize);
+        if (fullFramePoints != null)
+            fullFramePoints.release();
+        return imagePoints;
+    }
+
+    /**
+     * Everything from raw image to corners, for one camera; all the scratch
+     * buffers go back to the pool.
+     * 
+     * @param region part of the untilted frame to look at, or null for all of
+     *               it
+     * @return corners relative to the region
+     */
+    MatOfPoint2f findTargetCorners(int idx, boolean writeFiles, Mat cameraView, Mat[] table, MatPool pool,
+            Rect region) {
+        try (MatPool.Scope scope = pool.scope()) {
+            Mat untiltedCameraView = preprocess(idx, writeFiles, cameraView, table, pool, region);
+            if (blobDetector)
+                return BlobDetector.findTargetCorners(untiltedCameraView, 200, timings, refineCorners);
+            return VisionUtil.findTargetCornersInImage(idx, writeFiles,
+                    untiltedCameraView, 200, pool, timings, refineCorners);
+        }
+    }
+
+    /**
+     * Like findTargetCorners, but for any number of targets.
+     * 
+     * @return every quadrilateral in the whole (untilted) frame, best first
+     */
+    List<TargetCandidate> findTargetCandidates(int idx, boolean writeFiles, Mat cameraView, Mat[] table,
+            MatPool pool) {
+        try (MatPool.Scope scope = pool.scope()) {
+            Mat untiltedCameraView = preprocess(idx, writeFiles, cameraView, table, pool, null);
+            return VisionUtil.findTargetCandidatesInImage(idx, writeFiles,
+                    untiltedCameraView, 200, pool, timings, refineCorners);
+        }
+    }
+
+    /**
+     * Undistort, untilt, and denoise, into a buffer from the pool; call within a
+     * scope.
+     */
+    private Mat preprocess(int idx, boolean writeFiles, Mat cameraView, Mat[] table, MatPool pool,
+            Rect region) {
+        // undistort and untilt in one pass; the tables are indexed by output
+        // pixel, so a region of the output just needs a region of the tables.
+        // for now use the same size/kmat as the real camera, which is not optimal.
+        Mat map1 = region == null ? table[0] : table[0].submat(region);
+        Mat map2 = region == null ? table[1] : table[1].submat(region);
+        long t = System.nanoTime();
+        Mat untiltedCameraView = pool.acquire(map1.size(), cameraView.type());
+        Imgproc.remap(cameraView, untiltedCameraView, map1, map2, Imgproc.INTER_LINEAR,
+                Core.BORDER_CONSTANT);
+        timings.lap(Stage.REMAP, t);
+        if (writeFiles)
+            DebugImageWriter.getDefault().write(idx, String.format("target-%d-raw.png", idx),
+                    untiltedCameraView);
+
+        t = System.nanoTime();
+        VisionUtil.removeSaltAndPepperInPlace(untiltedCameraView);
+        timings.lap(Stage.MEDIAN_BLUR, t);
+        if (writeFiles)
+            DebugImageWriter.getDefault().write(idx, String.format("target-%d-nosalt.png", idx),
+                    untiltedCameraView);
+
+        // lower the contrast of the background
+        t = System.nanoTime();
+        Imgproc.GaussianBlur(untiltedCameraView, untiltedCameraView, new Size(3, 3), 0);
+        timings.lap(Stage.GAUSSIAN_BLUR, t);
+        if (writeFiles)
+            DebugImageWriter.getDefault().write(idx, String.format("target-%d-degauss.png", idx),
+                    untiltedCameraView);
+
+        // push the histogram around to try to make the bright part easy to find?
+        // actualy this seems to make the noise more prominent.
+        // Imgproc.equalizeHist(untiltedCameraView, untiltedCameraView);
+        return untiltedCameraView;
+    }
+
+    /**
+     * The camera parameters never change, so the undistort and untilt
+     * transforms are computed once, as remap tables.
+     */
+    Mat[][] getRemapTables() {
+        Mat[][] tables = remapTables;
+        if (tables != null)
+            return tables;
+        synchronized (this) {
+            if (remapTables != null)
+                return remapTables;
+            Mat[] intrinsics = getIntrinsicMatrices();
+            MatOfDouble[] distortion = getDistortionMatrices();
+            double[] f = getF();
+            double[] tilt = getTilt();
+            Size[] size = getSizes();
+            tables = new Mat[intrinsics.length][];
+            for (int i = 0; i < intrinsics.length; ++i) {
+                Mat map1 = new Mat();
+                Mat map2 = new Mat();
+                VisionUtil.makeUndistortUntiltMaps(intrinsics[i], distortion[i], tilt[i], f[i], size[i], map1, map2);
+                tables[i] = new Mat[] { map1, map2 };
+            }
+            remapTables = tables;
+            return tables;
+        }
+    }
+
+    /**
+     * Find the corners in each camera's image concurrently, so that the latency
+     * of a multi-camera rig is close to that of one camera. Off by default,
+     * since the harness already keeps every core busy.
+     */
+    public void setParallelCameras(boolean parallelCameras) {
+        this.parallelCameras = parallelCameras;
+    }
+
+    /**
+     * Refine the approxPolyDP corners to subpixel positions, see
+     * {@link CornerRefiner}. This costs a few microseconds per camera, about
+     * the same at any range, and matters most far away, where a pixel is a lot
+     * of range.
+     */
+    public void setRefineCorners(boolean refineCorners) {
+        this.refineCorners = refineCorners;
+    }
+
+    public boolean getRefineCorners() {
+        return refineCorners;
+    }
+
+    /**
+     * Find the target with {@link BlobDetector}, one pass in Java, rather than
+     * threshold, findContours, and approxPolyDP. Only for the single-target
+     * estimators; the multi-target path always uses findContours.
+     */
+    public void setBlobDetector(boolean blobDetector) {
+        this.blobDetector = blobDetector;
+    }
+
+    public boolean getBlobDetector() {
+        return blobDetector;
+    }
+
+    /**
+     * Solve with the corners that agree with each other, see
+     * {@link RansacRigid2d}, and return no pose if too few do. Only for the
+     * binocular estimators; the others ignore it.
+     */
+    public void setRobust(boolean robust) {
+        this.robust = robust;
+    }
+
+    public boolean getRobust() {
+        return robust;
+    }
+
+    /**
+     * The corner noise assumed by {@link #getCovariance(Mat, MatOfPoint3f)};
+     * see the covariance check in PoseEstimatorHarness for a way to measure it.
+     */
+    public void setPixelStdDev(double pixelStdDev) {
+        this.pixelStdDev = pixelStdDev;
+    }
+
+    @Override
+    public double getPixelStdDev() {
+        return pixelStdDev;
+    }
+
+    /** The gyro noise assumed by {@link #getCovariance(Mat, MatOfPoint3f)}. */
+    public void setHeadingStdDev(double headingStdDev) {
+        this.headingStdDev = headingStdDev;
+    }
+
+    @Override
+    public double getHeadingStdDev() {
+        return headingStdDev;
+    }
+
+    /**
+     * Shared by all estimators, made on first use. The caller does one camera
+     * itself, so three helpers cover a four-camera rig.
+     */
+    static synchronized ExecutorService getCameraExecutor() {
+        if (cameraExecutor == null) {
+            int threads = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+            cameraExecutor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "BasePoseEstimator camera");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return cameraExecutor;
+    }
+
+    /**
+     * @return latency per stage, over all threads, since construction or the
+     *         last reset.
+     */
+    public StageTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Turn region-of-interest tracking on or off. Tracking makes the result
+     * depend on the previous frame (on the same thread), so it's only
+     * appropriate for sequences of frames.
+     */
+    public void setTracking(boolean tracking) {
+        this.tracking = tracking;
+    }
+
+    /**
+     * @return this thread's tracker for each camera.
+     */
+    public TargetTracker[] getTrackers(int cameras) {
+        TargetTracker[] cameraTrackers = trackers.get();
+        if (cameraTrackers == null) {
+            cameraTrackers = new TargetTracker[cameras];
+            for (int i = 0; i < cameras; ++i) {
+                cameraTrackers[i] = new TargetTracker();
+            }
+            trackers.set(cameraTrackers);
+        }
+        return cameraTrackers;
+    }
+
+    /**
+     * @return this thread's scratch pool for each camera.
+     */
+    public MatPool[] getMatPools(int cameras) {
+        MatPool[] pools = matPools.get();
+        if (pools == null) {
+            pools = new MatPool[cameras];
+            for (int i = 0; i < cameras; ++i) {
+                pools[i] = new MatPool();
             }
-            imagePointArray[i] = imagePoints;
+            matPools.set(pools);
         }
-        return getPose(heading, targetPoints, imagePointArray);
+        return pools;
     }
 }
@@ -21,6 +21,11 @@ public class Binocular2dSVDPoseEstimator extends BasePoseEstimator {
         this.useIMU = useIMU;
     }
 
+    @Override
+    public boolean usesIMU() {
+        return useIMU;
+    }
+
     @Override
     public String getName() {
         return String.format("Binocular2dSVDPoseEstimator%s", useIMU ? "IMU" : "");
@@ -57,6 +62,15 @@ public class Binocular2dSVDPoseEstimator extends BasePoseEstimator {
     public Mat getPose(double heading, MatOfPoint3f targetPoints, MatOfPoint2f[] imagePoints) {
         MatOfPoint2f leftPts = imagePoints[0];
         MatOfPoint2f rightPts = imagePoints[1];
+        if (getRobust()) {
+            RansacRigid2d.Selection inliers = RansacRigid2d.select(targetPoints, leftPts, rightPts, b, f, cx,
+                    useIMU, heading);
+            if (inliers == null)
+                return null;
+            targetPoints = inliers.target;
+            leftPts = inliers.left;
+            rightPts = inliers.right;
+        }
         log.debug(2, "leftPts", leftPts);
         log.debug(2, "rightPts", rightPts);
 
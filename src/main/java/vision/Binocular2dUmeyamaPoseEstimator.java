@@ -1,9 +1,5 @@
 package vision;
 
-import java.util.function.BinaryOperator;
-import java.util.function.Function;
-
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
@@ -13,6 +9,9 @@ import org.opencv.core.Size;
 
 /**
  * use the umeyama method in 2d. works pretty well within a few meters.
+ * 
+ * @see MyCalib3d#estimateRigid2D(double[], double[], boolean[], int, double,
+ *      double[])
  */
 public class Binocular2dUmeyamaPoseEstimator extends BasePoseEstimator {
     static final boolean DEBUG = false;
@@ -30,6 +29,11 @@ public class Binocular2dUmeyamaPoseEstimator extends BasePoseEstimator {
         this.useIMU = useIMU;
     }
 
+    @Override
+    public boolean usesIMU() {
+        return useIMU;
+    }
+
     @Override
     public String getName() {
         return String.format("Binocular2dUmeyamaPoseEstimator%s", useIMU ? "IMU" : "");
@@ -66,159 +70,104 @@ public class Binocular2dUmeyamaPoseEstimator extends BasePoseEstimator {
     public Mat getPose(double heading, MatOfPoint3f targetPoints, MatOfPoint2f[] imagePoints) {
         MatOfPoint2f leftPts = imagePoints[0];
         MatOfPoint2f rightPts = imagePoints[1];
+        final int count = (int) targetPoints.total();
+        if (leftPts.total() != count || rightPts.total() != count)
+            throw new IllegalArgumentException("Point sets need to have the same size");
 
-        // To solve Ax=b triangulation, first make b:
-        Mat bMat = VisionUtil.makeBMat2d(leftPts, rightPts, b, f, cx);
-        debug(1, "bMat (b data)", bMat);
+        Scratch scratch = scratch(count);
+        leftPts.get(0, 0, scratch.left);
+        rightPts.get(0, 0, scratch.right);
+        targetPoints.get(0, 0, scratch.target);
+
+        int n = count;
+        if (getRobust()) {
+            boolean[] inliers = RansacRigid2d.inliers(count);
+            n = RansacRigid2d.findInliers(scratch.left, scratch.right, scratch.target, count, b, f, cx, useIMU,
+                    heading, RansacRigid2d.THRESHOLD_PIXELS, inliers);
+            if (n < RansacRigid2d.MIN_INLIERS)
+                return null;
+            if (n < count) {
+                RansacRigid2d.compact(scratch.left, 2, inliers, count);
+                RansacRigid2d.compact(scratch.right, 2, inliers, count);
+                RansacRigid2d.compact(scratch.target, 3, inliers, count);
+            }
+        }
 
-        // ... and x: (X, Z, 1):
-        Mat XMat = VisionUtil.makeXMat2d(targetPoints);
-        debug(1, "XMat (x data)", XMat);
+        // rmat and tmat, 2x3, row-major
+        double[] rt = scratch.rt;
+        solve(scratch.left, scratch.right, scratch.target, n, b, f, cx, useIMU, heading, scratch.from, scratch.to,
+                rt);
+        debug(0, "euler", Math.atan2(rt[3], rt[0]));
 
-        Mat from = Mat.zeros(2, XMat.cols(), CvType.CV_64F);
-        for (int col = 0; col < XMat.cols(); ++col) {
-            from.put(0, col, XMat.get(0, col)[0]);
-            from.put(1, col, XMat.get(1, col)[0]);
-        }
-        from = from.t();
-        debug(0, "from", from);
-        // Mat from = targetPointsMultipliedXZHomogeneousMat.t();
-
-        Mat to = Mat.zeros(2, bMat.cols(), CvType.CV_64F);
-        for (int col = 0; col < bMat.cols(); ++col) {
-            to.put(0, col, bMat.get(0, col)[0]);
-            to.put(1, col, bMat.get(1, col)[0]);
-        }
-        to = to.t();
-        debug(0, "to", to);
+        Mat transform = Mat.zeros(3, 4, CvType.CV_64F);
+        transform.put(0, 0,
+                rt[0], 0, rt[1], rt[2],
+                0, 1, 0, 0,
+                rt[3], 0, rt[4], rt[5]);
 
-        // Mat to = TinvMinvBmat.t();
+        return transform;
+    }
 
-        final int count = from.checkVector(2);
+    /**
+     * Triangulate each corner pair and fit the 2d rigid transform from the
+     * target's (x, z) to the triangulated (x, z), without Mats.
+     * 
+     * The triangulation is what VisionUtil.makeBMat2d computes with matrices:
+     * with disparity d = uL - uR, z = b f / d and x = b (uL + uR - 2 cx) / 2d.
+     * The fit is MyCalib3d.estimateRigid2D, shared with RansacRigid2d's refit;
+     * it's a second pass, over the (x, z) pairs, but that's a few dozen flops.
+     * 
+     * @param left    image points in the left camera, (u, v) pairs
+     * @param right   image points in the right camera
+     * @param target  target points, (x, y, z) triples
+     * @param useIMU  true = use the heading instead of the fitted rotation
+     * @param from    scratch, at least 2 * count, for the target (x, z)
+     * @param to      scratch, at least 2 * count, for the triangulated (x, z)
+     * @param rt      2x3 row-major result
+     */
+    static void solve(float[] left, float[] right, float[] target, int count, double b, double f, double cx,
+            boolean useIMU, double heading, double[] from, double[] to, double[] rt) {
         if (count < 3)
             throw new IllegalArgumentException(
                     "Umeyama algorithm needs at least 3 points for affine transformation estimation.");
-        if (to.checkVector(2) != count)
-            throw new IllegalArgumentException("Point sets need to have the same size");
-        final double one_over_n = 1. / count;
-
-        // yields a 3x1 vector (row) containing the means of each column
-        final Function<Mat, Mat> colwise_mean = /* [one_over_n] */(final Mat m) -> {
-            Mat my = new Mat();
-            Core.reduce(m, my, 0, Core.REDUCE_SUM, CvType.CV_64F);
-            // return my * one_over_n;
-            return my.mul(Mat.ones(my.size(), my.type()), one_over_n);
-        };
-
-        final BinaryOperator<Mat> demean = /* [count] */(final Mat A, final Mat mean) -> {
-            Mat A_centered = Mat.zeros(count, 2, CvType.CV_64F);
-            for (int i = 0; i < count; i++) { // i = columns == points
-                Mat foo = new Mat();
-
-                Core.subtract(A.row(i), mean, foo);
-
-                for (int j = 0; j < 2; j++) {
-                    // A_centered.row(i) = A.row(i) - mean;
-
-                    double d = foo.get(0, j)[0];
-                    A_centered.put(i, j, d);
-                }
-            }
-            return A_centered;
-        };
-
-        Mat from_mean = colwise_mean.apply(from); // 3x1 vector of col means
-
-        Mat to_mean = colwise_mean.apply(to); // 3x1 vector of col means
-
-        Mat from_centered = demean.apply(from, from_mean);
-        Mat to_centered = demean.apply(to, to_mean);
-
-        debug(0, "from_centered", from_centered);
-        debug(0, "to_centered", to_centered);
-
-        // Mat cov = to_centered.t() * from_centered * one_over_n;
-        Mat cov = new Mat();
-        Core.gemm(to_centered.t(), from_centered, one_over_n, new Mat(), 0.0, cov);
-        debug(0, "cov", cov);
-
-        Mat u = new Mat();
-        Mat d = new Mat();
-        Mat vt = new Mat();
-        Core.SVDecomp(cov, d, u, vt, Core.SVD_MODIFY_A | Core.SVD_FULL_UV);
-        debug(0, "u", u);
-        debug(0, "d", d);
-        debug(0, "vt", vt);
-
-        // if (Core.countNonZero(d) < 2)
-        // throw new IllegalArgumentException("Points cannot be colinear");
-
-        Mat S = Mat.eye(2, 2, CvType.CV_64F);
-        if (Core.determinant(u) * Core.determinant(vt) < 0) {
-            // S.at<double>(2, 2) = -1;
-            S.put(1, 1, -1);
+        for (int i = 0; i < count; ++i) {
+            double uL = left[2 * i];
+            double uR = right[2 * i];
+            double d = uL - uR;
+            from[2 * i] = target[3 * i];
+            from[2 * i + 1] = target[3 * i + 2];
+            to[2 * i] = b * (uL + uR - 2 * cx) / (2 * d);
+            to[2 * i + 1] = b * f / d;
         }
+        MyCalib3d.estimateRigid2D(from, to, null, count, useIMU ? heading : Double.NaN, rt);
+    }
 
-        Mat rmat = new Mat();
-        Core.gemm(S, vt, 1.0, new Mat(), 0.0, rmat);
-        Core.gemm(u, rmat, 1.0, new Mat(), 0.0, rmat);
-        double scale = 1.0;
-
-        if (useIMU) {
-            rmat = Mat.zeros(2, 2, CvType.CV_64F);
-            double c = Math.cos(heading);
-            double s = Math.sin(heading);
-            rmat.put(0, 0,
-                    c, -s,
-                    s, c);
-        }
+    /**
+     * Per-thread buffers for the points, so a solve doesn't allocate (except
+     * for the returned Mat).
+     */
+    static class Scratch {
+        float[] left = new float[0];
+        float[] right = new float[0];
+        float[] target = new float[0];
+        // (x, z) pairs, see solve()
+        double[] from = new double[0];
+        double[] to = new double[0];
+        final double[] rt = new double[6];
+    }
 
-        // Mat new_to = scale * rmat * from_mean.t();
-        Mat new_to = new Mat(); // 3x1 vector
-        Core.gemm(rmat, from_mean.t(), scale, new Mat(), 0.0, new_to);
-
-        // Mat transform = Mat.zeros(2, 3, CvType.CV_64F);
-        // Mat r_part = transform.submat(0, 2, 0, 2);
-        // rmat.copyTo(r_part);
-        // transform.col(3) = to_mean.t() - new_to;
-        // double euler = VisionUtil.rotm2euler2d(rmat);
-        // debug(0, "euler", euler);
-
-        // Mat t_part = transform.col(2);
-        Mat tmat = new Mat();
-        Core.subtract(to_mean.t(), new_to, tmat);
-        // tmat.copyTo(t_part);
-        // debug(0, "transform", transform);
-
-        /////////////////////////
-        /////////////////////////
-
-        // so now Ax=b where X is the world geometry and b is as prepared.
-        // Mat AA = VisionUtil.solve(XMat, bMat);
-
-        // Mat rmat = AA.submat(0, 2, 0, 2);
-        // debug(1, "rmat", rmat);
-
-        // double euler = VisionUtil.rotm2euler2d(rmat);
-        // debug(1, "euler", euler);
-
-        // "repairing" the rotation is an essential step, which seems crazy.
-        // rmat.put(0, 0,
-        // Math.cos(euler), -Math.sin(euler),
-        // Math.sin(euler), Math.cos(euler));
-        // debug(1, "rmat repaired", rmat);
-        //
-        // Mat cameraTVec = Mat.zeros(2, 1, CvType.CV_64F);
-        // cameraTVec.put(0, 0, AA.get(0, 2)[0], AA.get(1, 2)[0]);
-        // debug(1, "cameraTVec", cameraTVec);
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
 
-        Mat transform = Mat.zeros(3, 4, CvType.CV_64F);
-        transform.put(0, 0,
-                rmat.get(0, 0)[0], 0, rmat.get(0, 1)[0], tmat.get(0, 0)[0],
-                0, 1, 0, 0,
-                rmat.get(1, 0)[0], 0, rmat.get(1, 1)[0], tmat.get(1, 0)[0]);
-
-        return transform;
+    private Scratch scratch(int count) {
+        Scratch result = scratch.get();
+        if (result.left.length != 2 * count) {
+            result.left = new float[2 * count];
+            result.right = new float[2 * count];
+            result.target = new float[3 * count];
+            result.from = new double[2 * count];
+            result.to = new double[2 * count];
+        }
+        return result;
     }
 
     @Override
@@ -1,10 +1,5 @@
 package vision;
 
-import java.util.function.BinaryOperator;
-import java.util.function.Function;
-
-import org.opencv.calib3d.Calib3d;
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
@@ -38,6 +33,11 @@ public class BinocularConstrainedPoseEstimator extends BasePoseEstimator {
         this.useIMU = useIMU;
     }
 
+    @Override
+    public boolean usesIMU() {
+        return useIMU;
+    }
+
     @Override
     public String getName() {
         return String.format("BinocularConstrainedPoseEstimator%s", useIMU ? "IMU" : "");
@@ -66,6 +66,15 @@ public class BinocularConstrainedPoseEstimator extends BasePoseEstimator {
             throw new IllegalArgumentException();
         MatOfPoint2f leftPts = imagePoints[0];
         MatOfPoint2f rightPts = imagePoints[1];
+        if (getRobust()) {
+            RansacRigid2d.Selection inliers = RansacRigid2d.select(targetPoints, leftPts, rightPts, b, f, cx,
+                    useIMU, heading);
+            if (inliers == null)
+                return null;
+            targetPoints = inliers.target;
+            leftPts = inliers.left;
+            rightPts = inliers.right;
+        }
         debug(1, "leftPts", leftPts);
         debug(1, "rightPts", rightPts);
         //
@@ -80,82 +89,55 @@ public class BinocularConstrainedPoseEstimator extends BasePoseEstimator {
         debug(1, "XMat", XMat);
 
         // Ax=b : A(from) = (to)
-        // now cribbing from the Umeyama thing:
-        // first discard the homogeneous part
-        Mat from = new Mat();
-        Calib3d.convertPointsFromHomogeneous(XMat, from);
-        // points in rows
-        from = from.reshape(1);
-        debug(1, "from", from);
-        // System.out.println(from.type());
-        // System.out.println(from.size());
-
-        final int count = from.checkVector(3); // 4 points
-        // System.out.println(count);
-
-        Mat to = new Mat();
-        Calib3d.convertPointsFromHomogeneous(bMat.t(), to);
-        // points in rows
-        to = to.reshape(1);
-        debug(1, "to", to);
-        // System.out.println(to.type());
-        // System.out.println(to.size());
-        // System.out.println(to.checkVector(3));
-
-        final double one_over_n = 1. / count;
-        debug(1, "one over n", one_over_n);
-
-        // yields a 3x1 vector (row) containing the means of each column
-        final Function<Mat, Mat> colwise_mean = /* [one_over_n] */(final Mat m) -> {
-            Mat my = new Mat();
-            Core.reduce(m, my, 0, Core.REDUCE_SUM, CvType.CV_64F);
-            // return my * one_over_n;
-            return my.mul(Mat.ones(my.size(), my.type()), one_over_n);
-        };
-
-        // just subtracts the "mean" from the rows in A.
-        final BinaryOperator<Mat> demean = /* [count] */(final Mat A, final Mat mean) -> {
-            Mat A_centered = Mat.zeros(count, 3, CvType.CV_64F);
-            for (int i = 0; i < count; i++) { // i = columns == points
-                Mat foo = new Mat();
-                Core.subtract(A.row(i), mean, foo);
-                for (int j = 0; j < 3; j++) {
-                    // A_centered.row(i) = A.row(i) - mean;
-                    double d = foo.get(0, j)[0];
-                    A_centered.put(i, j, d);
-                }
+        // now cribbing from the Umeyama thing, using primitive arrays:
+        // first discard the homogeneous part, points packed x, y, z.
+        final int count = XMat.rows(); // 4 points
+        if (bMat.cols() != count)
+            throw new IllegalArgumentException("Point sets need to have the same size");
+        double[] XData = new double[4 * count];
+        XMat.get(0, 0, XData);
+        double[] bData = new double[4 * count];
+        bMat.get(0, 0, bData);
+        double[] from = new double[3 * count];
+        double[] to = new double[3 * count];
+        for (int i = 0; i < count; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                // XMat has points in rows, bMat in columns, both are normalized.
+                from[3 * i + j] = XData[4 * i + j];
+                to[3 * i + j] = bData[j * count + i];
             }
-            return A_centered;
-        };
+        }
 
         // these are the centroids of the actual and projected points
-        Mat from_mean = colwise_mean.apply(from); // 3x1 vector of col means
-        debug(1, "from mean", from_mean);
-        Mat to_mean = colwise_mean.apply(to); // 3x1 vector of col means
-        debug(1, "to mean", to_mean);
-
-        // translate the from and to vectors so mean is zero
-        Mat from_centered = demean.apply(from, from_mean);
-        debug(1, "from centered", from_centered);
-        Mat to_centered = demean.apply(to, to_mean);
-        debug(1, "to centered", to_centered);
-
-        Mat cov = new Mat();
-        Core.gemm(to_centered.t(), from_centered, one_over_n, new Mat(), 0.0, cov);
-        debug(1, "cov", cov);
-
-        // try reprojecting
-        Mat reproj = new Mat();
-        Mat eye = Mat.eye(3, 3, CvType.CV_64F);
-        Core.gemm(eye, from_centered.t(), 1.0, new Mat(), 0.0, reproj);
-        debug(1, "reproj without rotation", reproj.t());
-        debug(1, "to centered", to_centered);
+        double[] from_mean = new double[3];
+        double[] to_mean = new double[3];
+        for (int i = 0; i < count; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                from_mean[j] += from[3 * i + j];
+                to_mean[j] += to[3 * i + j];
+            }
+        }
+        for (int j = 0; j < 3; ++j) {
+            from_mean[j] /= count;
+            to_mean[j] /= count;
+        }
+        debug(1, "from mean x", from_mean[0]);
+        debug(1, "to mean x", to_mean[0]);
+
+        // translate the from and to vectors so mean is zero, in place.
+        for (int i = 0; i < count; ++i) {
+            for (int j = 0; j < 3; ++j) {
+                from[3 * i + j] -= from_mean[j];
+                to[3 * i + j] -= to_mean[j];
+            }
+        }
 
         double rot = 0.0;
         if (useIMU) {
             rot = heading;
         } else {
-            double averageAngleDiff = VisionUtil.averageAngularError(to_centered, reproj.t());
+            // the centered "from" is the reprojection without rotation.
+            double averageAngleDiff = VisionUtil.averageAngularError(to, from, count);
             debug(1, "averageAngleDiff", averageAngleDiff);
             rot = averageAngleDiff;
         }
@@ -165,31 +147,12 @@ public class BinocularConstrainedPoseEstimator extends BasePoseEstimator {
         double c = Math.cos(rot);
         double s = Math.sin(rot);
 
-        Mat newR = Mat.zeros(3, 3, CvType.CV_64F);
-        newR.put(0, 0,
-                c, 0, -s,
-                0, 1, 0,
-                s, 0, c);
-
-        // try reprojecting again
-        // Core.gemm(newR, from_centered.t(), 1.0, new Mat(), 0.0, reproj);
-        // debug(1, "reproj with rotation", reproj.t());
-        // debug(1, "to centered", to_centered);
-
-        ////////////
-
-        Mat rmat = newR;
-        Mat new_to = new Mat();
-        Core.gemm(rmat, from_mean.t(), 1.0, new Mat(), 0.0, new_to);
-
+        // transform.col(3) = to_mean.t() - rmat * from_mean
         Mat transform = Mat.zeros(3, 4, CvType.CV_64F);
-        Mat r_part = transform.submat(0, 3, 0, 3);
-        rmat.copyTo(r_part);
-        // transform.col(3) = to_mean.t() - new_to;
-        Mat t_part = transform.col(3);
-        Mat tmat = new Mat();
-        Core.subtract(to_mean.t(), new_to, tmat);
-        tmat.copyTo(t_part);
+        transform.put(0, 0,
+                c, 0, -s, to_mean[0] - (c * from_mean[0] - s * from_mean[2]),
+                0, 1, 0, to_mean[1] - from_mean[1],
+                s, 0, c, to_mean[2] - (s * from_mean[0] + c * from_mean[2]));
         debug(1, "transform", transform);
         return transform;
     }
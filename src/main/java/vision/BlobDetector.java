@@ -0,0 +1,302 @@
+package vision;
+
+import java.util.Arrays;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+
+import vision.StageTimings.Stage;
+
+/**
+ * A replacement for threshold + findContours + approxPolyDP, for bright
+ * targets on a dark background: one row-major pass over the pixels finds the
+ * runs above the threshold, labels them by connecting each run to the
+ * overlapping (8-connected) runs in the row above with union-find, and keeps
+ * area, bounds, and extreme points per label. The corners are the extreme
+ * points of x + y and x - y, which is right for targets that aren't turned
+ * much more than 45 degrees in the image.
+ *
+ * Nothing is allocated per frame except the result; the scratch arrays belong
+ * to the thread and grow as needed.
+ */
+public class BlobDetector {
+    final static Log log = new Log(2, BlobDetector.class.getName());
+
+    // blobs this small are noise, the same as the contour path.
+    static final int MIN_AREA = 10;
+    // the corners' quad must cover this much of the blob, otherwise it isn't a
+    // quadrilateral (e.g. a circle covers 2/pi).
+    static final double MIN_FILL = 0.7;
+
+    /** One connected component; valid after {@link Scratch#label}. */
+    static class Blob {
+        int area;
+        int minX;
+        int minY;
+        int maxX;
+        int maxY;
+        // extreme points, {x, y}: min and max of x + y, min and max of x - y.
+        final int[] minSum = new int[2];
+        final int[] maxSum = new int[2];
+        final int[] minDiff = new int[2];
+        final int[] maxDiff = new int[2];
+
+        /**
+         * @return upper-left, lower-left, lower-right, upper-right, the same
+         *         order as the target geometry
+         */
+        Point[] corners() {
+            return new Point[] {
+                    new Point(minSum[0], minSum[1]),
+                    new Point(minDiff[0], minDiff[1]),
+                    new Point(maxSum[0], maxSum[1]),
+                    new Point(maxDiff[0], maxDiff[1]) };
+        }
+
+        /** area of the corners' quad over the blob's area */
+        double fill() {
+            Point[] c = corners();
+            double twiceArea = 0;
+            for (int i = 0; i < c.length; ++i) {
+                Point p0 = c[i];
+                Point p1 = c[(i + 1) % c.length];
+                twiceArea += p0.x * p1.y - p1.x * p0.y;
+            }
+            return Math.abs(twiceArea) / 2 / area;
+        }
+    }
+
+    /** Per-thread buffers. */
+    static class Scratch {
+        byte[] pixels = new byte[0];
+        // runs in the previous and current rows: start, end (inclusive), label
+        int[] prevRuns = new int[0];
+        int[] runs = new int[0];
+        int[] parent = new int[64];
+        // per label, merged into the root: area, minX, minY, maxX, maxY,
+        // minSum, minSumX, minSumY, maxSum, maxSumX, maxSumY, minDiff,
+        // minDiffX, minDiffY, maxDiff, maxDiffX, maxDiffY.
+        static final int STATS = 17;
+        int[] stats = new int[64 * STATS];
+        int labels;
+
+        /**
+         * Label the pixels above the threshold.
+         *
+         * @param pixels   row-major, interleaved channels; only the first is
+         *                 used
+         * @param channels bytes per pixel
+         * @return the number of labels; the roots are the blobs
+         */
+        int label(byte[] pixels, int cols, int rows, int channels, int threshold) {
+            if (runs.length < 3 * (cols / 2 + 1)) {
+                runs = new int[3 * (cols / 2 + 1)];
+                prevRuns = new int[runs.length];
+            }
+            labels = 0;
+            int prevCount = 0;
+            for (int y = 0; y < rows; ++y) {
+                int count = 0;
+                int row = y * cols * channels;
+                int x = 0;
+                while (x < cols) {
+                    if ((pixels[row + x * channels] & 0xff) <= threshold) {
+                        ++x;
+                        continue;
+                    }
+                    int start = x;
+                    while (x < cols && (pixels[row + x * channels] & 0xff) > threshold)
+                        ++x;
+                    int end = x - 1;
+                    int label = -1;
+                    // runs in the previous row touching [start - 1, end + 1]
+                    for (int i = 0; i < prevCount; ++i) {
+                        int prevStart = prevRuns[3 * i];
+                        int prevEnd = prevRuns[3 * i + 1];
+                        if (prevEnd < start - 1)
+                            continue;
+                        if (prevStart > end + 1)
+                            break;
+                        int other = find(prevRuns[3 * i + 2]);
+                        if (label < 0)
+                            label = other;
+                        else if (other != label)
+                            label = union(label, other);
+                    }
+                    if (label < 0)
+                        label = newLabel();
+                    addRun(label, start, end, y);
+                    runs[3 * count] = start;
+                    runs[3 * count + 1] = end;
+                    runs[3 * count + 2] = label;
+                    ++count;
+                }
+                int[] tmp = prevRuns;
+                prevRuns = runs;
+                runs = tmp;
+                prevCount = count;
+            }
+            return labels;
+        }
+
+        int find(int label) {
+            while (parent[label] != label) {
+                parent[label] = parent[parent[label]];
+                label = parent[label];
+            }
+            return label;
+        }
+
+        /** @return the surviving root */
+        int union(int a, int b) {
+            int[] s = stats;
+            int keep = s[a * STATS] >= s[b * STATS] ? a : b;
+            int drop = keep == a ? b : a;
+            parent[drop] = keep;
+            int k = keep * STATS;
+            int d = drop * STATS;
+            s[k] += s[d];
+            s[k + 1] = Math.min(s[k + 1], s[d + 1]);
+            s[k + 2] = Math.min(s[k + 2], s[d + 2]);
+            s[k + 3] = Math.max(s[k + 3], s[d + 3]);
+            s[k + 4] = Math.max(s[k + 4], s[d + 4]);
+            if (s[d + 5] < s[k + 5])
+                System.arraycopy(s, d + 5, s, k + 5, 3);
+            if (s[d + 8] > s[k + 8])
+                System.arraycopy(s, d + 8, s, k + 8, 3);
+            if (s[d + 11] < s[k + 11])
+                System.arraycopy(s, d + 11, s, k + 11, 3);
+            if (s[d + 14] > s[k + 14])
+                System.arraycopy(s, d + 14, s, k + 14, 3);
+            return keep;
+        }
+
+        int newLabel() {
+            if (labels == parent.length) {
+                parent = Arrays.copyOf(parent, 2 * labels);
+                stats = Arrays.copyOf(stats, 2 * labels * STATS);
+            }
+            int label = labels++;
+            parent[label] = label;
+            int k = label * STATS;
+            stats[k] = 0;
+            stats[k + 1] = Integer.MAX_VALUE;
+            stats[k + 2] = Integer.MAX_VALUE;
+            stats[k + 3] = Integer.MIN_VALUE;
+            stats[k + 4] = Integer.MIN_VALUE;
+            stats[k + 5] = Integer.MAX_VALUE;
+            stats[k + 8] = Integer.MIN_VALUE;
+            stats[k + 11] = Integer.MAX_VALUE;
+            stats[k + 14] = Integer.MIN_VALUE;
+            return label;
+        }
+
+        /** the run's extremes are at its ends */
+        void addRun(int label, int start, int end, int y) {
+            int[] s = stats;
+            int k = label * STATS;
+            s[k] += end - start + 1;
+            s[k + 1] = Math.min(s[k + 1], start);
+            s[k + 2] = Math.min(s[k + 2], y);
+            s[k + 3] = Math.max(s[k + 3], end);
+            s[k + 4] = Math.max(s[k + 4], y);
+            if (start + y < s[k + 5]) {
+                s[k + 5] = start + y;
+                s[k + 6] = start;
+                s[k + 7] = y;
+            }
+            if (end + y > s[k + 8]) {
+                s[k + 8] = end + y;
+                s[k + 9] = end;
+                s[k + 10] = y;
+            }
+            if (start - y < s[k + 11]) {
+                s[k + 11] = start - y;
+                s[k + 12] = start;
+                s[k + 13] = y;
+            }
+            if (end - y > s[k + 14]) {
+                s[k + 14] = end - y;
+                s[k + 15] = end;
+                s[k + 16] = y;
+            }
+        }
+
+        /** copy a root's stats out */
+        void get(int label, Blob blob) {
+            int[] s = stats;
+            int k = label * STATS;
+            blob.area = s[k];
+            blob.minX = s[k + 1];
+            blob.minY = s[k + 2];
+            blob.maxX = s[k + 3];
+            blob.maxY = s[k + 4];
+            blob.minSum[0] = s[k + 6];
+            blob.minSum[1] = s[k + 7];
+            blob.maxSum[0] = s[k + 9];
+            blob.maxSum[1] = s[k + 10];
+            blob.minDiff[0] = s[k + 12];
+            blob.minDiff[1] = s[k + 13];
+            blob.maxDiff[0] = s[k + 15];
+            blob.maxDiff[1] = s[k + 16];
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private BlobDetector() {
+    }
+
+    /**
+     * Like
+     * {@link VisionUtil#findTargetCornersInImage(int, boolean, Mat, int, MatPool, StageTimings, boolean)}:
+     * exactly one blob bigger than {@link #MIN_AREA}, which must be a
+     * quadrilateral.
+     *
+     * @param image  8-bit; only the first channel is used
+     * @param refine true = subpixel corners, see {@link CornerRefiner}
+     * @return the corners, upper-left first, in the same order as the target
+     *         geometry, or null
+     */
+    public static MatOfPoint2f findTargetCorners(Mat image, int threshold, StageTimings timings, boolean refine) {
+        long t = System.nanoTime();
+        Scratch s = scratch.get();
+        int cols = image.cols();
+        int rows = image.rows();
+        int channels = image.channels();
+        int size = cols * rows * channels;
+        if (s.pixels.length < size || s.pixels.length % channels != 0)
+            s.pixels = new byte[size];
+        // a region (submat) isn't continuous, but get() copies it row by row.
+        image.get(0, 0, s.pixels);
+        int labels = s.label(s.pixels, cols, rows, channels, threshold);
+        Blob blob = null;
+        for (int label = 0; label < labels; ++label) {
+            if (s.parent[label] != label || s.stats[label * Scratch.STATS] <= MIN_AREA)
+                continue;
+            if (blob != null) {
+                log.debugmsg(2, "more than one blob");
+                timings.lap(Stage.LABEL, t);
+                return null;
+            }
+            blob = new Blob();
+            s.get(label, blob);
+        }
+        t = timings.lap(Stage.LABEL, t);
+        if (blob == null) {
+            log.debugmsg(2, "no blobs!");
+            return null;
+        }
+        if (blob.fill() < MIN_FILL) {
+            log.debug(2, "not a quadrilateral, fill", blob.fill());
+            return null;
+        }
+        MatOfPoint2f corners = new MatOfPoint2f(blob.corners());
+        if (refine) {
+            CornerRefiner.refine(image, corners);
+            timings.lap(Stage.REFINE, t);
+        }
+        return corners;
+    }
+}
@@ -49,6 +49,12 @@ public class ConstantPoseEstimator extends BasePoseEstimator {
         return pose;
     }
 
+    /** The origin says nothing about where the robot is. */
+    @Override
+    public double[] getCovariance(Mat pose, MatOfPoint3f targetPoints) {
+        return null;
+    }
+
     @Override
     public double[] getXOffsets() {
         return new double[] { 0.0 };
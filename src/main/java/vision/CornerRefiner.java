@@ -0,0 +1,259 @@
+package vision;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+
+/**
+ * Moves the integer-pixel corners from approxPolyDP to subpixel positions.
+ *
+ * For each side of the quad, the grayscale (not thresholded) image is sampled
+ * across the edge at a few places away from the corners; each profile gives
+ * one subpixel edge point, where the brightness crosses halfway between the
+ * dark and bright sides. A least-squares line through those points replaces
+ * the side, and each corner is the intersection of its two sides.
+ *
+ * The work is bounded regardless of target size: at most
+ * {@link #MAX_SAMPLES} profiles per side, each within a small patch of
+ * (2 * {@link #RADIUS} + 3) squared pixels. The pixels around the quad are
+ * copied out of the image once per call, into a per-thread buffer, so
+ * refining doesn't make a native Mat per profile.
+ *
+ * Works on the first channel of the image.
+ */
+public class CornerRefiner {
+    // profile half-length, pixels; also the farthest a corner may move.
+    static final int RADIUS = 4;
+    // profiles per side
+    static final int MAX_SAMPLES = 16;
+    // sides shorter than this are left alone, pixels
+    static final double MIN_SIDE = 8;
+    // profile spacing along the normal, pixels
+    static final double STEP = 0.25;
+    // a profile must span at least this many gray levels to have an edge
+    static final int MIN_CONTRAST = 40;
+
+    private static final int PATCH = 2 * RADIUS + 3;
+    // profile samples
+    private static final int STEPS = (int) (2 * RADIUS / STEP) + 1;
+
+    /**
+     * Per-thread buffers.
+     */
+    static class Scratch {
+        // the pixels around the quad
+        byte[] region = new byte[0];
+        final double[] profile = new double[STEPS];
+        final double[] xs = new double[MAX_SAMPLES];
+        final double[] ys = new double[MAX_SAMPLES];
+
+        byte[] region(int length) {
+            if (region.length < length) {
+                // Mat.get() wants a multiple of the channel count; 12 covers
+                // 1 to 4 channels.
+                region = new byte[(length + 11) / 12 * 12];
+            }
+            return region;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private CornerRefiner() {
+    }
+
+    /**
+     * Refine the corners in place; if any side can't be fitted, the corners are
+     * left as they were.
+     *
+     * @param image   blurred grayscale, the same coordinates as the corners
+     * @param corners four corners, in order around the perimeter
+     * @return true if the corners were refined
+     */
+    public static boolean refine(Mat image, MatOfPoint2f corners) {
+        Point[] pts = corners.toArray();
+        if (pts.length != 4)
+            return false;
+        if (!refine(image, pts))
+            return false;
+        corners.fromArray(pts);
+        return true;
+    }
+
+    static boolean refine(Mat image, Point[] pts) {
+        int n = pts.length;
+        Scratch scratch = CornerRefiner.scratch.get();
+        // the bounding box, with room for every profile's patch, clamped to the
+        // image.
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (Point p : pts) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        int left = Math.max(0, (int) Math.floor(minX) - RADIUS - 1);
+        int top = Math.max(0, (int) Math.floor(minY) - RADIUS - 1);
+        int right = Math.min(image.cols(), (int) Math.floor(maxX) + RADIUS + 2);
+        int bottom = Math.min(image.rows(), (int) Math.floor(maxY) + RADIUS + 2);
+        if (right <= left || bottom <= top)
+            return false;
+        int width = right - left;
+        int channels = image.channels();
+        byte[] region = scratch.region(width * (bottom - top) * channels);
+        Mat roi = image.submat(top, bottom, left, right);
+        try {
+            roi.get(0, 0, region);
+        } finally {
+            roi.release();
+        }
+
+        // each side as a point and a unit direction
+        double[][] lines = new double[n][];
+        double[] xs = scratch.xs;
+        double[] ys = scratch.ys;
+        for (int i = 0; i < n; ++i) {
+            Point p0 = pts[i];
+            Point p1 = pts[(i + 1) % n];
+            double dx = p1.x - p0.x;
+            double dy = p1.y - p0.y;
+            double length = Math.hypot(dx, dy);
+            if (length < MIN_SIDE)
+                return false;
+            double nx = -dy / length;
+            double ny = dx / length;
+            int samples = Math.min(MAX_SAMPLES, (int) (length / 2));
+            int found = 0;
+            for (int k = 0; k < samples; ++k) {
+                // stay off the corners, which are rounded by the blur
+                double t = 0.2 + 0.6 * (k + 0.5) / samples;
+                double px = p0.x + t * dx;
+                double py = p0.y + t * dy;
+                int x0 = (int) Math.floor(px) - RADIUS - 1;
+                int y0 = (int) Math.floor(py) - RADIUS - 1;
+                if (x0 < left || y0 < top || x0 + PATCH > right || y0 + PATCH > bottom)
+                    continue;
+                double s = edgeOffset(region, width, channels, px - left, py - top, nx, ny, scratch.profile);
+                if (Double.isNaN(s))
+                    continue;
+                xs[found] = px + s * nx;
+                ys[found] = py + s * ny;
+                ++found;
+            }
+            if (found < 3)
+                return false;
+            lines[i] = fitLine(xs, ys, found);
+        }
+        Point[] refined = new Point[n];
+        for (int i = 0; i < n; ++i) {
+            // corner i is where the previous side meets this one
+            Point p = intersect(lines[(i + n - 1) % n], lines[i]);
+            if (p == null || Math.hypot(p.x - pts[i].x, p.y - pts[i].y) > RADIUS)
+                return false;
+            refined[i] = p;
+        }
+        System.arraycopy(refined, 0, pts, 0, n);
+        return true;
+    }
+
+    /**
+     * Sample the pixels along the normal through (px, py) and find the
+     * half-contrast crossing nearest the middle.
+     *
+     * @param pixels   row-major, interleaved channels
+     * @param width    pixels per row
+     * @param px       coordinates in the pixels, at least RADIUS + 1 from
+     *                 the edges
+     * @param nx       unit normal
+     * @param profile  scratch, STEPS long
+     * @return distance along the normal, or NaN if there's no edge
+     */
+    static double edgeOffset(byte[] pixels, int width, int channels, double px, double py, double nx,
+            double ny, double[] profile) {
+        int steps = STEPS;
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (int j = 0; j < steps; ++j) {
+            double s = -RADIUS + j * STEP;
+            double v = bilinear(pixels, width, channels, px + s * nx, py + s * ny);
+            profile[j] = v;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        if (max - min < MIN_CONTRAST)
+            return Double.NaN;
+        double mid = (min + max) / 2;
+        double best = Double.NaN;
+        for (int j = 1; j < steps; ++j) {
+            double a = profile[j - 1] - mid;
+            double b = profile[j] - mid;
+            if ((a < 0) == (b < 0))
+                continue;
+            double s = -RADIUS + (j - 1 + a / (a - b)) * STEP;
+            if (Double.isNaN(best) || Math.abs(s) < Math.abs(best))
+                best = s;
+        }
+        return best;
+    }
+
+    /**
+     * Pixel (i, j) is centered on (i, j); the caller keeps (x, y) at least one
+     * pixel inside the pixels.
+     */
+    static double bilinear(byte[] pixels, int width, int channels, double x, double y) {
+        int ix = (int) Math.floor(x);
+        int iy = (int) Math.floor(y);
+        double fx = x - ix;
+        double fy = y - iy;
+        int i = (iy * width + ix) * channels;
+        int row = width * channels;
+        double v00 = pixels[i] & 0xff;
+        double v01 = pixels[i + channels] & 0xff;
+        double v10 = pixels[i + row] & 0xff;
+        double v11 = pixels[i + row + channels] & 0xff;
+        return (1 - fy) * ((1 - fx) * v00 + fx * v01) + fy * ((1 - fx) * v10 + fx * v11);
+    }
+
+    /**
+     * Total least squares: the line through the centroid along the principal
+     * axis.
+     *
+     * @return {x, y, dx, dy}
+     */
+    static double[] fitLine(double[] xs, double[] ys, int count) {
+        double mx = 0;
+        double my = 0;
+        for (int i = 0; i < count; ++i) {
+            mx += xs[i];
+            my += ys[i];
+        }
+        mx /= count;
+        my /= count;
+        double sxx = 0;
+        double sxy = 0;
+        double syy = 0;
+        for (int i = 0; i < count; ++i) {
+            double x = xs[i] - mx;
+            double y = ys[i] - my;
+            sxx += x * x;
+            sxy += x * y;
+            syy += y * y;
+        }
+        double theta = 0.5 * Math.atan2(2 * sxy, sxx - syy);
+        return new double[] { mx, my, Math.cos(theta), Math.sin(theta) };
+    }
+
+    /**
+     * @return the intersection, or null if the lines are nearly parallel
+     */
+    static Point intersect(double[] a, double[] b) {
+        double cross = a[2] * b[3] - a[3] * b[2];
+        if (Math.abs(cross) < 1e-3)
+            return null;
+        double t = ((b[0] - a[0]) * b[3] - (b[1] - a[1]) * b[2]) / cross;
+        return new Point(a[0] + t * a[2], a[1] + t * a[3]);
+    }
+}
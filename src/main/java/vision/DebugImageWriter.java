@@ -0,0 +1,170 @@
+package vision;
+
+import java.io.File;
+import java.util.ArrayDeque;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Writes debug images on a background thread, so the vision thread only pays
+ * for a copy.
+ *
+ * The queue is bounded; when it's full the oldest image is dropped, so a slow
+ * disk never stalls the caller. Images can also be sampled, i.e. only every Nth
+ * frame is written.
+ *
+ * The default instance writes to the directory in the "vision.debugDir"
+ * system property (or "vision-pics" in the temp directory), sampling every
+ * "vision.debugEvery" frames (default 1).
+ */
+public class DebugImageWriter {
+    final static Log log = new Log(2, DebugImageWriter.class.getName());
+
+    private static DebugImageWriter defaultWriter;
+
+    private final File directory;
+    private final int capacity;
+    private final int sampleEvery;
+
+    // guarded by this
+    private final ArrayDeque<String> names = new ArrayDeque<String>();
+    private final ArrayDeque<Mat> images = new ArrayDeque<Mat>();
+    private int inFlight = 0;
+    private long written = 0;
+    private long dropped = 0;
+    private Thread thread;
+
+    /**
+     * @param directory   where to put the files
+     * @param capacity    maximum number of queued images
+     * @param sampleEvery write only frames that are a multiple of this
+     */
+    public DebugImageWriter(File directory, int capacity, int sampleEvery) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        if (sampleEvery < 1)
+            throw new IllegalArgumentException("sampleEvery must be positive");
+        this.directory = directory;
+        this.capacity = capacity;
+        this.sampleEvery = sampleEvery;
+    }
+
+    public static synchronized DebugImageWriter getDefault() {
+        if (defaultWriter == null) {
+            String dir = System.getProperty("vision.debugDir",
+                    new File(System.getProperty("java.io.tmpdir"), "vision-pics").getPath());
+            int every = Integer.getInteger("vision.debugEvery", 1);
+            defaultWriter = new DebugImageWriter(new File(dir), 64, every);
+        }
+        return defaultWriter;
+    }
+
+    /**
+     * @return true if this frame should be written at all; check this before
+     *         doing any work just for the debug image.
+     */
+    public boolean sample(int frame) {
+        return frame % sampleEvery == 0;
+    }
+
+    /**
+     * Queue a copy of the image, if the frame is sampled.
+     *
+     * @param frame    frame index, for sampling
+     * @param filename name within the directory, e.g. "target-3-raw.png"
+     */
+    public void write(int frame, String filename, Mat image) {
+        if (!sample(frame))
+            return;
+        enqueue(filename, image.clone());
+    }
+
+    /**
+     * Queue the image itself, without copying it; the writer owns it (and
+     * releases it) afterwards.
+     */
+    public void writeOwned(int frame, String filename, Mat image) {
+        if (!sample(frame)) {
+            image.release();
+            return;
+        }
+        enqueue(filename, image);
+    }
+
+    /**
+     * Wait for everything queued so far to be written.
+     */
+    public synchronized void flush() throws InterruptedException {
+        while (!images.isEmpty() || inFlight > 0) {
+            wait();
+        }
+    }
+
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private synchronized void enqueue(String filename, Mat image) {
+        if (images.size() >= capacity) {
+            names.pollFirst();
+            images.pollFirst().release();
+            ++dropped;
+        }
+        names.addLast(filename);
+        images.addLast(image);
+        if (thread == null) {
+            thread = new Thread(this::run, "DebugImageWriter");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    private void run() {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            log.debugmsg(3, "can't make directory " + directory);
+        while (true) {
+            String filename;
+            Mat image;
+            synchronized (this) {
+                while (images.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                filename = names.pollFirst();
+                image = images.pollFirst();
+                ++inFlight;
+            }
+            boolean ok = false;
+            try {
+                ok = Imgcodecs.imwrite(new File(directory, filename).getPath(), image);
+                if (!ok)
+                    log.debugmsg(3, "write failed " + filename);
+            } catch (RuntimeException e) {
+                log.debugmsg(3, "write failed " + filename + " " + e.getMessage());
+            } finally {
+                image.release();
+                synchronized (this) {
+                    --inFlight;
+                    if (ok)
+                        ++written;
+                    else
+                        ++dropped;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
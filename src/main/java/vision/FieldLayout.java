@@ -0,0 +1,108 @@
+package vision;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point3;
+
+/**
+ * The known targets on the field: a name and a pose for each, in field
+ * coordinates (the same axes as the single-target harness world: y down, a
+ * target with yaw 0 faces -z). All the targets are the same size.
+ */
+public class FieldLayout {
+    /**
+     * One target; its corners are in the same order as
+     * {@link VisionUtil#makeTargetGeometry3f(double, double)}.
+     */
+    public static class Target {
+        public final String name;
+        public final double x;
+        public final double y;
+        public final double z;
+        public final double yaw;
+        /** corners in field coordinates */
+        public final MatOfPoint3f corners;
+
+        Target(String name, double x, double y, double z, double yaw, MatOfPoint3f geometry) {
+            this.name = name;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.yaw = yaw;
+            double c = Math.cos(yaw);
+            double s = Math.sin(yaw);
+            Point3[] points = geometry.toArray();
+            for (int i = 0; i < points.length; ++i) {
+                Point3 p = points[i];
+                points[i] = new Point3(c * p.x + s * p.z + x, p.y + y, -s * p.x + c * p.z + z);
+            }
+            corners = new MatOfPoint3f(points);
+        }
+
+        /**
+         * Turn the camera position and heading relative to this target into field
+         * coordinates.
+         *
+         * @param pose {x, z, heading} relative to the target, see
+         *             {@link VisionUtil#transformToPose(org.opencv.core.Mat, double[])};
+         *             replaced with the field pose.
+         */
+        public void toField(double[] pose) {
+            double c = Math.cos(yaw);
+            double s = Math.sin(yaw);
+            double px = pose[0];
+            double pz = pose[1];
+            pose[0] = c * px + s * pz + x;
+            pose[1] = -s * px + c * pz + z;
+            pose[2] = pose[2] + yaw;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final MatOfPoint3f geometry;
+    private final List<Target> targets = new ArrayList<Target>();
+
+    /**
+     * @param width  target width, meters
+     * @param height target height, meters
+     */
+    public FieldLayout(double width, double height) {
+        this.geometry = VisionUtil.makeTargetGeometry3f(width, height);
+    }
+
+    /**
+     * A target at the harness origin and two more, irregularly spaced and
+     * turned, so that one target plus the gyro is enough to tell which it is.
+     */
+    public static FieldLayout example() {
+        return new FieldLayout(0.5, 0.5)
+                .add("center", 0, 0, 0, 0)
+                .add("left", -1.5, 0, 0.5, 0.4)
+                .add("right", 2.2, 0, 0.8, -0.5);
+    }
+
+    /**
+     * @param yaw turn about y, radians; see
+     *            {@link VisionUtil#makeWorldToCameraHomogeneous(double, double, double, double)}
+     */
+    public FieldLayout add(String name, double x, double y, double z, double yaw) {
+        targets.add(new Target(name, x, y, z, yaw, geometry));
+        return this;
+    }
+
+    public List<Target> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    /** the corners of a target in its own frame */
+    public MatOfPoint3f getGeometry() {
+        return geometry;
+    }
+}
@@ -0,0 +1,341 @@
+package vision;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+import org.opencv.core.Size;
+
+import vision.StageTimings.Stage;
+
+/**
+ * One camera, any number of targets from a {@link FieldLayout}. Every
+ * quadrilateral in the image is a candidate; each one is solved on its own
+ * (solvePnP against the target geometry), which says where the camera would
+ * be if it were looking at each of the layout's targets. The assignment of
+ * candidates to targets that puts the most candidates in the same place wins,
+ * with ties going to the one whose heading is closest to the gyro, and then
+ * all the matched corners go into one solvePnP, in field coordinates.
+ *
+ * The transform is field-to-camera, the same as the single-target estimators
+ * when the field is just one target at the origin.
+ */
+public class FieldLayoutPoseEstimator extends BasePoseEstimator {
+    final static Log log = new Log(2, FieldLayoutPoseEstimator.class.getName());
+
+    // candidates that fit a quadrilateral worse than this are ignored
+    static final double MIN_SCORE = 0.8;
+    // candidates agree if their camera positions are this close, meters
+    static final double POSITION_GATE = 1.0;
+    // ... and their headings are this close, radians; with the IMU, this is
+    // also how far from the gyro a heading can be.
+    static final double HEADING_GATE = 0.3;
+
+    final double f = 985; // 2.8mm lens
+    final int height = 800;
+    final int width = 1280;
+    final Size dsize = new Size(width, height);
+    final Mat kMat = VisionUtil.makeIntrinsicMatrix(f, dsize);
+    final FieldLayout layout;
+    final boolean useIMU;
+
+    public FieldLayoutPoseEstimator(FieldLayout layout, boolean useIMU) {
+        this.layout = layout;
+        this.useIMU = useIMU;
+    }
+
+    @Override
+    public boolean usesIMU() {
+        return useIMU;
+    }
+
+    @Override
+    public String getName() {
+        return String.format("FieldLayoutPoseEstimator%s", useIMU ? "IMU" : "");
+    }
+
+    @Override
+    public String getDescription() {
+        return "Matches every target in view to a field layout, one solvePnP";
+    }
+
+    public FieldLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Every layout target the camera sees whole at the pose counts, whatever
+     * targetPoints is.
+     */
+    @Override
+    public double[] getCovariance(Mat pose, MatOfPoint3f targetPoints) {
+        List<FieldLayout.Target> targets = layout.getTargets();
+        MatOfPoint3f[] corners = new MatOfPoint3f[targets.size()];
+        for (int i = 0; i < corners.length; ++i) {
+            corners[i] = targets.get(i).corners;
+        }
+        return PoseCovariance.compute(pose, getIntrinsicMatrices(), getExtrinsics(), getSizes(), corners,
+                getPixelStdDev(), useIMU ? getHeadingStdDev() : Double.NaN);
+    }
+
+    @Override
+    public Mat[] getIntrinsicMatrices() {
+        return new Mat[] { kMat };
+    }
+
+    @Override
+    public MatOfDouble[] getDistortionMatrices() {
+        return new MatOfDouble[] { new MatOfDouble(Mat.zeros(4, 1, CvType.CV_64F)) };
+    }
+
+    @Override
+    public double[] getXOffsets() {
+        return new double[] { 0.0 };
+    }
+
+    @Override
+    public Size[] getSizes() {
+        return new Size[] { dsize };
+    }
+
+    @Override
+    public double[] getF() {
+        return new double[] { f };
+    }
+
+    @Override
+    public double[] getTilt() {
+        return new double[] { 0 };
+    }
+
+    /**
+     * The targetPoints are ignored; the targets come from the layout.
+     */
+    @Override
+    public Mat getPose(int idx, boolean writeFiles, double heading, MatOfPoint3f targetPoints, Mat[] images) {
+        StageTimings timings = getTimings();
+        timings.beginFrame();
+        long start = System.nanoTime();
+        List<TargetCandidate> candidates = findTargetCandidates(idx, writeFiles, images[0],
+                getRemapTables()[0], getMatPools(1)[0]);
+        long t = System.nanoTime();
+        try {
+            return solve(heading, candidates);
+        } finally {
+            for (TargetCandidate c : candidates) {
+                c.corners.release();
+            }
+            timings.lap(Stage.SOLVE, t);
+            timings.lap(Stage.TOTAL, start);
+        }
+    }
+
+    /**
+     * The targetPoints are in field coordinates, already matched to the image
+     * points.
+     */
+    @Override
+    public Mat getPose(double heading, MatOfPoint3f targetPoints, MatOfPoint2f[] imagePoints) {
+        Mat rVec = new Mat();
+        Mat tVec = new Mat();
+        Calib3d.solvePnP(targetPoints, imagePoints[0], kMat, new MatOfDouble(), rVec, tVec, false,
+                Calib3d.SOLVEPNP_ITERATIVE);
+        return makeTransform(heading, rVec, tVec);
+    }
+
+    /**
+     * @return field-to-camera, or null if nothing matched
+     */
+    Mat solve(double heading, List<TargetCandidate> candidates) {
+        List<FieldLayout.Target> targets = layout.getTargets();
+        List<MatOfPoint2f> corners = scored(candidates);
+        if (corners.isEmpty() || targets.isEmpty())
+            return null;
+
+        double[][][] hypotheses = hypotheses(corners);
+        int[] assignment = match(heading, hypotheses);
+        if (assignment == null)
+            return null;
+
+        List<Point3> fieldPoints = new ArrayList<Point3>();
+        List<Point> imagePoints = new ArrayList<Point>();
+        int anchor = -1;
+        for (int i = 0; i < assignment.length; ++i) {
+            if (assignment[i] < 0)
+                continue;
+            if (anchor < 0)
+                anchor = i;
+            FieldLayout.Target target = targets.get(assignment[i]);
+            log.debugmsg(1, "candidate " + i + " is " + target);
+            for (Point3 p : target.corners.toArray())
+                fieldPoints.add(p);
+            for (Point p : corners.get(i).toArray())
+                imagePoints.add(p);
+        }
+
+        // start from the anchor's pose; the camera is level.
+        double[] seed = hypotheses[anchor][assignment[anchor]];
+        double c = Math.cos(seed[2]);
+        double s = Math.sin(seed[2]);
+        Mat rVec = Mat.zeros(3, 1, CvType.CV_64F);
+        rVec.put(0, 0, 0, -seed[2], 0);
+        Mat tVec = Mat.zeros(3, 1, CvType.CV_64F);
+        tVec.put(0, 0,
+                -(c * seed[0] - s * seed[1]),
+                0,
+                -(s * seed[0] + c * seed[1]));
+        MatOfPoint3f fieldMat = new MatOfPoint3f(fieldPoints.toArray(new Point3[0]));
+        MatOfPoint2f imageMat = new MatOfPoint2f(imagePoints.toArray(new Point[0]));
+        Calib3d.solvePnP(fieldMat, imageMat, kMat, new MatOfDouble(), rVec, tVec, true,
+                Calib3d.SOLVEPNP_ITERATIVE);
+        fieldMat.release();
+        imageMat.release();
+        return makeTransform(heading, rVec, tVec);
+    }
+
+    /**
+     * The assignment {@link #solve(double, List)} would use.
+     *
+     * @return target index per candidate scoring at least MIN_SCORE, in order,
+     *         -1 for unmatched, or null
+     */
+    public int[] match(double heading, List<TargetCandidate> candidates) {
+        List<MatOfPoint2f> corners = scored(candidates);
+        if (corners.isEmpty() || layout.getTargets().isEmpty())
+            return null;
+        return match(heading, hypotheses(corners));
+    }
+
+    static List<MatOfPoint2f> scored(List<TargetCandidate> candidates) {
+        List<MatOfPoint2f> corners = new ArrayList<MatOfPoint2f>();
+        for (TargetCandidate c : candidates) {
+            if (c.score >= MIN_SCORE)
+                corners.add(c.corners);
+        }
+        return corners;
+    }
+
+    /**
+     * @return where the camera would be, {x, z, heading}, for each candidate,
+     *         if it were each target.
+     */
+    double[][][] hypotheses(List<MatOfPoint2f> corners) {
+        List<FieldLayout.Target> targets = layout.getTargets();
+        double[][][] hypotheses = new double[corners.size()][targets.size()][];
+        for (int i = 0; i < corners.size(); ++i) {
+            double[] relative = relativePose(corners.get(i));
+            for (int j = 0; j < targets.size(); ++j) {
+                hypotheses[i][j] = relative.clone();
+                targets.get(j).toField(hypotheses[i][j]);
+            }
+        }
+        return hypotheses;
+    }
+
+    /**
+     * Pick the target for each candidate: for each candidate-target pair as an
+     * anchor, match every other candidate to the unused target that puts the
+     * camera nearest the anchor's camera, if it's within the gates. The anchor
+     * with the most matches wins; ties go to the least total distance, counting
+     * the anchor's heading error against the gyro (a meter per radian).
+     *
+     * @return target index per candidate, -1 for unmatched, or null
+     */
+    int[] match(double heading, double[][][] hypotheses) {
+        int candidates = hypotheses.length;
+        int targets = hypotheses[0].length;
+        int[] best = null;
+        int bestCount = 0;
+        double bestCost = Double.MAX_VALUE;
+        int[] assignment = new int[candidates];
+        boolean[] used = new boolean[targets];
+        for (int a = 0; a < candidates; ++a) {
+            for (int ta = 0; ta < targets; ++ta) {
+                double[] anchor = hypotheses[a][ta];
+                double gyroError = Math.abs(Math.IEEEremainder(anchor[2] - heading, 2 * Math.PI));
+                if (useIMU && gyroError > HEADING_GATE)
+                    continue;
+                Arrays.fill(assignment, -1);
+                Arrays.fill(used, false);
+                assignment[a] = ta;
+                used[ta] = true;
+                int count = 1;
+                double cost = gyroError;
+                for (int b = 0; b < candidates; ++b) {
+                    if (b == a)
+                        continue;
+                    int bestTarget = -1;
+                    double bestDistance = POSITION_GATE;
+                    for (int tb = 0; tb < targets; ++tb) {
+                        if (used[tb])
+                            continue;
+                        double[] h = hypotheses[b][tb];
+                        double distance = Math.hypot(h[0] - anchor[0], h[1] - anchor[1]);
+                        double turn = Math.abs(Math.IEEEremainder(h[2] - anchor[2], 2 * Math.PI));
+                        if (distance < bestDistance && turn < HEADING_GATE) {
+                            bestDistance = distance;
+                            bestTarget = tb;
+                        }
+                    }
+                    if (bestTarget >= 0) {
+                        assignment[b] = bestTarget;
+                        used[bestTarget] = true;
+                        ++count;
+                        cost += bestDistance;
+                    }
+                }
+                if (count > bestCount || (count == bestCount && cost < bestCost)) {
+                    best = assignment.clone();
+                    bestCount = count;
+                    bestCost = cost;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return {x, z, heading} of the camera relative to one target
+     */
+    double[] relativePose(MatOfPoint2f corners) {
+        Mat rVec = new Mat();
+        Mat tVec = new Mat();
+        Calib3d.solvePnP(layout.getGeometry(), corners, kMat, new MatOfDouble(), rVec, tVec, false,
+                Calib3d.SOLVEPNP_ITERATIVE);
+        Mat transform = makeTransform(0, rVec, tVec, false);
+        double[] pose = new double[3];
+        VisionUtil.transformToPose(transform, pose);
+        transform.release();
+        return pose;
+    }
+
+    Mat makeTransform(double heading, Mat rVec, Mat tVec) {
+        return makeTransform(heading, rVec, tVec, useIMU);
+    }
+
+    /**
+     * @param useIMU true = replace the rotation with the heading
+     */
+    static Mat makeTransform(double heading, Mat rVec, Mat tVec, boolean useIMU) {
+        if (useIMU) {
+            rVec = Mat.zeros(3, 1, CvType.CV_64F);
+            rVec.put(0, 0,
+                    0, -heading, 0);
+        }
+        Mat rMat = new Mat();
+        Calib3d.Rodrigues(rVec, rMat);
+        Mat transform = Mat.zeros(3, 4, CvType.CV_64F);
+        rMat.copyTo(transform.submat(0, 3, 0, 3));
+        tVec.copyTo(transform.submat(0, 3, 3, 4));
+        rMat.release();
+        return transform;
+    }
+}
@@ -0,0 +1,156 @@
+package vision;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Reads a log written by {@link FrameLogWriter}, by mapping it; the images are
+ * Mats over the mapped file, without a copy. Files bigger than a mapping can
+ * be are mapped a window of records at a time.
+ *
+ * The Mats are read-only (writing to them will crash), and are only valid
+ * while their {@link Frame} is reachable.
+ */
+public class FrameLogReader implements AutoCloseable {
+    // largest mapping, well under the 2GB limit.
+    static final long WINDOW_BYTES = 1L << 30;
+
+    /**
+     * One recorded frame.
+     */
+    public static class Frame {
+        public int index;
+        public long captureTimeMicros;
+        public double heading;
+        /** {x, z, heading}, NaN if unknown */
+        public final double[] truth = new double[3];
+        public Mat[] images;
+        // keeps the mapping alive as long as the Mats are in use.
+        @SuppressWarnings("unused")
+        private MappedByteBuffer buffer;
+
+        public boolean hasTruth() {
+            return !Double.isNaN(truth[0]);
+        }
+    }
+
+    private final FileChannel channel;
+    private final Size[] sizes;
+    private final long headerSize;
+    private final long recordSize;
+    private final int frames;
+    private final int windowRecords;
+
+    private MappedByteBuffer window;
+    private int windowStart = -1;
+
+    public FrameLogReader(Path file) {
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < 12 || header.getInt() != FrameLogWriter.MAGIC)
+                throw new IllegalArgumentException("not a frame log: " + file);
+            int version = header.getInt();
+            if (version != FrameLogWriter.VERSION)
+                throw new IllegalArgumentException("unknown frame log version " + version + ": " + file);
+            int cameras = header.getInt();
+            ByteBuffer cameraHeader = ByteBuffer.allocate(8 * cameras).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(cameraHeader, 12);
+            cameraHeader.flip();
+            sizes = new Size[cameras];
+            long size = FrameLogWriter.RECORD_HEADER;
+            for (int i = 0; i < cameras; ++i) {
+                int rows = cameraHeader.getInt();
+                int cols = cameraHeader.getInt();
+                sizes[i] = new Size(cols, rows);
+                size += (long) rows * cols;
+            }
+            headerSize = 12 + 8 * cameras;
+            recordSize = size;
+            // a partial last record (a crash mid-append) is ignored.
+            frames = (int) ((channel.size() - headerSize) / recordSize);
+            windowRecords = (int) Math.max(1, WINDOW_BYTES / recordSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public Size[] getSizes() {
+        return sizes;
+    }
+
+    /**
+     * @param frame reused; filled with the record. The Mats from its previous
+     *              read are released.
+     * @return the frame
+     */
+    public Frame read(int index, Frame frame) {
+        if (index < 0 || index >= frames)
+            throw new IndexOutOfBoundsException(index + " of " + frames);
+        if (windowStart < 0 || index < windowStart || index >= windowStart + windowRecords)
+            map(index);
+        int offset = (int) ((index - windowStart) * recordSize);
+        frame.index = index;
+        frame.buffer = window;
+        frame.captureTimeMicros = window.getLong(offset);
+        frame.heading = window.getDouble(offset + 8);
+        for (int i = 0; i < 3; ++i) {
+            frame.truth[i] = window.getDouble(offset + 16 + 8 * i);
+        }
+        if (frame.images == null || frame.images.length != sizes.length)
+            frame.images = new Mat[sizes.length];
+        int pixelOffset = offset + FrameLogWriter.RECORD_HEADER;
+        for (int i = 0; i < sizes.length; ++i) {
+            int rows = (int) sizes[i].height;
+            int cols = (int) sizes[i].width;
+            ByteBuffer pixels = window.duplicate();
+            pixels.position(pixelOffset);
+            pixels.limit(pixelOffset + rows * cols);
+            // the data is the mapping, so this only drops the previous header's
+            // hold on it, rather than waiting for the finalizer.
+            if (frame.images[i] != null)
+                frame.images[i].release();
+            frame.images[i] = new Mat(rows, cols, CvType.CV_8UC1, pixels.slice());
+            pixelOffset += rows * cols;
+        }
+        return frame;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void map(int index) {
+        int start = index - index % windowRecords;
+        int count = Math.min(windowRecords, frames - start);
+        try {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, headerSize + start * recordSize,
+                    count * recordSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        windowStart = start;
+    }
+}
@@ -0,0 +1,141 @@
+package vision;
+
+import java.nio.file.Paths;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Size;
+
+/**
+ * Feeds a recorded frame log (see {@link FrameLogWriter}) through a
+ * PoseEstimator, either as fast as possible or paced by the recorded
+ * timestamps, and reports the rate, the failures, the stage timings, and, for
+ * frames with a true pose, the error, the same way PoseEstimatorHarness does.
+ *
+ * Run it with the log path, and optionally "realtime":
+ *
+ * <pre>
+ * java vision.FrameLogReplay vision.flog [realtime]
+ * </pre>
+ *
+ * which replays the log through each of the harness estimators whose cameras
+ * match the log.
+ */
+public class FrameLogReplay {
+    final static Log log = new Log(3, FrameLogReplay.class.getName());
+
+    private final FrameLogReader reader;
+    private final MatOfPoint3f targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+
+    public FrameLogReplay(FrameLogReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @param realTime true = sleep so frames arrive as far apart as they were
+     *                 recorded
+     * @param results  if not null, gets a row per frame
+     * @return totals; the errors only include frames with a true pose
+     */
+    PoseEstimatorHarness.Summary run(PoseEstimator e, boolean realTime, ResultsWriter results) {
+        PoseEstimatorHarness.Summary summary = new PoseEstimatorHarness.Summary();
+        FrameLogReader.Frame frame = new FrameLogReader.Frame();
+        double[] pose = new double[3];
+        long firstCapture = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < reader.getFrames(); ++i) {
+            reader.read(i, frame);
+            if (i == 0)
+                firstCapture = frame.captureTimeMicros;
+            if (realTime) {
+                long due = start + 1000 * (frame.captureTimeMicros - firstCapture);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+
+            PoseEstimatorHarness.CellResult r = new PoseEstimatorHarness.CellResult();
+            r.idx = i;
+            long t = System.nanoTime();
+            Mat transform = e.getPose(i, false, frame.heading, targetGeometryMeters, frame.images);
+            r.workTimeNs = System.nanoTime() - t;
+            if (e instanceof BasePoseEstimator)
+                r.stageNs = ((BasePoseEstimator) e).getTimings().getFrame().clone();
+            r.pan = frame.truth[2];
+            r.xPos = frame.truth[0];
+            r.zPos = frame.truth[1];
+            r.relativeBearing = Math.atan2(r.xPos, -r.zPos) + r.pan;
+            r.range = Math.hypot(r.xPos, r.zPos);
+            if (transform == null) {
+                r.failure = "no transform";
+            } else {
+                VisionUtil.transformToPose(transform, pose);
+                r.pxPos = pose[0];
+                r.pzPos = pose[1];
+                r.ppan = pose[2];
+                r.pRelativeBearing = Math.atan2(r.pxPos, -r.pzPos) + r.ppan;
+                r.pRange = Math.hypot(r.pxPos, r.pzPos);
+                r.panErr = r.pan - r.ppan;
+                r.xErr = r.xPos - r.pxPos;
+                r.zErr = r.zPos - r.pzPos;
+                r.posErr = Math.hypot(r.xErr, r.zErr);
+                r.relativeBearingErr = r.relativeBearing - r.pRelativeBearing;
+                r.rangeErr = r.range - r.pRange;
+            }
+            if (results != null)
+                results.write(e.getName(), r);
+            if (frame.hasTruth() || r.failed()) {
+                summary.add(r);
+            } else {
+                // no truth: count the time and the frame, but not the (NaN) errors.
+                summary.workTimeNs += r.workTimeNs;
+                summary.unscored++;
+            }
+        }
+        return summary;
+    }
+
+    public static void main(String... args) {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        if (args.length < 1) {
+            System.out.println("usage: FrameLogReplay <log> [realtime]");
+            return;
+        }
+        boolean realTime = args.length > 1 && args[1].equals("realtime");
+        try (FrameLogReader reader = new FrameLogReader(Paths.get(args[0]))) {
+            FrameLogReplay replay = new FrameLogReplay(reader);
+            System.out.printf("%s: %d frames\n", args[0], reader.getFrames());
+            System.out.printf("%40s %10s %10s %10s %10s %10s %10s\n",
+                    "name", "heading", "X", "Z", "position", "rate", "failures");
+            for (PoseEstimator e : new PoseEstimatorHarness().poseEstimators) {
+                if (!sameCameras(e.getSizes(), reader.getSizes())) {
+                    log.debugmsg(3, e.getName() + " cameras don't match the log");
+                    continue;
+                }
+                PoseEstimatorHarness.Summary s = replay.run(e, realTime, null);
+                System.out.printf("%40s %10.4f %10.4f %10.4f %10.4f %10.4f %10d\n",
+                        e.getName(), s.rmse(s.panErrSquareSum), s.rmse(s.xErrSquareSum),
+                        s.rmse(s.zErrSquareSum), s.rmse(s.positionErrSquareSum), s.rate(), s.failures);
+                if (e instanceof BasePoseEstimator)
+                    ((BasePoseEstimator) e).getTimings().print(e.getName());
+            }
+        }
+    }
+
+    static boolean sameCameras(Size[] a, Size[] b) {
+        if (a.length != b.length)
+            return false;
+        for (int i = 0; i < a.length; ++i) {
+            if (a[i].width != b[i].width || a[i].height != b[i].height)
+                return false;
+        }
+        return true;
+    }
+}
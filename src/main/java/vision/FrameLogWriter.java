@@ -0,0 +1,140 @@
+package vision;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Records frames (one 8-bit mono image per camera), with capture time, gyro
+ * heading, and, if known, the true pose, to an append-only log that
+ * {@link FrameLogReader} maps back in.
+ *
+ * Format, little-endian:
+ *
+ * <pre>
+ * header: int magic "FLOG", int version, int cameras, {int rows, int cols} per camera
+ * record: long captureTimeMicros, double heading, double x, double z, double truthHeading,
+ *         then rows*cols bytes per camera
+ * </pre>
+ *
+ * Records are all the same size, so they can be found by index. The true pose
+ * is NaN when unknown, e.g. on the field.
+ *
+ * Not thread-safe; append from one thread.
+ */
+public class FrameLogWriter implements AutoCloseable {
+    static final int MAGIC = 0x474f4c46; // "FLOG"
+    static final int VERSION = 1;
+    static final int RECORD_HEADER = 8 + 8 + 8 + 8 + 8;
+
+    private final FileChannel channel;
+    private final Size[] sizes;
+    private final ByteBuffer record;
+    private final byte[][] pixels;
+    private long frames = 0;
+
+    /**
+     * Create the file, or append to it if it exists and has the same cameras.
+     *
+     * @param sizes size of each camera's images
+     */
+    public FrameLogWriter(Path file, Size[] sizes) {
+        this.sizes = sizes;
+        int size = RECORD_HEADER;
+        pixels = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; ++i) {
+            pixels[i] = new byte[(int) sizes[i].area()];
+            size += pixels[i].length;
+        }
+        record = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(12 + 8 * sizes.length).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() == 0) {
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(sizes.length);
+                for (Size s : sizes) {
+                    header.putInt((int) s.height);
+                    header.putInt((int) s.width);
+                }
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            } else {
+                channel.read(header, 0);
+                header.flip();
+                if (header.remaining() < header.capacity() || header.getInt() != MAGIC
+                        || header.getInt() != VERSION || header.getInt() != sizes.length)
+                    throw new IllegalArgumentException("not a matching frame log: " + file);
+                for (Size s : sizes) {
+                    if (header.getInt() != (int) s.height || header.getInt() != (int) s.width)
+                        throw new IllegalArgumentException("camera size mismatch: " + file);
+                }
+                // drop a partial record, e.g. from a crash mid-append
+                long body = channel.size() - header.capacity();
+                channel.truncate(header.capacity() + body - body % size);
+            }
+            channel.position(channel.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Append one frame.
+     *
+     * @param truth {x, z, heading}, or null if unknown
+     */
+    public void append(long captureTimeMicros, double heading, double[] truth, Mat[] images) {
+        if (images.length != sizes.length)
+            throw new IllegalArgumentException("expected " + sizes.length + " images");
+        record.clear();
+        record.putLong(captureTimeMicros);
+        record.putDouble(heading);
+        for (int i = 0; i < 3; ++i) {
+            record.putDouble(truth == null ? Double.NaN : truth[i]);
+        }
+        for (int i = 0; i < images.length; ++i) {
+            Mat m = images[i];
+            if (m.type() != CvType.CV_8UC1 || m.total() != pixels[i].length)
+                throw new IllegalArgumentException("expected 8UC1 " + sizes[i] + ", got "
+                        + CvType.typeToString(m.type()) + " " + m.size());
+            m.get(0, 0, pixels[i]);
+            record.put(pixels[i]);
+        }
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ++frames;
+    }
+
+    /** frames appended by this writer */
+    public long getFrames() {
+        return frames;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package vision;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * The last few hundred milliseconds of gyro headings, so a frame can be solved
+ * with the heading at the moment it was captured, rather than whenever the
+ * solver gets to it. While the robot turns, the difference is a heading error
+ * of the turn rate times the latency, which the IMU estimators turn into
+ * position error.
+ *
+ * One thread (e.g. a 200 Hz robot periodic) calls {@link #add(long, double)};
+ * any number of threads may call {@link #getHeading(long)}. Neither ever
+ * blocks: readers check that the writer hasn't overwritten the samples they
+ * read, and retry if it has, which only happens if a reader stalls for half a
+ * buffer's worth of samples.
+ *
+ * Times are in microseconds, in the same timebase as the frame capture times,
+ * i.e. RobotController.getFPGATime() on the robot.
+ */
+public class GyroHistory {
+    private final int mask;
+    // readable samples, half the capacity
+    private final int window;
+    private final long[] times;
+    private final double[] headings;
+    // samples written so far; the newest is at (count - 1) & mask. written
+    // after the sample, so a reader that sees it sees the sample.
+    private volatile long count = 0;
+
+    /** About 600 ms of history at 200 Hz. */
+    public GyroHistory() {
+        this(256);
+    }
+
+    /**
+     * @param capacity rounded up to a power of two; half of it is history
+     */
+    public GyroHistory(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        window = size / 2;
+        times = new long[size];
+        headings = new double[size];
+    }
+
+    /**
+     * Record a sample; times must increase. Only one thread may call this.
+     *
+     * @param timeMicros when the gyro was read
+     * @param heading    radians
+     */
+    public void add(long timeMicros, double heading) {
+        long n = count;
+        int i = (int) (n & mask);
+        times[i] = timeMicros;
+        headings[i] = heading;
+        count = n + 1;
+    }
+
+    /** @return samples recorded so far */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Interpolate between the samples on either side of the time; before the
+     * oldest sample in the history or after the newest, the nearest one.
+     *
+     * @return heading in radians, or NaN if there are no samples
+     */
+    public double getHeading(long timeMicros) {
+        while (true) {
+            long n = count;
+            if (n == 0)
+                return Double.NaN;
+            // only the newer half is read, so the writer has the other half
+            // to work in.
+            long oldest = Math.max(0, n - window);
+            double heading = interpolate(timeMicros, oldest, n - 1);
+            // the reads above must finish before the check below
+            VarHandle.loadLoadFence();
+            // the writer may be working on sample count, which overwrites
+            // sample count - capacity.
+            if (count - times.length < oldest)
+                return heading;
+            // lapped, try again with the newer samples
+        }
+    }
+
+    /**
+     * Binary search for the samples around the time.
+     *
+     * @param lo oldest sample number
+     * @param hi newest sample number
+     */
+    private double interpolate(long timeMicros, long lo, long hi) {
+        if (timeMicros <= times[(int) (lo & mask)])
+            return headings[(int) (lo & mask)];
+        if (timeMicros >= times[(int) (hi & mask)])
+            return headings[(int) (hi & mask)];
+        // times[lo] < time < times[hi]
+        while (hi - lo > 1) {
+            long mid = (lo + hi) >>> 1;
+            if (times[(int) (mid & mask)] <= timeMicros)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        int a = (int) (lo & mask);
+        int b = (int) (hi & mask);
+        double t0 = times[a];
+        double t1 = times[b];
+        if (t1 <= t0)
+            return headings[b];
+        double h0 = headings[a];
+        // the short way around, in case the heading is wrapped
+        double delta = Math.IEEEremainder(headings[b] - h0, 2 * Math.PI);
+        return h0 + delta * (timeMicros - t0) / (t1 - t0);
+    }
+}
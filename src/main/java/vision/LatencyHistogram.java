@@ -0,0 +1,100 @@
+package vision;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size log-linear histogram of nanosecond durations, in the style of
+ * HdrHistogram: values below 32 get their own bucket, and above that each
+ * power of two is split into 16 buckets, so any value is recorded to within
+ * about 6%, from 1 ns up to Long.MAX_VALUE, in under 8k of counts.
+ *
+ * Recording is lock-free and doesn't allocate, so it can be called from any
+ * number of vision threads; reads are consistent enough for reporting but not
+ * a snapshot.
+ */
+public class LatencyHistogram {
+    // 2^SUB_BITS linear buckets at the bottom, then 2^(SUB_BITS-1) per octave.
+    static final int SUB_BITS = 5;
+    static final int HALF = 1 << (SUB_BITS - 1);
+    static final int BUCKETS = (64 - SUB_BITS + 1) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long ns) {
+        if (ns < 0)
+            ns = 0;
+        counts.incrementAndGet(index(ns));
+        count.incrementAndGet();
+        sum.addAndGet(ns);
+        long m = max.get();
+        while (ns > m && !max.compareAndSet(m, ns)) {
+            m = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        return (double) sum.get() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the upper bound of the bucket containing that percentile, so an
+     *         overestimate by at most the bucket width; 0 if empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int index(long v) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(v) - SUB_BITS);
+        return shift * HALF + (int) (v >>> shift);
+    }
+
+    static long lowerBound(int index) {
+        if (index < 2 * HALF)
+            return index;
+        int shift = index / HALF - 1;
+        return (long) (index - shift * HALF) << shift;
+    }
+
+    static long upperBound(int index) {
+        if (index < 2 * HALF)
+            return index;
+        int shift = index / HALF - 1;
+        return lowerBound(index) + (1L << shift) - 1;
+    }
+}
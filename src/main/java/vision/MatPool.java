@@ -0,0 +1,161 @@
+package vision;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Reusable native buffers, keyed by size and type, so the per-frame image path
+ * doesn't allocate (and doesn't depend on System.gc() to free) native memory.
+ *
+ * Not thread-safe: use one pool per camera per thread. Acquire inside a
+ * {@link Scope}; closing the scope returns everything acquired since it was
+ * opened:
+ *
+ * <pre>
+ * try (MatPool.Scope scope = pool.scope()) {
+ *     Mat scratch = pool.acquire(size, CvType.CV_8UC1);
+ *     ...
+ * }
+ * </pre>
+ *
+ * Buffers are handed back under the key they were acquired with, even if an
+ * OpenCV call reallocated them in the meantime (e.g. a findContours hierarchy);
+ * the next user just reallocates again if it needs to.
+ *
+ * Not everything in finding the corners comes from a pool. What's still
+ * allocated per frame: the contours findContours returns (one MatOfPoint each,
+ * released as soon as they're looked at), the corners of each quadrilateral
+ * found, which belong to the caller, and the debug images, when they're
+ * written. The polygon approximation reuses per-thread buffers, which OpenCV
+ * reallocates only when a contour's point count changes. The pose solves
+ * after that allocate their own small Mats.
+ */
+public class MatPool {
+    // free lists, searched linearly; there are only a handful of distinct keys.
+    private long[] keys = new long[8];
+    @SuppressWarnings("unchecked")
+    private ArrayDeque<Mat>[] free = new ArrayDeque[8];
+    private int keyCount = 0;
+
+    // acquired and not yet released, in order, for the scopes.
+    private Mat[] acquired = new Mat[16];
+    private long[] acquiredKeys = new long[16];
+    private int acquiredCount = 0;
+
+    private long allocations = 0;
+    private long acquires = 0;
+
+    /**
+     * @return a buffer of the given size and type, contents undefined.
+     */
+    public Mat acquire(int rows, int cols, int type) {
+        long key = key(rows, cols, type);
+        ArrayDeque<Mat> list = freeList(key);
+        Mat m = list.pollLast();
+        if (m == null) {
+            m = new Mat(rows, cols, type);
+            ++allocations;
+        }
+        ++acquires;
+        push(m, key);
+        return m;
+    }
+
+    public Mat acquire(Size size, int type) {
+        return acquire((int) size.height, (int) size.width, type);
+    }
+
+    /**
+     * Open a scope; everything acquired until it's closed is released together.
+     */
+    public Scope scope() {
+        return new Scope(acquiredCount);
+    }
+
+    /**
+     * Free all the native memory held by the pool. Only call this when nothing
+     * is acquired.
+     */
+    public void clear() {
+        if (acquiredCount != 0)
+            throw new IllegalStateException("buffers still acquired: " + acquiredCount);
+        for (int i = 0; i < keyCount; ++i) {
+            for (Mat m : free[i]) {
+                m.release();
+            }
+            free[i].clear();
+        }
+    }
+
+    /** how many native buffers the pool has ever created */
+    public long getAllocations() {
+        return allocations;
+    }
+
+    /** how many times a buffer was handed out */
+    public long getAcquires() {
+        return acquires;
+    }
+
+    /** how many buffers are out right now */
+    public int getOutstanding() {
+        return acquiredCount;
+    }
+
+    private void releaseTo(int mark) {
+        while (acquiredCount > mark) {
+            --acquiredCount;
+            Mat m = acquired[acquiredCount];
+            acquired[acquiredCount] = null;
+            freeList(acquiredKeys[acquiredCount]).addLast(m);
+        }
+    }
+
+    private void push(Mat m, long key) {
+        if (acquiredCount == acquired.length) {
+            acquired = Arrays.copyOf(acquired, acquiredCount * 2);
+            acquiredKeys = Arrays.copyOf(acquiredKeys, acquiredCount * 2);
+        }
+        acquired[acquiredCount] = m;
+        acquiredKeys[acquiredCount] = key;
+        ++acquiredCount;
+    }
+
+    private ArrayDeque<Mat> freeList(long key) {
+        for (int i = 0; i < keyCount; ++i) {
+            if (keys[i] == key)
+                return free[i];
+        }
+        if (keyCount == keys.length) {
+            keys = Arrays.copyOf(keys, keyCount * 2);
+            free = Arrays.copyOf(free, keyCount * 2);
+        }
+        keys[keyCount] = key;
+        free[keyCount] = new ArrayDeque<Mat>();
+        return free[keyCount++];
+    }
+
+    static long key(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | type;
+    }
+
+    /**
+     * Releases, on close, everything acquired since it was opened. Scopes must
+     * be closed in the reverse of the order they were opened.
+     */
+    public class Scope implements AutoCloseable {
+        private final int mark;
+
+        private Scope(int mark) {
+            this.mark = mark;
+        }
+
+        @Override
+        public void close() {
+            releaseTo(mark);
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package vision;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
@@ -21,10 +25,27 @@ public class MonocularPoseEstimator extends BasePoseEstimator {
     final Mat kMat = VisionUtil.makeIntrinsicMatrix(f, dsize);
     final boolean useIMU;
 
+    // warm solves that reproject worse than this are redone cold, pixels RMS.
+    static final double MAX_WARM_ERROR = 2.0;
+
+    private volatile boolean warmStart = false;
+    private volatile boolean predictWithGyro = true;
+    private final ThreadLocal<SolverState> solverState = ThreadLocal.withInitial(SolverState::new);
+    private final AtomicLong warmSolves = new AtomicLong();
+    private final AtomicLong coldSolves = new AtomicLong();
+    private final AtomicLong coldRestarts = new AtomicLong();
+    // bumped by setWarmStart() to invalidate every thread's previous solution
+    private final AtomicInteger generation = new AtomicInteger();
+
     public MonocularPoseEstimator(boolean useIMU) {
         this.useIMU = useIMU;
     }
 
+    @Override
+    public boolean usesIMU() {
+        return useIMU;
+    }
+
     @Override
     public String getName() {
         return String.format("MonocularPoseEstimator%s", useIMU ? "IMU" : "");
@@ -62,26 +83,152 @@ public class MonocularPoseEstimator extends BasePoseEstimator {
         // ok the problem here is that the imagePoints are not repeated like the
         // targetPoints are.
 
-        Mat newCamRVec = new Mat();
-        Mat newCamTVec = new Mat();
-        // System.out.println(targetPoints.dump());
-        // System.out.println(imagePoints[0].dump());
-        Calib3d.solvePnP(targetPoints, imagePoints[0], kMat,
-                new MatOfDouble(), newCamRVec, newCamTVec, false,
+        SolverState state = solverState.get();
+        int current = generation.get();
+        if (state.generation != current) {
+            // setWarmStart() since this thread's last solve
+            state.generation = current;
+            state.valid = false;
+        }
+        boolean warm = warmStart && state.valid;
+        if (warm && predictWithGyro)
+            state.rotate(heading - state.heading);
+        boolean solved = Calib3d.solvePnP(targetPoints, imagePoints[0], kMat,
+                state.noDistortion, state.rVec, state.tVec, warm,
                 Calib3d.SOLVEPNP_ITERATIVE);
+        if (warm) {
+            // a bad seed can land in the wrong minimum, or diverge (NaN); start
+            // over if it looks like that happened.
+            if (!solved || !(state.reprojectionError(targetPoints, imagePoints[0], kMat) <= MAX_WARM_ERROR)) {
+                coldRestarts.incrementAndGet();
+                solved = Calib3d.solvePnP(targetPoints, imagePoints[0], kMat,
+                        state.noDistortion, state.rVec, state.tVec, false,
+                        Calib3d.SOLVEPNP_ITERATIVE);
+            } else {
+                warmSolves.incrementAndGet();
+            }
+        } else {
+            coldSolves.incrementAndGet();
+        }
+        // only a successful solve seeds the next one.
+        state.valid = solved;
+        state.heading = heading;
+
+        Mat newCamRVec = state.rVec;
         if (useIMU) {
-            newCamRVec = Mat.zeros(3, 1, CvType.CV_64F);
+            newCamRVec = state.imuRVec;
             newCamRVec.put(0, 0,
                     0, -heading, 0);
         }
-        Mat newCamRMat = new Mat();
-        Calib3d.Rodrigues(newCamRVec, newCamRMat);
+        Calib3d.Rodrigues(newCamRVec, state.rMat);
         Mat transform = Mat.zeros(3, 4, CvType.CV_64F);
-        newCamRMat.copyTo(transform.submat(0, 3, 0, 3));
-        newCamTVec.copyTo(transform.submat(0, 3, 3, 4));
+        state.rMat.copyTo(transform.submat(0, 3, 0, 3));
+        state.tVec.copyTo(transform.submat(0, 3, 3, 4));
         return transform;
     }
 
+    /**
+     * Seed each solve with the previous one on the same thread, which is a lot
+     * closer than solvePnP's own (homography) guess in continuous tracking.
+     * The result then depends on the previous frame, so this is only
+     * appropriate for sequences of frames.
+     *
+     * Changing it makes every thread's next solve cold; each thread notices on
+     * its own next solve, and keeps its scratch Mats.
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+        generation.incrementAndGet();
+    }
+
+    /**
+     * With a warm start, rotate the seed by the change in gyro heading since the
+     * previous frame.
+     */
+    public void setPredictWithGyro(boolean predictWithGyro) {
+        this.predictWithGyro = predictWithGyro;
+    }
+
+    /** solves seeded with the previous frame */
+    public long getWarmSolves() {
+        return warmSolves.get();
+    }
+
+    /** solves from scratch, excluding restarts */
+    public long getColdSolves() {
+        return coldSolves.get();
+    }
+
+    /** warm solves that were redone from scratch */
+    public long getColdRestarts() {
+        return coldRestarts.get();
+    }
+
+    /**
+     * The previous solution and the scratch Mats, per thread.
+     */
+    static class SolverState {
+        final Mat rVec = Mat.zeros(3, 1, CvType.CV_64F);
+        final Mat tVec = Mat.zeros(3, 1, CvType.CV_64F);
+        final Mat imuRVec = Mat.zeros(3, 1, CvType.CV_64F);
+        final Mat rMat = new Mat();
+        final Mat turn = Mat.zeros(3, 3, CvType.CV_64F);
+        final Mat turned = new Mat();
+        final Mat empty = new Mat();
+        final MatOfDouble noDistortion = new MatOfDouble();
+        final MatOfPoint2f projected = new MatOfPoint2f();
+        final double[] t = new double[3];
+        float[] expected = new float[0];
+        float[] actual = new float[0];
+        boolean valid = false;
+        double heading;
+        // of the estimator, when valid was last reset
+        int generation;
+
+        /**
+         * Turning in place by delta turns the world-to-camera transform by
+         * -delta about y, rotation and translation both.
+         */
+        void rotate(double delta) {
+            if (delta == 0)
+                return;
+            Calib3d.Rodrigues(rVec, rMat);
+            double c = Math.cos(delta);
+            double s = Math.sin(delta);
+            turn.put(0, 0,
+                    c, 0, -s,
+                    0, 1, 0,
+                    s, 0, c);
+            Core.gemm(turn, rMat, 1.0, empty, 0.0, turned);
+            Calib3d.Rodrigues(turned, rVec);
+            tVec.get(0, 0, t);
+            tVec.put(0, 0,
+                    c * t[0] - s * t[2],
+                    t[1],
+                    s * t[0] + c * t[2]);
+        }
+
+        /**
+         * @return RMS pixels
+         */
+        double reprojectionError(MatOfPoint3f targetPoints, MatOfPoint2f imagePoints, Mat kMat) {
+            Calib3d.projectPoints(targetPoints, rVec, tVec, kMat, noDistortion, projected);
+            int n = 2 * (int) Math.min(projected.total(), imagePoints.total());
+            if (expected.length < 2 * projected.total())
+                expected = new float[2 * (int) projected.total()];
+            if (actual.length < 2 * imagePoints.total())
+                actual = new float[2 * (int) imagePoints.total()];
+            projected.get(0, 0, expected);
+            imagePoints.get(0, 0, actual);
+            double sum = 0;
+            for (int i = 0; i < n; ++i) {
+                double d = expected[i] - actual[i];
+                sum += d * d;
+            }
+            return Math.sqrt(2 * sum / Math.max(1, n));
+        }
+    }
+
     @Override
     public double[] getF() {
         return new double[] { f };
@@ -9,8 +9,14 @@ import org.opencv.core.Mat;
 
 /**
  * Include estimateAffine3d from OpenCV 4.6.
+ * 
+ * There are also primitive versions, 2d and 3d, which avoid the JNI overhead
+ * that dominates for the few points we have.
  */
 public class MyCalib3d {
+    // second singular value relative to the first, below which the points are
+    // considered colinear.
+    static final double COLINEAR = 1e-12;
 
     /**
      * Computes an optimal affine transformation between two 3D point sets.
@@ -154,4 +160,264 @@ public class MyCalib3d {
         return transform;
     }
 
+    /**
+     * Same contract as {@link #estimateAffine3D(Mat, Mat, Double, boolean)}
+     * but over primitive arrays, with a Jacobi SVD instead of OpenCV, and the
+     * scale is actually returned.
+     * 
+     * @param from           first point set, packed x, y, z
+     * @param to             second point set, packed x, y, z
+     * @param count          number of points in each set
+     * @param estimateScale  if false the scale is assumed to be 1.0
+     * @param force_rotation if true, the returned rotation will never be a
+     *                       reflection.
+     * @param transform      output, 3x4 [R|t], row-major, 12 elements.
+     * @return the optimal scale, or 1.0 if estimateScale is false.
+     */
+    public static double estimateAffine3D(double[] from, double[] to, int count, boolean estimateScale,
+            boolean force_rotation, double[] transform) {
+        if (count < 3)
+            throw new IllegalArgumentException(
+                    "Umeyama algorithm needs at least 3 points for affine transformation estimation.");
+        if (from.length < 3 * count || to.length < 3 * count)
+            throw new IllegalArgumentException("Point sets need to have the same size");
+        final double one_over_n = 1. / count;
+
+        double fromX = 0, fromY = 0, fromZ = 0;
+        double toX = 0, toY = 0, toZ = 0;
+        for (int i = 0; i < 3 * count; i += 3) {
+            fromX += from[i];
+            fromY += from[i + 1];
+            fromZ += from[i + 2];
+            toX += to[i];
+            toY += to[i + 1];
+            toZ += to[i + 2];
+        }
+        fromX *= one_over_n;
+        fromY *= one_over_n;
+        fromZ *= one_over_n;
+        toX *= one_over_n;
+        toY *= one_over_n;
+        toZ *= one_over_n;
+
+        // cov = to_centered.t() * from_centered * one_over_n
+        double[] cov = new double[9];
+        double var_from = 0;
+        for (int i = 0; i < 3 * count; i += 3) {
+            double fx = from[i] - fromX;
+            double fy = from[i + 1] - fromY;
+            double fz = from[i + 2] - fromZ;
+            double tx = to[i] - toX;
+            double ty = to[i + 1] - toY;
+            double tz = to[i + 2] - toZ;
+            cov[0] += tx * fx;
+            cov[1] += tx * fy;
+            cov[2] += tx * fz;
+            cov[3] += ty * fx;
+            cov[4] += ty * fy;
+            cov[5] += ty * fz;
+            cov[6] += tz * fx;
+            cov[7] += tz * fy;
+            cov[8] += tz * fz;
+            var_from += fx * fx + fy * fy + fz * fz;
+        }
+        for (int i = 0; i < 9; ++i) {
+            cov[i] *= one_over_n;
+        }
+
+        double[] u = new double[9];
+        double[] d = new double[3];
+        double[] v = new double[9];
+        svd3(cov, u, d, v);
+
+        if (!(d[1] > COLINEAR * d[0]))
+            throw new IllegalArgumentException("Points cannot be colinear");
+
+        // det(d) can only ever be >=0, so we can always use this here (compared to the
+        // original formula by Umeyama)
+        double s2 = 1.0;
+        if (force_rotation && det3(u) * det3(v) < 0)
+            s2 = -1.0;
+
+        // rmat = u*S*vt
+        for (int row = 0; row < 3; ++row) {
+            for (int col = 0; col < 3; ++col) {
+                transform[row * 4 + col] = u[row * 3] * v[col * 3]
+                        + u[row * 3 + 1] * v[col * 3 + 1]
+                        + s2 * u[row * 3 + 2] * v[col * 3 + 2];
+            }
+        }
+
+        double scale = 1.0;
+        if (estimateScale)
+            scale = (d[0] + d[1] + s2 * d[2]) * count / var_from;
+
+        // t = to_mean - scale * rmat * from_mean
+        transform[3] = toX - scale * (transform[0] * fromX + transform[1] * fromY + transform[2] * fromZ);
+        transform[7] = toY - scale * (transform[4] * fromX + transform[5] * fromY + transform[6] * fromZ);
+        transform[11] = toZ - scale * (transform[8] * fromX + transform[9] * fromY + transform[10] * fromZ);
+        return scale;
+    }
+
+    /**
+     * The least-squares rigid transform in 2d (rotation and translation, no
+     * scale or reflection) from "from" to "to", over the points in the mask;
+     * or, given the rotation (e.g. from the IMU), just the translation between
+     * the centroids. In 2d the optimal rotation is closed-form, the angle of
+     * the covariance cross terms, so there's no SVD; the covariance comes from
+     * raw sums, so it's one pass over the points.
+     * 
+     * @param from      first point set, packed x, y
+     * @param to        second point set, packed x, y
+     * @param mask      the points to use, or null for all of them
+     * @param count     number of points in each set
+     * @param rotation  radians, or NaN to fit it
+     * @param transform output, 2x3 [R|t], row-major, 6 elements; untouched if
+     *                  no points are used.
+     * @return the number of points used
+     */
+    public static int estimateRigid2D(double[] from, double[] to, boolean[] mask, int count, double rotation,
+            double[] transform) {
+        int n = 0;
+        double fromX = 0, fromY = 0, toX = 0, toY = 0;
+        double s00 = 0, s01 = 0, s10 = 0, s11 = 0;
+        for (int i = 0; i < count; ++i) {
+            if (mask != null && !mask[i])
+                continue;
+            double fx = from[2 * i];
+            double fy = from[2 * i + 1];
+            double tx = to[2 * i];
+            double ty = to[2 * i + 1];
+            fromX += fx;
+            fromY += fy;
+            toX += tx;
+            toY += ty;
+            s00 += tx * fx;
+            s01 += tx * fy;
+            s10 += ty * fx;
+            s11 += ty * fy;
+            ++n;
+        }
+        if (n == 0)
+            return 0;
+        double one_over_n = 1.0 / n;
+        fromX *= one_over_n;
+        fromY *= one_over_n;
+        toX *= one_over_n;
+        toY *= one_over_n;
+
+        double theta = rotation;
+        if (Double.isNaN(theta)) {
+            double c00 = s00 - n * toX * fromX;
+            double c01 = s01 - n * toX * fromY;
+            double c10 = s10 - n * toY * fromX;
+            double c11 = s11 - n * toY * fromY;
+            theta = Math.atan2(c10 - c01, c00 + c11);
+        }
+        double c = Math.cos(theta);
+        double s = Math.sin(theta);
+        transform[0] = c;
+        transform[1] = -s;
+        transform[3] = s;
+        transform[4] = c;
+        transform[2] = toX - (c * fromX - s * fromY);
+        transform[5] = toY - (s * fromX + c * fromY);
+        return n;
+    }
+
+    /**
+     * One-sided Jacobi SVD of a 3x3 row-major matrix, a = u * diag(d) * v.t(),
+     * singular values in descending order. The columns of u and v are
+     * orthonormal even if a is singular (e.g. for coplanar points).
+     */
+    static void svd3(double[] a, double[] u, double[] d, double[] v) {
+        // u starts as a copy of a; its columns are rotated until they're
+        // orthogonal, and their norms are the singular values.
+        System.arraycopy(a, 0, u, 0, 9);
+        for (int i = 0; i < 9; ++i) {
+            v[i] = (i % 4 == 0) ? 1.0 : 0.0;
+        }
+        for (int sweep = 0; sweep < 30; ++sweep) {
+            boolean rotated = false;
+            for (int p = 0; p < 2; ++p) {
+                for (int q = p + 1; q < 3; ++q) {
+                    double alpha = 0, beta = 0, gamma = 0;
+                    for (int i = 0; i < 9; i += 3) {
+                        alpha += u[i + p] * u[i + p];
+                        beta += u[i + q] * u[i + q];
+                        gamma += u[i + p] * u[i + q];
+                    }
+                    if (gamma == 0 || Math.abs(gamma) <= 1e-15 * Math.sqrt(alpha * beta))
+                        continue;
+                    rotated = true;
+                    double zeta = (beta - alpha) / (2 * gamma);
+                    double t = (zeta >= 0 ? 1.0 : -1.0) / (Math.abs(zeta) + Math.sqrt(1 + zeta * zeta));
+                    double c = 1 / Math.sqrt(1 + t * t);
+                    double s = c * t;
+                    for (int i = 0; i < 9; i += 3) {
+                        double up = u[i + p];
+                        double uq = u[i + q];
+                        u[i + p] = c * up - s * uq;
+                        u[i + q] = s * up + c * uq;
+                        double vp = v[i + p];
+                        double vq = v[i + q];
+                        v[i + p] = c * vp - s * vq;
+                        v[i + q] = s * vp + c * vq;
+                    }
+                }
+            }
+            if (!rotated)
+                break;
+        }
+        for (int j = 0; j < 3; ++j) {
+            d[j] = Math.sqrt(u[j] * u[j] + u[j + 3] * u[j + 3] + u[j + 6] * u[j + 6]);
+        }
+        // sort descending, swapping columns of u and v together.
+        if (d[0] < d[1])
+            swapColumns(u, d, v, 0, 1);
+        if (d[1] < d[2])
+            swapColumns(u, d, v, 1, 2);
+        if (d[0] < d[1])
+            swapColumns(u, d, v, 0, 1);
+        for (int j = 0; j < 2; ++j) {
+            if (d[j] > 0) {
+                u[j] /= d[j];
+                u[j + 3] /= d[j];
+                u[j + 6] /= d[j];
+            }
+        }
+        // the last column of u is determined by the others, up to sign; this
+        // way it's orthonormal even if d[2] is zero.
+        double x = u[3] * u[7] - u[6] * u[4];
+        double y = u[6] * u[1] - u[0] * u[7];
+        double z = u[0] * u[4] - u[3] * u[1];
+        if (x * u[2] + y * u[5] + z * u[8] < 0) {
+            x = -x;
+            y = -y;
+            z = -z;
+        }
+        u[2] = x;
+        u[5] = y;
+        u[8] = z;
+    }
+
+    private static void swapColumns(double[] u, double[] d, double[] v, int a, int b) {
+        double tmp = d[a];
+        d[a] = d[b];
+        d[b] = tmp;
+        for (int i = 0; i < 9; i += 3) {
+            tmp = u[i + a];
+            u[i + a] = u[i + b];
+            u[i + b] = tmp;
+            tmp = v[i + a];
+            v[i + a] = v[i + b];
+            v[i + b] = tmp;
+        }
+    }
+
+    static double det3(double[] m) {
+        return m[0] * (m[4] * m[8] - m[5] * m[7])
+                - m[1] * (m[3] * m[8] - m[5] * m[6])
+                + m[2] * (m[3] * m[7] - m[4] * m[6]);
+    }
 }
@@ -0,0 +1,341 @@
+package vision;
+
+import java.util.Arrays;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Size;
+
+/**
+ * Any number of cameras, each with its own pose on the robot, e.g. a quad kit
+ * with one camera per side. Every camera that sees the target contributes its
+ * corners to one solve for the robot's planar pose (x, z, heading), which
+ * minimizes the reprojection error over all of them; the cameras that don't
+ * see it are ignored.
+ *
+ * The solve starts from solvePnP in one camera and refines with Gauss-Newton.
+ * With the IMU, the heading is fixed and only the position is solved.
+ *
+ * The corners for each camera are found concurrently, see
+ * {@link BasePoseEstimator#setParallelCameras(boolean)}.
+ */
+public class NCameraPoseEstimator extends BasePoseEstimator {
+    final double f = 914;
+    final int height = 800;
+    final int width = 1280;
+    final double cx = width / 2;
+    final double cy = height / 2;
+    final Size dsize = new Size(width, height);
+    final Mat kMat = VisionUtil.makeIntrinsicMatrix(f, dsize);
+
+    static final int MAX_ITERATIONS = 20;
+    // stop when the step is smaller than this, radians or meters
+    static final double EPSILON = 1e-9;
+
+    final String rigName;
+    final Mat[] extrinsics;
+    // extrinsics as 3x4 row-major, for the solver
+    final double[][] e;
+    final boolean useIMU;
+
+    /**
+     * @param rigName    used in the estimator name
+     * @param placements {yaw, x, y, z} for each camera, in the robot frame; yaw
+     *                   0 looks along +z, the same way as the robot.
+     */
+    public NCameraPoseEstimator(String rigName, double[][] placements, boolean useIMU) {
+        this.rigName = rigName;
+        this.useIMU = useIMU;
+        extrinsics = new Mat[placements.length];
+        e = new double[placements.length][12];
+        for (int i = 0; i < placements.length; ++i) {
+            double[] p = placements[i];
+            extrinsics[i] = VisionUtil.makeWorldToCameraHomogeneous(p[0], p[1], p[2], p[3]);
+            for (int row = 0; row < 3; ++row) {
+                for (int col = 0; col < 4; ++col) {
+                    e[i][4 * row + col] = extrinsics[i].get(row, col)[0];
+                }
+            }
+        }
+        setParallelCameras(true);
+    }
+
+    /**
+     * Two cameras facing forward, b apart, like the binocular estimators.
+     */
+    public static NCameraPoseEstimator binocular(double b, boolean useIMU) {
+        return new NCameraPoseEstimator("Binocular", new double[][] {
+                { 0, -b / 2, 0, 0 },
+                { 0, b / 2, 0, 0 } }, useIMU);
+    }
+
+    /**
+     * Four cameras facing out, one per side, at the radius from the center.
+     */
+    public static NCameraPoseEstimator quad(double radius, boolean useIMU) {
+        double[][] placements = new double[4][];
+        for (int i = 0; i < 4; ++i) {
+            double yaw = i * Math.PI / 2;
+            placements[i] = new double[] { yaw, radius * Math.sin(yaw), 0, radius * Math.cos(yaw) };
+        }
+        return new NCameraPoseEstimator("Quad", placements, useIMU);
+    }
+
+    @Override
+    public boolean usesIMU() {
+        return useIMU;
+    }
+
+    @Override
+    public String getName() {
+        return String.format("NCameraPoseEstimator%s%s", rigName, useIMU ? "IMU" : "");
+    }
+
+    @Override
+    public String getDescription() {
+        return "Reprojection error over all cameras, Gauss-Newton";
+    }
+
+    @Override
+    public double[] getF() {
+        double[] result = new double[extrinsics.length];
+        Arrays.fill(result, f);
+        return result;
+    }
+
+    @Override
+    public double[] getTilt() {
+        return new double[extrinsics.length];
+    }
+
+    @Override
+    public Mat[] getIntrinsicMatrices() {
+        Mat[] result = new Mat[extrinsics.length];
+        Arrays.fill(result, kMat);
+        return result;
+    }
+
+    @Override
+    public MatOfDouble[] getDistortionMatrices() {
+        MatOfDouble dMat = new MatOfDouble(Mat.zeros(4, 1, CvType.CV_64F));
+        MatOfDouble[] result = new MatOfDouble[extrinsics.length];
+        Arrays.fill(result, dMat);
+        return result;
+    }
+
+    /**
+     * the x part of each camera's extrinsic translation
+     */
+    @Override
+    public double[] getXOffsets() {
+        double[] result = new double[extrinsics.length];
+        for (int i = 0; i < extrinsics.length; ++i) {
+            result[i] = e[i][3];
+        }
+        return result;
+    }
+
+    @Override
+    public Mat[] getExtrinsics() {
+        return extrinsics;
+    }
+
+    @Override
+    public Size[] getSizes() {
+        Size[] result = new Size[extrinsics.length];
+        Arrays.fill(result, dsize);
+        return result;
+    }
+
+    @Override
+    public boolean requiresAllCameras() {
+        return false;
+    }
+
+    /**
+     * @param imagePoints null for cameras that don't see the target
+     */
+    @Override
+    public Mat getPose(double heading, MatOfPoint3f targetPoints, MatOfPoint2f[] imagePoints) {
+        final int count = (int) targetPoints.total();
+        float[] target = new float[3 * count];
+        targetPoints.get(0, 0, target);
+        float[][] image = new float[imagePoints.length][];
+        int first = -1;
+        for (int i = 0; i < imagePoints.length; ++i) {
+            if (imagePoints[i] == null)
+                continue;
+            if (imagePoints[i].total() != count)
+                throw new IllegalArgumentException("Point sets need to have the same size");
+            image[i] = new float[2 * count];
+            imagePoints[i].get(0, 0, image[i]);
+            if (first < 0)
+                first = i;
+        }
+        if (first < 0)
+            return null;
+
+        // {heading, x, z} of the world-to-robot transform
+        double[] p = initialGuess(targetPoints, imagePoints[first], e[first]);
+        if (useIMU)
+            p[0] = heading;
+        if (!refine(target, image, count, p, !useIMU))
+            return null;
+
+        double c = Math.cos(p[0]);
+        double s = Math.sin(p[0]);
+        Mat transform = Mat.zeros(3, 4, CvType.CV_64F);
+        transform.put(0, 0,
+                c, 0, -s, p[1],
+                0, 1, 0, 0,
+                s, 0, c, p[2]);
+        return transform;
+    }
+
+    /**
+     * solvePnP in one camera, moved to the robot frame and flattened.
+     *
+     * @return {heading, x, z}
+     */
+    double[] initialGuess(MatOfPoint3f targetPoints, MatOfPoint2f imagePoints, double[] ext) {
+        Mat rVec = new Mat();
+        Mat tVec = new Mat();
+        Calib3d.solvePnP(targetPoints, imagePoints, kMat, new MatOfDouble(), rVec, tVec, false,
+                Calib3d.SOLVEPNP_ITERATIVE);
+        Mat rMat = new Mat();
+        Calib3d.Rodrigues(rVec, rMat);
+        double[] rc = new double[9];
+        rMat.get(0, 0, rc);
+        double[] tc = new double[3];
+        tVec.get(0, 0, tc);
+        // world-to-robot = inverse(extrinsic) * world-to-camera, where the
+        // inverse is [R.t() | -R.t() * t]; only rows 0 and 2 matter.
+        double r00 = 0, r20 = 0, tx = 0, tz = 0;
+        for (int k = 0; k < 3; ++k) {
+            r00 += ext[4 * k] * rc[3 * k];
+            r20 += ext[4 * k + 2] * rc[3 * k];
+            tx += ext[4 * k] * (tc[k] - ext[4 * k + 3]);
+            tz += ext[4 * k + 2] * (tc[k] - ext[4 * k + 3]);
+        }
+        rVec.release();
+        tVec.release();
+        rMat.release();
+        return new double[] { Math.atan2(r20, r00), tx, tz };
+    }
+
+    /**
+     * Gauss-Newton on the reprojection error over all the cameras with points.
+     *
+     * @param p          {heading, x, z}, updated in place
+     * @param fitHeading false = hold the heading fixed
+     * @return false if the normal equations are singular
+     */
+    boolean refine(float[] target, float[][] image, int count, double[] p, boolean fitHeading) {
+        // the unknowns are {heading, x, z}, or {x, z} without the heading.
+        final int offset = fitHeading ? 0 : 1;
+        final int n = 3 - offset;
+        double[] jtj = new double[9];
+        double[] jtr = new double[3];
+        double[] j = new double[3];
+        double[] du = new double[3];
+        double[] dv = new double[3];
+        for (int iteration = 0; iteration < MAX_ITERATIONS; ++iteration) {
+            Arrays.fill(jtj, 0);
+            Arrays.fill(jtr, 0);
+            double c = Math.cos(p[0]);
+            double s = Math.sin(p[0]);
+            for (int i = 0; i < image.length; ++i) {
+                if (image[i] == null)
+                    continue;
+                double[] ext = e[i];
+                for (int k = 0; k < count; ++k) {
+                    double X = target[3 * k];
+                    double Y = target[3 * k + 1];
+                    double Z = target[3 * k + 2];
+                    // in the robot frame, and its derivative by heading
+                    double rx = c * X - s * Z + p[1];
+                    double ry = Y;
+                    double rz = s * X + c * Z + p[2];
+                    double dx = -s * X - c * Z;
+                    double dz = c * X - s * Z;
+                    // in the camera frame
+                    double x = ext[0] * rx + ext[1] * ry + ext[2] * rz + ext[3];
+                    double y = ext[4] * rx + ext[5] * ry + ext[6] * rz + ext[7];
+                    double z = ext[8] * rx + ext[9] * ry + ext[10] * rz + ext[11];
+                    if (z <= 0)
+                        continue;
+                    double ru = f * x / z + cx - image[i][2 * k];
+                    double rv = f * y / z + cy - image[i][2 * k + 1];
+                    // derivatives of (x, y, z) by heading, x, and z are the
+                    // extrinsic rotation times (dx, 0, dz), (1, 0, 0), (0, 0, 1).
+                    for (int q = 0; q < 3; ++q) {
+                        double qx, qy, qz;
+                        if (q == 0) {
+                            qx = ext[0] * dx + ext[2] * dz;
+                            qy = ext[4] * dx + ext[6] * dz;
+                            qz = ext[8] * dx + ext[10] * dz;
+                        } else if (q == 1) {
+                            qx = ext[0];
+                            qy = ext[4];
+                            qz = ext[8];
+                        } else {
+                            qx = ext[2];
+                            qy = ext[6];
+                            qz = ext[10];
+                        }
+                        du[q] = f / z * (qx - x / z * qz);
+                        dv[q] = f / z * (qy - y / z * qz);
+                    }
+                    for (int a = 0; a < n; ++a) {
+                        jtr[a] += du[a + offset] * ru + dv[a + offset] * rv;
+                        for (int b = 0; b < n; ++b) {
+                            jtj[3 * a + b] += du[a + offset] * du[b + offset] + dv[a + offset] * dv[b + offset];
+                        }
+                    }
+                }
+            }
+            if (!solveNormal(jtj, jtr, n, j))
+                return false;
+            double step = 0;
+            for (int a = 0; a < n; ++a) {
+                p[a + offset] -= j[a];
+                step = Math.max(step, Math.abs(j[a]));
+            }
+            if (step < EPSILON)
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Solve the n x n (n = 2 or 3, stored 3x3) system by Cramer's rule.
+     *
+     * @return false if it's singular
+     */
+    static boolean solveNormal(double[] a, double[] b, int n, double[] x) {
+        if (n == 2) {
+            double det = a[0] * a[4] - a[1] * a[3];
+            if (Math.abs(det) < 1e-12)
+                return false;
+            x[0] = (b[0] * a[4] - a[1] * b[1]) / det;
+            x[1] = (a[0] * b[1] - b[0] * a[3]) / det;
+            return true;
+        }
+        double det = det3(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8]);
+        if (Math.abs(det) < 1e-12)
+            return false;
+        x[0] = det3(b[0], a[1], a[2], b[1], a[4], a[5], b[2], a[7], a[8]) / det;
+        x[1] = det3(a[0], b[0], a[2], a[3], b[1], a[5], a[6], b[2], a[8]) / det;
+        x[2] = det3(a[0], a[1], b[0], a[3], a[4], b[1], a[6], a[7], b[2]) / det;
+        return true;
+    }
+
+    static double det3(double a00, double a01, double a02, double a10, double a11, double a12,
+            double a20, double a21, double a22) {
+        return a00 * (a11 * a22 - a12 * a21) - a01 * (a10 * a22 - a12 * a20) + a02 * (a10 * a21 - a11 * a20);
+    }
+}
@@ -0,0 +1,108 @@
+package vision;
+
+import java.util.Random;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Precomputed image noise: the same salt-and-pepper and gaussian noise as
+ * {@link VisionUtil#addSaltAndPepper(Mat)} followed by
+ * {@link VisionUtil#addGaussianNoise(Mat)}, but drawn once, into a bank of
+ * samples, and applied to each frame in one pass over the pixels, without
+ * temporary Mats.
+ *
+ * Each row of each frame reads the bank from its own random offset, chosen
+ * with the caller's Random, so the noise is reproducible from the harness seed
+ * (unlike Core.randu/randn, which use OpenCV's global generator).
+ *
+ * The per-pixel distributions are the same as the OpenCV path:
+ * <ul>
+ * <li>uniform 0-254: at most 30 means black (about 12%), above 225 means
+ * white (about 11%)
+ * <li>then add N(128, 30), rounded and clamped to 0-255, saturating the sum
+ * </ul>
+ */
+public class NoiseBank {
+    // samples per table; a power of two, a few frames' worth.
+    public static final int SIZE = 1 << 22;
+    static final int MASK = SIZE - 1;
+    // seed of the default bank
+    public static final long DEFAULT_SEED = 0;
+    // bump this when the distributions change, to invalidate cached images
+    // (see ScenarioCache).
+    public static final int VERSION = 1;
+
+    static final byte KEEP = 0;
+    static final byte BLACK = 1;
+    static final byte WHITE = 2;
+
+    private static NoiseBank defaultBank;
+
+    private final byte[] saltAndPepper = new byte[SIZE];
+    private final byte[] gaussian = new byte[SIZE];
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>();
+
+    public NoiseBank(long seed) {
+        Random rand = new Random(seed);
+        for (int i = 0; i < SIZE; ++i) {
+            // same as Core.randu(noise, 0, 255) on 8U, then the two thresholds
+            int u = rand.nextInt(255);
+            if (u <= 30)
+                saltAndPepper[i] = BLACK;
+            else if (u > 225)
+                saltAndPepper[i] = WHITE;
+            else
+                saltAndPepper[i] = KEEP;
+            // same as Core.randn(noise, 128, 30) on 8U
+            long g = Math.round(128 + 30 * rand.nextGaussian());
+            gaussian[i] = (byte) Math.max(0, Math.min(255, g));
+        }
+    }
+
+    /**
+     * The bank is immutable, so one instance can be shared by every thread.
+     */
+    public static synchronized NoiseBank getDefault() {
+        if (defaultBank == null)
+            defaultBank = new NoiseBank(DEFAULT_SEED);
+        return defaultBank;
+    }
+
+    /**
+     * Add salt-and-pepper and then gaussian noise, in place.
+     *
+     * @param img  8-bit mono
+     * @param rand picks the offsets into the bank
+     */
+    public void apply(Mat img, Random rand) {
+        if (img.type() != CvType.CV_8UC1)
+            throw new IllegalArgumentException("expected 8UC1, got " + CvType.typeToString(img.type()));
+        int rows = img.rows();
+        int cols = img.cols();
+        byte[] buf = scratch.get();
+        if (buf == null || buf.length != rows * cols) {
+            buf = new byte[rows * cols];
+            scratch.set(buf);
+        }
+        img.get(0, 0, buf);
+        for (int y = 0; y < rows; ++y) {
+            int sp = rand.nextInt() & MASK;
+            int g = rand.nextInt() & MASK;
+            int base = y * cols;
+            for (int x = 0; x < cols; ++x) {
+                int v;
+                byte op = saltAndPepper[(sp + x) & MASK];
+                if (op == BLACK)
+                    v = 0;
+                else if (op == WHITE)
+                    v = 255;
+                else
+                    v = buf[base + x] & 0xff;
+                v += gaussian[(g + x) & MASK] & 0xff;
+                buf[base + x] = (byte) Math.min(255, v);
+            }
+        }
+        img.put(0, 0, buf);
+    }
+}
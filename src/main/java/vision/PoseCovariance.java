@@ -0,0 +1,250 @@
+package vision;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point3;
+import org.opencv.core.Size;
+
+/**
+ * The 3x3 covariance of an {x, z, heading} pose, from the Jacobian of the
+ * image points with respect to the pose, at the solved pose, and the assumed
+ * pixel noise: (J^T J)^-1 times the pixel variance. This is what a good
+ * solver achieves; a solver that ignores some of the information (e.g. the
+ * 2d binocular ones ignore v) does worse.
+ *
+ * If the heading comes from the gyro rather than the images, its variance is
+ * the gyro's, and its error also shifts x and z, since they're solved with the
+ * wrong heading; see {@link #compute}.
+ *
+ * Distortion is ignored; the points are assumed already undistorted.
+ */
+public class PoseCovariance {
+    /** assumed corner noise, pixels, per coordinate */
+    public static final double DEFAULT_PIXEL_STD_DEV = 1.0;
+    /** assumed gyro noise, radians, the same as PoseEstimatorHarness */
+    public static final double DEFAULT_GYRO_STD_DEV = 0.0035;
+
+    private PoseCovariance() {
+    }
+
+    /**
+     * @param worldToRobot  the solved pose, as the estimator returns it, 3x4
+     *                      or 4x4 double
+     * @param kMats         intrinsics per camera
+     * @param extrinsics    robot-to-camera per camera, 4x4 float
+     * @param sizes         image size per camera; cameras that don't see the
+     *                      whole target are left out
+     * @param targetPoints  world coordinates
+     * @param pixelStdDev   corner noise
+     * @param headingStdDev gyro noise, or NaN if the heading comes from the
+     *                      images
+     * @return row-major 3x3 over {x, z, heading}, or null if no camera sees
+     *         the target or the pose isn't observable
+     */
+    public static double[] compute(Mat worldToRobot, Mat[] kMats, Mat[] extrinsics, Size[] sizes,
+            MatOfPoint3f targetPoints, double pixelStdDev, double headingStdDev) {
+        return compute(worldToRobot, kMats, extrinsics, sizes, new MatOfPoint3f[] { targetPoints }, pixelStdDev,
+                headingStdDev);
+    }
+
+    /**
+     * Like {@link #compute(Mat, Mat[], Mat[], Size[], MatOfPoint3f, double, double)}
+     * for any number of targets; each camera counts the ones it sees whole.
+     */
+    public static double[] compute(Mat worldToRobot, Mat[] kMats, Mat[] extrinsics, Size[] sizes,
+            MatOfPoint3f[] targets, double pixelStdDev, double headingStdDev) {
+        int cols = worldToRobot.cols();
+        double[] t = new double[worldToRobot.rows() * cols];
+        worldToRobot.get(0, 0, t);
+        double[] pose = new double[12];
+        for (int r = 0; r < 3; ++r) {
+            for (int c = 0; c < 4; ++c) {
+                pose[4 * r + c] = t[cols * r + c];
+            }
+        }
+        double[][] world = new double[targets.length][];
+        for (int targetIdx = 0; targetIdx < targets.length; ++targetIdx) {
+            Point3[] points = targets[targetIdx].toArray();
+            world[targetIdx] = new double[3 * points.length];
+            for (int i = 0; i < points.length; ++i) {
+                world[targetIdx][3 * i] = points[i].x;
+                world[targetIdx][3 * i + 1] = points[i].y;
+                world[targetIdx][3 * i + 2] = points[i].z;
+            }
+        }
+        double[][] cameras = new double[kMats.length][];
+        for (int i = 0; i < kMats.length; ++i) {
+            double[] k = new double[9];
+            kMats[i].get(0, 0, k);
+            float[] e = new float[16];
+            extrinsics[i].get(0, 0, e);
+            // fx, fy, cx, cy, width, height, extrinsic 3x4
+            double[] camera = new double[18];
+            camera[0] = k[0];
+            camera[1] = k[4];
+            camera[2] = k[2];
+            camera[3] = k[5];
+            camera[4] = sizes[i].width;
+            camera[5] = sizes[i].height;
+            for (int j = 0; j < 12; ++j)
+                camera[6 + j] = e[j];
+            cameras[i] = camera;
+        }
+        return compute(pose, cameras, world, pixelStdDev, headingStdDev);
+    }
+
+    /**
+     * @param pose    world-to-robot, row-major 3x4
+     * @param cameras per camera: fx, fy, cx, cy, width, height, and
+     *                robot-to-camera row-major 3x4
+     * @param targets per target, the points, x, y, z each
+     */
+    static double[] compute(double[] pose, double[][] cameras, double[][] targets, double pixelStdDev,
+            double headingStdDev) {
+        // J^T J, accumulated over every point of every target that a camera
+        // sees whole; the columns are x, z, heading.
+        double[] jtj = new double[9];
+        int observations = 0;
+        for (double[] world : targets) {
+            int n = world.length / 3;
+            double[] robot = new double[3 * n];
+            // d(robot point)/d{x, z, heading}, 3x3 per point
+            double[] dRobot = new double[9 * n];
+            for (int i = 0; i < n; ++i) {
+                double wx = world[3 * i];
+                double wy = world[3 * i + 1];
+                double wz = world[3 * i + 2];
+                for (int r = 0; r < 3; ++r) {
+                    robot[3 * i + r] = pose[4 * r] * wx + pose[4 * r + 1] * wy + pose[4 * r + 2] * wz
+                            + pose[4 * r + 3];
+                }
+                // q = R^T p = world point minus robot position; turning the
+                // robot by d about y moves the point by R G q d, with
+                // G q = (-qz, 0, qx).
+                double qx = 0;
+                double qz = 0;
+                for (int r = 0; r < 3; ++r) {
+                    qx += pose[4 * r] * robot[3 * i + r];
+                    qz += pose[4 * r + 2] * robot[3 * i + r];
+                }
+                for (int r = 0; r < 3; ++r) {
+                    // moving the robot moves the point the other way
+                    dRobot[9 * i + 3 * r] = -pose[4 * r];
+                    dRobot[9 * i + 3 * r + 1] = -pose[4 * r + 2];
+                    dRobot[9 * i + 3 * r + 2] = pose[4 * r] * -qz + pose[4 * r + 2] * qx;
+                }
+            }
+            // rows of J for this target in one camera: du and dv per point
+            double[] rows = new double[6 * n];
+            for (double[] camera : cameras) {
+                if (!jacobian(camera, robot, dRobot, n, rows))
+                    continue;
+                for (int i = 0; i < 2 * n; ++i) {
+                    for (int a = 0; a < 3; ++a) {
+                        for (int b = 0; b < 3; ++b) {
+                            jtj[3 * a + b] += rows[3 * i + a] * rows[3 * i + b];
+                        }
+                    }
+                }
+                ++observations;
+            }
+        }
+        if (observations == 0)
+            return null;
+        double pixelVariance = pixelStdDev * pixelStdDev;
+        double[] cov = new double[9];
+        if (Double.isNaN(headingStdDev)) {
+            if (!invert3(jtj, cov))
+                return null;
+            for (int i = 0; i < 9; ++i)
+                cov[i] *= pixelVariance;
+            return cov;
+        }
+        // heading from the gyro: x and z are fitted with the heading held,
+        // so with A = the x and z columns, h = the heading column, and
+        // M = (A^T A)^-1, the x, z error is M A^T (pixel noise - h * gyro error).
+        double a00 = jtj[0];
+        double a01 = jtj[1];
+        double a11 = jtj[4];
+        double det = a00 * a11 - a01 * a01;
+        if (Math.abs(det) < 1e-12 * (a00 * a11 + 1e-300))
+            return null;
+        double m00 = a11 / det;
+        double m01 = -a01 / det;
+        double m11 = a00 / det;
+        // A^T h
+        double ah0 = jtj[2];
+        double ah1 = jtj[5];
+        // B = -M A^T h
+        double b0 = -(m00 * ah0 + m01 * ah1);
+        double b1 = -(m01 * ah0 + m11 * ah1);
+        double headingVariance = headingStdDev * headingStdDev;
+        cov[0] = pixelVariance * m00 + headingVariance * b0 * b0;
+        cov[1] = pixelVariance * m01 + headingVariance * b0 * b1;
+        cov[3] = cov[1];
+        cov[4] = pixelVariance * m11 + headingVariance * b1 * b1;
+        cov[2] = headingVariance * b0;
+        cov[6] = cov[2];
+        cov[5] = headingVariance * b1;
+        cov[7] = cov[5];
+        cov[8] = headingVariance;
+        return cov;
+    }
+
+    /**
+     * The image point derivatives for one target in one camera.
+     *
+     * @param robot  the points in the robot frame
+     * @param dRobot their derivatives, 3x3 per point
+     * @param rows   du then dv per point, each over {x, z, heading}
+     * @return false if the camera doesn't see every point
+     */
+    static boolean jacobian(double[] camera, double[] robot, double[] dRobot, int n, double[] rows) {
+        for (int i = 0; i < n; ++i) {
+            double px = robot[3 * i];
+            double py = robot[3 * i + 1];
+            double pz = robot[3 * i + 2];
+            double x = camera[6] * px + camera[7] * py + camera[8] * pz + camera[9];
+            double y = camera[10] * px + camera[11] * py + camera[12] * pz + camera[13];
+            double z = camera[14] * px + camera[15] * py + camera[16] * pz + camera[17];
+            if (z <= 0)
+                return false;
+            double u = camera[0] * x / z + camera[2];
+            double v = camera[1] * y / z + camera[3];
+            if (u < 0 || v < 0 || u > camera[4] || v > camera[5])
+                return false;
+            for (int c = 0; c < 3; ++c) {
+                double drx = dRobot[9 * i + c];
+                double dry = dRobot[9 * i + 3 + c];
+                double drz = dRobot[9 * i + 6 + c];
+                double dx = camera[6] * drx + camera[7] * dry + camera[8] * drz;
+                double dy = camera[10] * drx + camera[11] * dry + camera[12] * drz;
+                double dz = camera[14] * drx + camera[15] * dry + camera[16] * drz;
+                rows[6 * i + c] = camera[0] * (dx - x * dz / z) / z;
+                rows[6 * i + 3 + c] = camera[1] * (dy - y * dz / z) / z;
+            }
+        }
+        return true;
+    }
+
+    /** @return false if singular */
+    static boolean invert3(double[] m, double[] out) {
+        double c00 = m[4] * m[8] - m[5] * m[7];
+        double c01 = m[5] * m[6] - m[3] * m[8];
+        double c02 = m[3] * m[7] - m[4] * m[6];
+        double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+        double scale = Math.abs(m[0] * m[4] * m[8]) + 1e-300;
+        if (Math.abs(det) < 1e-12 * scale)
+            return false;
+        out[0] = c00 / det;
+        out[1] = (m[2] * m[7] - m[1] * m[8]) / det;
+        out[2] = (m[1] * m[5] - m[2] * m[4]) / det;
+        out[3] = c01 / det;
+        out[4] = (m[0] * m[8] - m[2] * m[6]) / det;
+        out[5] = (m[2] * m[3] - m[0] * m[5]) / det;
+        out[6] = c02 / det;
+        out[7] = (m[1] * m[6] - m[0] * m[7]) / det;
+        out[8] = (m[0] * m[4] - m[1] * m[3]) / det;
+        return true;
+    }
+}
@@ -1,5 +1,6 @@
 package vision;
 
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
 import org.opencv.core.MatOfPoint2f;
@@ -23,14 +24,83 @@ public interface PoseEstimator {
 
     public MatOfDouble[] getDistortionMatrices();
 
-    // TODO: make this return transformation matrices instead. for now it should
-    // return +- b/2
+    // for the cameras on the x axis, +- b/2. see getExtrinsics() for the
+    // general case.
     public double[] getXOffsets();
 
+    /**
+     * @return robot-to-camera transform for each camera, 4x4 CV_32F, e.g. from
+     *         {@link VisionUtil#makeWorldToCameraHomogeneous(double, double, double, double)}
+     *         with the camera's yaw and position on the robot. The default is
+     *         just the x offsets.
+     */
+    public default Mat[] getExtrinsics() {
+        double[] b = getXOffsets();
+        Mat[] extrinsics = new Mat[b.length];
+        for (int i = 0; i < b.length; ++i) {
+            extrinsics[i] = VisionUtil.translateX(Mat.eye(4, 4, CvType.CV_32F), b[i]);
+        }
+        return extrinsics;
+    }
+
+    /**
+     * @return true if getPose needs every camera to see the target; otherwise
+     *         the image points for cameras that don't see it are null.
+     */
+    public default boolean requiresAllCameras() {
+        return true;
+    }
+
     public Size[] getSizes();
 
     public Mat getPose(double heading, MatOfPoint3f targetPoints, MatOfPoint2f[] imagePoints);
 
     // idx is for filenames for debugging
     public Mat getPose(int idx, boolean writeFiles, double heading, MatOfPoint3f targetPoints, Mat[] images);
+
+    /**
+     * Like {@link #getPose(int, boolean, double, MatOfPoint3f, Mat[])}, with
+     * the heading at the moment the images were captured.
+     *
+     * @param gyro              recent headings
+     * @param captureTimeMicros when the images were captured, in the gyro's
+     *                          timebase
+     */
+    public default Mat getPose(int idx, boolean writeFiles, GyroHistory gyro, long captureTimeMicros,
+            MatOfPoint3f targetPoints, Mat[] images) {
+        return getPose(idx, writeFiles, gyro.getHeading(captureTimeMicros), targetPoints, images);
+    }
+
+    /**
+     * @return true if the heading in the pose is the one passed to getPose
+     *         rather than one solved from the images
+     */
+    public default boolean usesIMU() {
+        return false;
+    }
+
+    /** @return assumed corner noise, pixels, per coordinate */
+    public default double getPixelStdDev() {
+        return PoseCovariance.DEFAULT_PIXEL_STD_DEV;
+    }
+
+    /** @return assumed noise of the heading passed to getPose, radians */
+    public default double getHeadingStdDev() {
+        return PoseCovariance.DEFAULT_GYRO_STD_DEV;
+    }
+
+    /**
+     * The uncertainty of a pose from this estimator, see
+     * {@link PoseCovariance}, for weighting it against other measurements.
+     *
+     * @param pose         from getPose
+     * @param targetPoints the ones passed to getPose
+     * @return row-major 3x3 over {x, z, heading} as in
+     *         {@link VisionUtil#transformToPose(Mat, double[])}, or null if
+     *         unknown
+     */
+    public default double[] getCovariance(Mat pose, MatOfPoint3f targetPoints) {
+        return PoseCovariance.compute(pose, getIntrinsicMatrices(), getExtrinsics(), getSizes(), targetPoints,
+                getPixelStdDev(), usesIMU() ? getHeadingStdDev() : Double.NaN);
+    }
 }
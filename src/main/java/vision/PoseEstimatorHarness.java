@@ -1,9 +1,16 @@
 package vision;
 
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
@@ -12,8 +19,8 @@ import org.opencv.core.MatOfDouble;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
 import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
 
 /**
  * Evaluate a bunch of pose estimators, do parameter studies, etc.
@@ -40,13 +47,90 @@ public class PoseEstimatorHarness {
     // true = use image; false = use ideal points
     final boolean poseFromImage = true;
 
+    // true = fill the projected target directly (VisionUtil.rasterizeImage)
+    // into reused frames; false = warp a target bitmap (VisionUtil.renderImage),
+    // which is much slower.
+    final boolean rasterize = true;
+
     // add (a lot of) gaussian and shot noise.
     final boolean addImageNoise = true;
 
+    // true = take the noise from the precomputed NoiseBank, in one pass and
+    // seeded per cell; false = draw it with OpenCV every frame, which is slower
+    // and not reproducible.
+    final boolean noiseBank = true;
+
     // write various image files for debugging.
-    final boolean writeFiles = true;
+    final boolean writeFiles;
+
+    // true = spread the grid cells over a thread pool; the output is the same
+    // either way.
+    final boolean parallel = true;
+    final int threads = Runtime.getRuntime().availableProcessors();
+
+    // true = track the target from cell to cell (see TargetTracker) and report
+    // the region hit rate. the result then depends on the cell order, so this
+    // forces the serial path.
+    final boolean trackTarget = false;
+
+    // true = seed MonocularPoseEstimator's solvePnP with the previous cell's
+    // solution, predicted forward with the gyro, and report how often that
+    // works. like trackTarget, this forces the serial path.
+    final boolean warmStart = false;
+
+    // true = stream every cell to a CSV file, see ResultsWriter. the file is
+    // in the "vision.resultsFile" system property, or "pose-results.csv" in
+    // the temp directory.
+    final boolean writeResults = true;
+
+    // true = show latency percentiles per pipeline stage for each estimator,
+    // see StageTimings.
+    final boolean showTimings = true;
+
+    // true = keep rendered cells on disk (see ScenarioCache) so later runs
+    // with the same cameras skip rendering. that's a couple of megabytes per
+    // cell, never evicted, so it's off unless the "vision.scenarioCache"
+    // system property names the directory.
+    final boolean cacheScenarios;
+
+    // true = run each estimator twice, with plain and then subpixel corners
+    // (see CornerRefiner), and show the accuracy and latency of each.
+    final boolean compareRefinement = false;
+
+    // true = find the target with BlobDetector instead of findContours.
+    final boolean blobDetector = false;
+
+    // true = compare each estimator's own covariance (see
+    // PoseEstimator.getCovariance()) with its actual errors. if they agree,
+    // the squared errors over the variances average about 1; for the image
+    // path, where the corner noise is unknown, the ratio says what it is.
+    final boolean checkCovariance = false;
+
+    // true = the binocular estimators drop outlying corners (see
+    // RansacRigid2d) before solving.
+    final boolean robust = false;
+
+    // base of the per-cell noise seeds
+    static final int SEED = 42;
+
+    // rendered frames, one per camera per thread, reused from cell to cell.
+    private final ThreadLocal<Mat[]> frames = new ThreadLocal<Mat[]>();
+
+    private final ScenarioCache scenarioCache;
 
     public PoseEstimatorHarness() {
+        this(true, System.getProperty(ScenarioCache.DIRECTORY_PROPERTY) != null);
+    }
+
+    /**
+     * For other sweeps over the same cells, e.g. {@link AccuracyMapGenerator},
+     * which are too big for debug images and the scenario cache.
+     */
+    PoseEstimatorHarness(boolean writeFiles, boolean cacheScenarios) {
+        this.writeFiles = writeFiles;
+        this.cacheScenarios = cacheScenarios;
+        scenarioCache = cacheScenarios ? ScenarioCache.getDefault() : null;
+
         // these are ranked worst to best
 
         poseEstimators = new ArrayList<PoseEstimator>();
@@ -77,6 +161,13 @@ public class PoseEstimatorHarness {
 
         // awesome
         poseEstimators.add(new BinocularConstrainedPoseEstimator(true));
+
+        // one solve over whichever cameras see the target
+     //   poseEstimators.add(NCameraPoseEstimator.binocular(0.8, true));
+     //   poseEstimators.add(NCameraPoseEstimator.quad(0.3, true));
+
+        // every target in view, see FieldLayout.example()
+     //   poseEstimators.add(new FieldLayoutPoseEstimator(FieldLayout.example(), true));
     }
 
     public void run() {
@@ -85,228 +176,656 @@ public class PoseEstimatorHarness {
             System.out.printf("%40s %10s %10s %10s %10s %10s %10s %10s %10s\n",
                     "name", "heading", "X", "Z", "position", "bearing", "range", "rate", "failures");
         }
-        for (PoseEstimator e : poseEstimators) {
-            Random rand = new Random(42);
-            final String name = e.getName();
-            // final String description = e.getDescription();
-            final Mat[] kMat = e.getIntrinsicMatrices();
-            final MatOfDouble[] dMat = e.getDistortionMatrices();
-            final double[] b = e.getXOffsets();
-            final Size[] sizes = e.getSizes();
-            {
-                Objects.requireNonNull(kMat);
-                if (kMat.length < 1)
-                    throw new IllegalArgumentException();
-
-                Objects.requireNonNull(dMat);
-                if (dMat.length < 1)
-                    throw new IllegalArgumentException();
-                if (dMat.length != kMat.length)
-                    throw new IllegalArgumentException();
-
-                Objects.requireNonNull(b);
-                if (b.length < 1)
-                    throw new IllegalArgumentException();
-                if (b.length != dMat.length)
-                    throw new IllegalArgumentException();
+        ExecutorService pool = parallel && !trackTarget && !warmStart ? Executors.newFixedThreadPool(threads) : null;
+        ResultsWriter results = writeResults ? new ResultsWriter(getResultsPath()) : null;
+        try {
+            for (PoseEstimator e : poseEstimators) {
+                if (e instanceof BasePoseEstimator) {
+                    BasePoseEstimator b = (BasePoseEstimator) e;
+                    b.setBlobDetector(blobDetector);
+                    b.setRobust(robust);
+                }
+                if (compareRefinement && e instanceof BasePoseEstimator) {
+                    BasePoseEstimator b = (BasePoseEstimator) e;
+                    for (boolean refine : new boolean[] { false, true }) {
+                        b.setRefineCorners(refine);
+                        run(e, pool, results);
+                    }
+                    b.setRefineCorners(false);
+                } else {
+                    run(e, pool, results);
+                }
+            }
+        } finally {
+            if (pool != null)
+                pool.shutdown();
+            if (results != null)
+                results.close();
+        }
+        if (results != null)
+            System.out.printf("results in %s: %d rows\n", getResultsPath(), results.getRows());
+        if (scenarioCache != null)
+            System.out.printf("scenario cache: %d hits, %d misses\n", scenarioCache.getHits(),
+                    scenarioCache.getMisses());
+        if (showTimings) {
+            System.out.println("latency per stage, microseconds...");
+            for (PoseEstimator e : poseEstimators) {
+                if (e instanceof BasePoseEstimator)
+                    ((BasePoseEstimator) e).getTimings().print(e.getName());
+            }
+        }
+        if (writeFiles) {
+            DebugImageWriter writer = DebugImageWriter.getDefault();
+            try {
+                writer.flush();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.printf("debug images in %s: %d written, %d dropped\n",
+                    writer.getDirectory(), writer.getWritten(), writer.getDropped());
+        }
+    }
+
+    /**
+     * Sweep one estimator over the grid. Each cell is an independent work unit
+     * with its own seed, so the serial and parallel paths produce the same
+     * results; the results are always reduced in grid order.
+     */
+    void run(PoseEstimator e, ExecutorService pool, ResultsWriter results) {
+        StageTimings timings = e instanceof BasePoseEstimator ? ((BasePoseEstimator) e).getTimings() : null;
+        final boolean refined = timings != null && ((BasePoseEstimator) e).getRefineCorners();
+        final String name = refined ? e.getName() + "Refined" : e.getName();
+        // the histograms are cumulative, so this pass is the difference.
+        double[] latencyBefore = compareRefinement && timings != null ? totalLatency(timings) : null;
+        BasePoseEstimator tracked = null;
+        if (trackTarget && e instanceof BasePoseEstimator) {
+            tracked = (BasePoseEstimator) e;
+            tracked.setTracking(true);
+        }
+        MonocularPoseEstimator warm = null;
+        if (warmStart && e instanceof MonocularPoseEstimator) {
+            warm = (MonocularPoseEstimator) e;
+            warm.setWarmStart(true);
+        }
+        // final String description = e.getDescription();
+        final Mat[] kMat = e.getIntrinsicMatrices();
+        final MatOfDouble[] dMat = e.getDistortionMatrices();
+        final Mat[] extrinsics = e.getExtrinsics();
+        {
+            Objects.requireNonNull(kMat);
+            if (kMat.length < 1)
+                throw new IllegalArgumentException();
+
+            Objects.requireNonNull(dMat);
+            if (dMat.length < 1)
+                throw new IllegalArgumentException();
+            if (dMat.length != kMat.length)
+                throw new IllegalArgumentException();
+
+            Objects.requireNonNull(extrinsics);
+            if (extrinsics.length != kMat.length)
+                throw new IllegalArgumentException();
 
+        }
+
+        List<Cell> cells = new ArrayList<Cell>();
+        int panIdx = 0;
+        for (double pan = -3 * Math.PI / 8; pan <= 3 * Math.PI / 8; pan += Math.PI / 8, ++panIdx) {
+            int zIdx = 0;
+            for (double zPos = -10.0; zPos <= -1.0; zPos += 1.0, ++zIdx) {
+                int xIdx = 0;
+                for (double xPos = -5; xPos <= 5; xPos += 1.0, ++xIdx) {
+                    // for (double pan = 0; pan <= 0; pan += Math.PI / 8) {
+                    // for (double zPos = -5.0; zPos <= -5.0; zPos += 1.0) {
+                    // for (double xPos = 0; xPos <= 0; xPos += 1.0) {
+                    cells.add(new Cell(cells.size(), panIdx, zIdx, xIdx, pan, zPos, xPos));
+                }
             }
+        }
 
-            MatOfPoint3f targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
-
-            // pigeon/navx claim 1.5 degrees for fused output
-            // final double gyroNoise = 0.025;
-            // LIS3MDL claims about 1% thermal noise at 80hz
-            // average 8 samples = 1/sqrt(8)
-            double gyroNoise = 0.0035; //
-            // 50fps video => 10hz output = 5x averaging
-            int pointMultiplier = 1;
-            double noisePixels = 2;
-            MatOfPoint3f targetPointsMultiplied = VisionUtil.duplicatePoints(targetGeometryMeters, pointMultiplier);
-
-            double targetBrightnessMean = 230;
-            double targetBrightnessStdev = 15;
-            int idx = 0;
-            double yPos = 0;
-            // double tilt = 0;
-
-            double panErrSquareSum = 0.0;
-            double xErrSquareSum = 0.0;
-            double zErrSquareSum = 0.0;
-            double positionErrSquareSum = 0.0;
-            double relativeBearingErrSquareSum = 0.0;
-            double rangeErrSquareSum = 0.0;
-            int failures = 0;
-            long workTime = 0;
+        List<Future<CellResult>> futures = new ArrayList<Future<CellResult>>();
+        if (pool != null) {
+            for (Cell cell : cells) {
+                futures.add(pool.submit(() -> evaluate(e, cell)));
+            }
+        }
+
+        Summary summary = new Summary();
+
+        if (showGrid)
+            System.out.println(
+                    "               name, idx,  pan,  xpos,  ypos,  zpos, rbear, range,  ppan, pxpos, pypos, pzpos, prbear, prange, panErr, xErr, zErr, posErr, relativeBearingErr, rangeErr");
+        for (int i = 0; i < cells.size(); ++i) {
+            CellResult r;
+            if (pool == null) {
+                r = evaluate(e, cells.get(i));
+            } else {
+                try {
+                    r = futures.get(i).get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            // one collection per batch of cells rather than one per cell per thread
+            if (pool == null || i % threads == threads - 1)
+                System.gc();
+            // the file, the grid, and the summary all see the same records.
+            if (results != null)
+                results.write(name, r);
+            summary.add(r);
+            if (r.skipped() || r.failed())
+                continue;
 
             if (showGrid)
-                System.out.println(
-                        "               name, idx,  pan,  xpos,  ypos,  zpos, rbear, range,  ppan, pxpos, pypos, pzpos, prbear, prange, panErr, xErr, zErr, posErr, relativeBearingErr, rangeErr");
-            for (double pan = -3 * Math.PI / 8; pan <= 3 * Math.PI / 8; pan += Math.PI / 8) {
-                for (double zPos = -10.0; zPos <= -1.0; zPos += 1.0) {
-                    pose: for (double xPos = -5; xPos <= 5; xPos += 1.0) {
-                        // for (double pan = 0; pan <= 0; pan += Math.PI / 8) {
-                        // for (double zPos = -5.0; zPos <= -5.0; zPos += 1.0) {
-                        // pose: for (double xPos = 0; xPos <= 0; xPos += 1.0) {
-                        double navBearing = Math.atan2(xPos, -zPos);
-                        double relativeBearing = navBearing + pan;
-                        double range = Math.sqrt(xPos * xPos + zPos * zPos);
-
-                        // don't bother with oblique angles, the projection is wrong for these cases.
-                        if (Math.abs(relativeBearing) > Math.PI / 2) {
-                            log.debugmsg(2, "oblique");
-                            continue;
-                        }
-
-                        // these are the calculated points
-                        MatOfPoint2f[] idealImagePoints = new MatOfPoint2f[kMat.length];
-                        Mat[] images = new Mat[kMat.length];
-                        for (int cameraIdx = 0; cameraIdx < kMat.length; ++cameraIdx) {
-                            // make transform from world origin to camera center
-                            Mat worldToCameraCenterHomogeneous = VisionUtil.makeWorldToCameraHomogeneous(pan, xPos,
-                                    yPos,
-                                    zPos);
-                            Mat worldToEye = VisionUtil.translateX(worldToCameraCenterHomogeneous, b[cameraIdx]);
-
-                            // make the points the camera sees
-                            MatOfPoint2f pts = VisionUtil.imagePoints(kMat[cameraIdx], dMat[cameraIdx],
-                                    targetGeometryMeters, worldToEye);
-
-                            if (perturbPoints)
-                                pts = VisionUtil.perturbPoints(pts, pointMultiplier, noisePixels, rand);
-
-                            Size size = sizes[cameraIdx];
-                            final Rect viewport = new Rect(0, 0, (int) size.width, (int) size.height);
-                            if (!VisionUtil.inViewport(pts, viewport)) {
-                                log.debugmsg(2, "not in view");
-                                continue pose;
-                            }
-                            if (writeFiles)
-                                VisionUtil.writePng(pts, (int) size.width, (int) size.height,
-                                        String.format("C:\\Users\\joelt\\Desktop\\pics\\img-%s-%d-%d.png", name, idx,
-                                                cameraIdx));
-                            idealImagePoints[cameraIdx] = pts;
-
-                            // also make an image
-                            // Mat cameraView = VisionUtil.makeImage(xPos, yPos, zPos, tilt, pan,
-                            // kMat[cameraIdx],
-                            // dMat[cameraIdx], targetGeometryMeters, size);
-
-                            int targetBrightness = (int) Math.min(255, targetBrightnessMean
-                                    + rand.nextGaussian() * targetBrightnessStdev);
-                            Mat cameraView = VisionUtil.renderImage(targetBrightness, size, targetGeometryMeters, pts);
-
-                            if (cameraView == null) {
-                                log.debugmsg(2, "no image");
-                                continue pose;
-                            }
-
-                            if (addImageNoise) {
-                                VisionUtil.addSaltAndPepper(cameraView);
-                                VisionUtil.addGaussianNoise(cameraView);
-                            }
-                            if (writeFiles)
-                                Imgcodecs.imwrite(
-                                        String.format("C:\\Users\\joelt\\Desktop\\pics\\target-%s-%d-%d-distorted.png",
-                                                name, idx, cameraIdx),
-                                        cameraView);
-                            images[cameraIdx] = cameraView;
-
-                        }
-
-                        // if the target isn't in the viewport, skip
-
-                        
-
-                        double gyro = pan;
-
-                        if (perturbGyro)
-                            gyro += (gyroNoise * rand.nextGaussian());
-
-                        long startTime = System.currentTimeMillis();
-                        Mat transform;
-                        if (poseFromImage)
-                            transform = e.getPose(idx, writeFiles, gyro, targetGeometryMeters, images);
-                        else
-                            transform = e.getPose(gyro, targetPointsMultiplied, idealImagePoints);
-
-                        workTime += (System.currentTimeMillis() - startTime);
-                        for (int cameraIdx = 0; cameraIdx < kMat.length; ++cameraIdx) {
-                            images[cameraIdx].release();
-                        }
-                        System.gc();
-                        if (transform == null) {
-                            failures++;
-                            log.debugmsg(2, "no transform");
-                            continue pose;
-                        }
-                        ++idx;
-                        log.debug(2, "transform", transform);
-                        Mat rmat = transform.submat(0, 3, 0, 3);
-
-                        double euler = Math.atan2(rmat.get(2, 0)[0], rmat.get(0, 0)[0]);
-                        log.debug(1, "euler", euler);
-                        Mat cameraTVec = Mat.zeros(3, 1, CvType.CV_64F);
-                        cameraTVec.put(0, 0,
-                                transform.get(0, 3)[0],
-                                transform.get(1, 3)[0],
-                                transform.get(2, 3)[0]);
-                        log.debug(1, "cameraTVec", cameraTVec);
-                        Mat pworldTVec = new Mat();
-                        log.debug(1, "rmat", rmat);
-                        Core.gemm(rmat.t(), cameraTVec, -1.0, new Mat(), 0.0, pworldTVec);
-                        log.debug(1, "pWorldTVec", pworldTVec);
-
-                        double pxPos = pworldTVec.get(0, 0)[0];
-                        double pyPos = pworldTVec.get(1, 0)[0];
-                        double pzPos = pworldTVec.get(2, 0)[0];
-                        double ppan = euler;
-
-                        double pNavBearing = Math.atan2(pxPos, -pzPos);
-                        double pRelativeBearing = pNavBearing + ppan;
-                        double pRange = Math.sqrt(pxPos * pxPos + pzPos * pzPos);
-
-                        double panErr = pan - ppan;
-                        double xErr = xPos - pxPos;
-                        double zErr = zPos - pzPos;
-                        double relativeBearingErr = relativeBearing - pRelativeBearing;
-                        double rangeErr = range - pRange;
-                        double posErr = Math.sqrt(xErr * xErr + zErr * zErr);
-
-                        panErrSquareSum += panErr * panErr;
-                        xErrSquareSum += xErr * xErr;
-                        zErrSquareSum += zErr * zErr;
-                        positionErrSquareSum += posErr * posErr;
-                        relativeBearingErrSquareSum += relativeBearingErr * relativeBearingErr;
-                        rangeErrSquareSum += rangeErr * rangeErr;
-
-                        if (showGrid)
-                            System.out.printf(
-                                    "%40s, %3d, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %7.4f, %6.2f\n",
-                                    name, idx, pan, xPos, yPos, zPos, relativeBearing, range, ppan, pxPos, pyPos, pzPos,
-                                    pRelativeBearing, pRange,
-                                    panErr, xErr, zErr, posErr, relativeBearingErr, rangeErr);
+                System.out.printf(
+                        "%40s, %3d, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %6.2f, %7.4f, %6.2f\n",
+                        name, summary.count, r.pan, r.xPos, r.yPos, r.zPos, r.relativeBearing, r.range, r.ppan,
+                        r.pxPos, r.pyPos, r.pzPos, r.pRelativeBearing, r.pRange,
+                        r.panErr, r.xErr, r.zErr, r.posErr, r.relativeBearingErr, r.rangeErr);
+        }
 
-                    }
+        if (showSummary) {
+            if (showGrid)
+                System.out.println("===========================");
+            System.out.printf("%40s %10.4f %10.4f %10.4f %10.4f %10.4f %10.4f %10.4f %10d\n",
+                    name, summary.rmse(summary.panErrSquareSum), summary.rmse(summary.xErrSquareSum),
+                    summary.rmse(summary.zErrSquareSum), summary.rmse(summary.positionErrSquareSum),
+                    summary.rmse(summary.relativeBearingErrSquareSum), summary.rmse(summary.rangeErrSquareSum),
+                    summary.rate(), summary.failures);
+            if (showGrid)
+                System.out.println("===========================");
+        }
+
+        if (tracked != null) {
+            TargetTracker[] trackers = tracked.getTrackers(kMat.length);
+            for (int cameraIdx = 0; cameraIdx < trackers.length; ++cameraIdx) {
+                System.out.printf("%40s camera %d frames %d region hit rate %5.3f pixels/frame %10.0f\n",
+                        name, cameraIdx, trackers[cameraIdx].getFrames(), trackers[cameraIdx].getHitRate(),
+                        trackers[cameraIdx].getPixelsPerFrame());
+            }
+            tracked.setTracking(false);
+        }
+        if (warm != null) {
+            System.out.printf("%40s warm solves %d cold solves %d cold restarts %d\n",
+                    name, warm.getWarmSolves(), warm.getColdSolves(), warm.getColdRestarts());
+            warm.setWarmStart(false);
+        }
+        if (checkCovariance && summary.covarianceCount > 0) {
+            System.out.printf(
+                    "%40s predicted/actual sd x %7.4f/%7.4f z %7.4f/%7.4f heading %7.4f/%7.4f normalized square error x %6.2f z %6.2f heading %6.2f implied pixel sd %5.2f\n",
+                    name, summary.covarianceRms(summary.xVarSum), summary.rmse(summary.xErrSquareSum),
+                    summary.covarianceRms(summary.zVarSum), summary.rmse(summary.zErrSquareSum),
+                    summary.covarianceRms(summary.panVarSum), summary.rmse(summary.panErrSquareSum),
+                    summary.covarianceMean(summary.xNormSquareSum), summary.covarianceMean(summary.zNormSquareSum),
+                    summary.covarianceMean(summary.panNormSquareSum),
+                    e.getPixelStdDev() * Math.sqrt(summary.covarianceMean(
+                            summary.xNormSquareSum + summary.zNormSquareSum) / 2));
+        }
+        if (latencyBefore != null) {
+            double[] latencyAfter = totalLatency(timings);
+            double frames = latencyAfter[0] - latencyBefore[0];
+            System.out.printf("%40s range RMSE %7.4f position RMSE %7.4f total %8.1f us/frame refine %6.1f us/frame\n",
+                    name, summary.rmse(summary.rangeErrSquareSum), summary.rmse(summary.positionErrSquareSum),
+                    (latencyAfter[1] - latencyBefore[1]) / frames / 1e3,
+                    (latencyAfter[2] - latencyBefore[2]) / frames / 1e3);
+        }
+    }
+
+    /**
+     * @return {frames, total ns, refine ns} so far
+     */
+    static double[] totalLatency(StageTimings timings) {
+        LatencyHistogram total = timings.getHistogram(StageTimings.Stage.TOTAL);
+        LatencyHistogram refine = timings.getHistogram(StageTimings.Stage.REFINE);
+        return new double[] { total.getCount(), total.getMean() * total.getCount(),
+                refine.getMean() * refine.getCount() };
+    }
+
+    /**
+     * Render, perturb, and solve one grid cell.
+     * 
+     * @return the result; see {@link CellResult#skip} and
+     *         {@link CellResult#failure} for cells without an estimate.
+     */
+    CellResult evaluate(PoseEstimator e, Cell cell) {
+        final String name = e.getName();
+        final Mat[] kMat = e.getIntrinsicMatrices();
+        final MatOfDouble[] dMat = e.getDistortionMatrices();
+        final Mat[] extrinsics = e.getExtrinsics();
+        final Size[] sizes = e.getSizes();
+        final double pan = cell.pan;
+        final double zPos = cell.zPos;
+        final double xPos = cell.xPos;
+        final int idx = cell.idx;
+
+        // seeded from the cell, not the sweep, so the order of evaluation doesn't
+        // matter.
+        Random rand = new Random(Objects.hash(SEED, cell.panIdx, cell.zIdx, cell.xIdx));
+
+        MatOfPoint3f targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+
+        // pigeon/navx claim 1.5 degrees for fused output
+        // final double gyroNoise = 0.025;
+        // LIS3MDL claims about 1% thermal noise at 80hz
+        // average 8 samples = 1/sqrt(8)
+        double gyroNoise = 0.0035; //
+        // 50fps video => 10hz output = 5x averaging
+        int pointMultiplier = 1;
+        double noisePixels = 2;
+        MatOfPoint3f targetPointsMultiplied = VisionUtil.duplicatePoints(targetGeometryMeters, pointMultiplier);
+
+        double targetBrightnessMean = 230;
+        double targetBrightnessStdev = 15;
+        double yPos = 0;
+        // double tilt = 0;
+
+        double navBearing = Math.atan2(xPos, -zPos);
+        double relativeBearing = navBearing + pan;
+        double range = Math.sqrt(xPos * xPos + zPos * zPos);
+
+        CellResult r = new CellResult();
+        r.idx = idx;
+        r.pan = pan;
+        r.xPos = xPos;
+        r.yPos = yPos;
+        r.zPos = zPos;
+        r.relativeBearing = relativeBearing;
+        r.range = range;
+
+        // don't bother with oblique angles, the projection is wrong for these cases.
+        if (Math.abs(relativeBearing) > Math.PI / 2) {
+            log.debugmsg(2, "oblique");
+            r.skip = "oblique";
+            return r;
+        }
+
+        // make transform from world origin to camera center
+        Mat worldToCameraCenterHomogeneous = VisionUtil.makeWorldToCameraHomogeneous(pan, xPos,
+                yPos,
+                zPos);
+
+        // the targets in the world: just the one at the origin, unless the
+        // estimator knows the field layout, in which case it's all of them.
+        final boolean fieldLayout = e instanceof FieldLayoutPoseEstimator;
+        MatOfPoint3f[] worldTargets = new MatOfPoint3f[] { targetGeometryMeters };
+        if (fieldLayout) {
+            List<FieldLayout.Target> targets = ((FieldLayoutPoseEstimator) e).getLayout().getTargets();
+            worldTargets = new MatOfPoint3f[targets.size()];
+            for (int targetIdx = 0; targetIdx < worldTargets.length; ++targetIdx) {
+                worldTargets[targetIdx] = targets.get(targetIdx).corners;
+            }
+        }
+
+        // these are the calculated points, for the first target each camera
+        // sees; null for a camera that doesn't see one, if the estimator allows
+        // that. the other targets in view are drawn too.
+        MatOfPoint2f[] idealImagePoints = new MatOfPoint2f[kMat.length];
+        MatOfPoint2f[][] otherImagePoints = new MatOfPoint2f[kMat.length][worldTargets.length];
+        MatOfPoint3f idealTargetPoints = targetPointsMultiplied;
+        int visibleCameras = 0;
+        for (int cameraIdx = 0; cameraIdx < kMat.length; ++cameraIdx) {
+            Mat worldToEye = VisionUtil.worldToCamera(worldToCameraCenterHomogeneous, extrinsics[cameraIdx]);
+
+            Size size = sizes[cameraIdx];
+            final Rect viewport = new Rect(0, 0, (int) size.width, (int) size.height);
+            MatOfPoint2f pts = null;
+            for (int targetIdx = 0; targetIdx < worldTargets.length; ++targetIdx) {
+                // make the points the camera sees
+                MatOfPoint2f targetPts = VisionUtil.imagePoints(kMat[cameraIdx], dMat[cameraIdx],
+                        worldTargets[targetIdx], worldToEye);
+
+                if (perturbPoints)
+                    targetPts = VisionUtil.perturbPoints(targetPts, pointMultiplier, noisePixels, rand);
+
+                if (!VisionUtil.inFront(worldTargets[targetIdx], worldToEye)
+                        || !VisionUtil.inViewport(targetPts, viewport))
+                    continue;
+                if (pts == null) {
+                    pts = targetPts;
+                    if (fieldLayout && cameraIdx == 0)
+                        idealTargetPoints = worldTargets[targetIdx];
+                } else {
+                    otherImagePoints[cameraIdx][targetIdx] = targetPts;
+                }
+            }
+            if (pts == null) {
+                if (e.requiresAllCameras()) {
+                    log.debugmsg(2, "not in view");
+                    r.skip = "not in view";
+                    return r;
                 }
+                continue;
+            }
+            ++visibleCameras;
+            if (writeFiles)
+                VisionUtil.writePng(idx, pts, (int) size.width, (int) size.height,
+                        String.format("img-%s-%d-%d.png", name, idx, cameraIdx));
+            idealImagePoints[cameraIdx] = pts;
+        }
+        if (visibleCameras == 0) {
+            log.debugmsg(2, "not in view");
+            r.skip = "not in view";
+            return r;
+        }
+
+        // rendering is the expensive part, so it's cached; everything the
+        // images depend on goes in the key.
+        ScenarioCache.Key key = null;
+        ScenarioCache.Scenario cached = null;
+        if (scenarioCache != null) {
+            key = new ScenarioCache.Key().add(SEED).add(cell.panIdx).add(cell.zIdx).add(cell.xIdx)
+                    .add(pan).add(xPos).add(yPos).add(zPos)
+                    .add(targetBrightnessMean).add(targetBrightnessStdev)
+                    .add(perturbPoints).add(noisePixels).add(perturbGyro).add(gyroNoise)
+                    .add(rasterize).add(addImageNoise).add(noiseBank)
+                    .add(targetGeometryMeters);
+            if (noiseBank)
+                key.add(NoiseBank.VERSION).add(NoiseBank.SIZE).add(NoiseBank.DEFAULT_SEED);
+            if (fieldLayout) {
+                for (MatOfPoint3f target : worldTargets) {
+                    key.add(target);
+                }
+            }
+            for (int cameraIdx = 0; cameraIdx < kMat.length; ++cameraIdx) {
+                key.add(kMat[cameraIdx]).add(dMat[cameraIdx]).add(extrinsics[cameraIdx])
+                        .add(sizes[cameraIdx].width).add(sizes[cameraIdx].height);
+            }
+            cached = scenarioCache.get(key);
+        }
+
+        Mat[] images = new Mat[kMat.length];
+        double gyro = pan;
+        if (cached != null) {
+            images = cached.images;
+            gyro = cached.gyro;
+        }
+        for (int cameraIdx = 0; cached == null && cameraIdx < kMat.length; ++cameraIdx) {
+            Size size = sizes[cameraIdx];
+            MatOfPoint2f pts = idealImagePoints[cameraIdx];
+
+            // also make an image
+            // Mat cameraView = VisionUtil.makeImage(xPos, yPos, zPos, tilt, pan,
+            // kMat[cameraIdx],
+            // dMat[cameraIdx], targetGeometryMeters, size);
+
+            int targetBrightness = (int) Math.min(255, targetBrightnessMean
+                    + rand.nextGaussian() * targetBrightnessStdev);
+            Mat cameraView;
+            if (pts == null) {
+                // this camera sees only noise.
+                cameraView = rasterize ? getFrames(kMat.length)[cameraIdx] : new Mat();
+                cameraView.create(size, CvType.CV_8UC1);
+                cameraView.setTo(new Scalar(0));
+            } else if (rasterize) {
+                cameraView = VisionUtil.rasterizeImage(targetBrightness, size, pts, getFrames(kMat.length)[cameraIdx]);
+            } else {
+                cameraView = VisionUtil.renderImage(targetBrightness, size, targetGeometryMeters, pts);
+            }
+
+            if (cameraView == null) {
+                log.debugmsg(2, "no image");
+                r.skip = "no image";
+                return r;
+            }
+            for (MatOfPoint2f other : otherImagePoints[cameraIdx]) {
+                if (other != null)
+                    VisionUtil.rasterizeQuad(cameraView, other.toArray(), targetBrightness);
+            }
+
+            if (addImageNoise) {
+                if (noiseBank) {
+                    NoiseBank.getDefault().apply(cameraView, rand);
+                } else {
+                    VisionUtil.addSaltAndPepper(cameraView);
+                    VisionUtil.addGaussianNoise(cameraView);
+                }
+            }
+            if (writeFiles)
+                DebugImageWriter.getDefault().write(idx,
+                        String.format("target-%s-%d-%d-distorted.png", name, idx, cameraIdx),
+                        cameraView);
+            images[cameraIdx] = cameraView;
+
+        }
+
+        if (cached == null) {
+            if (perturbGyro)
+                gyro += (gyroNoise * rand.nextGaussian());
+            if (scenarioCache != null)
+                scenarioCache.put(key, images, gyro);
+        }
+
+        long startTime = System.nanoTime();
+        Mat transform;
+        if (poseFromImage)
+            transform = e.getPose(idx, writeFiles, gyro, targetGeometryMeters, images);
+        else
+            transform = e.getPose(gyro, idealTargetPoints, idealImagePoints);
+
+        r.workTimeNs = System.nanoTime() - startTime;
+        if (poseFromImage && e instanceof BasePoseEstimator)
+            r.stageNs = ((BasePoseEstimator) e).getTimings().getFrame().clone();
+        if (!rasterize || cached != null) {
+            for (int cameraIdx = 0; cameraIdx < kMat.length; ++cameraIdx) {
+                images[cameraIdx].release();
             }
+        }
+        if (transform == null) {
+            log.debugmsg(2, "no transform");
+            r.failure = "no transform";
+            return r;
+        }
+        log.debug(2, "transform", transform);
+        Mat rmat = transform.submat(0, 3, 0, 3);
+
+        double euler = Math.atan2(rmat.get(2, 0)[0], rmat.get(0, 0)[0]);
+        log.debug(1, "euler", euler);
+        Mat cameraTVec = Mat.zeros(3, 1, CvType.CV_64F);
+        cameraTVec.put(0, 0,
+                transform.get(0, 3)[0],
+                transform.get(1, 3)[0],
+                transform.get(2, 3)[0]);
+        log.debug(1, "cameraTVec", cameraTVec);
+        Mat pworldTVec = new Mat();
+        log.debug(1, "rmat", rmat);
+        Core.gemm(rmat.t(), cameraTVec, -1.0, new Mat(), 0.0, pworldTVec);
+        log.debug(1, "pWorldTVec", pworldTVec);
+
+        double pxPos = pworldTVec.get(0, 0)[0];
+        double pyPos = pworldTVec.get(1, 0)[0];
+        double pzPos = pworldTVec.get(2, 0)[0];
+        double ppan = euler;
+
+        double pNavBearing = Math.atan2(pxPos, -pzPos);
+        double pRelativeBearing = pNavBearing + ppan;
+        double pRange = Math.sqrt(pxPos * pxPos + pzPos * pzPos);
+
+        r.ppan = ppan;
+        r.pxPos = pxPos;
+        r.pyPos = pyPos;
+        r.pzPos = pzPos;
+        r.pRelativeBearing = pRelativeBearing;
+        r.pRange = pRange;
+        r.panErr = pan - ppan;
+        r.xErr = xPos - pxPos;
+        r.zErr = zPos - pzPos;
+        r.relativeBearingErr = relativeBearing - pRelativeBearing;
+        r.rangeErr = range - pRange;
+        r.posErr = Math.sqrt(r.xErr * r.xErr + r.zErr * r.zErr);
+        if (checkCovariance) {
+            double[] covariance = e.getCovariance(transform, idealTargetPoints);
+            if (covariance != null) {
+                r.xVar = covariance[0];
+                r.zVar = covariance[4];
+                r.panVar = covariance[8];
+            }
+        }
+        return r;
+    }
+
+    /**
+     * One point in the pan x zPos x xPos grid. The indices (not the double
+     * coordinates) seed the noise.
+     */
+    static class Cell {
+        final int idx;
+        final int panIdx;
+        final int zIdx;
+        final int xIdx;
+        final double pan;
+        final double zPos;
+        final double xPos;
+
+        Cell(int idx, int panIdx, int zIdx, int xIdx, double pan, double zPos, double xPos) {
+            this.idx = idx;
+            this.panIdx = panIdx;
+            this.zIdx = zIdx;
+            this.xIdx = xIdx;
+            this.pan = pan;
+            this.zPos = zPos;
+            this.xPos = xPos;
+        }
+    }
+
+    /**
+     * Outcome of one grid cell, true and estimated values and the errors. The
+     * estimate and the errors are NaN unless the estimator produced something.
+     */
+    static class CellResult {
+        int idx;
+        // why the cell wasn't attempted, or null
+        String skip;
+        // why the estimator didn't produce a pose, or null
+        String failure;
+        long workTimeNs;
+        // ns per StageTimings.Stage, or null if not measured
+        long[] stageNs;
+        double pan;
+        double xPos;
+        double yPos;
+        double zPos;
+        double relativeBearing;
+        double range;
+        double ppan = Double.NaN;
+        double pxPos = Double.NaN;
+        double pyPos = Double.NaN;
+        double pzPos = Double.NaN;
+        double pRelativeBearing = Double.NaN;
+        double pRange = Double.NaN;
+        double panErr = Double.NaN;
+        double xErr = Double.NaN;
+        double zErr = Double.NaN;
+        double posErr = Double.NaN;
+        double relativeBearingErr = Double.NaN;
+        double rangeErr = Double.NaN;
+        // the estimator's own variances, NaN unless checkCovariance
+        double xVar = Double.NaN;
+        double zVar = Double.NaN;
+        double panVar = Double.NaN;
+
+        boolean skipped() {
+            return skip != null;
+        }
+
+        boolean failed() {
+            return failure != null;
+        }
+
+        /** "ok" or the reason there's no estimate */
+        String status() {
+            if (skip != null)
+                return skip;
+            if (failure != null)
+                return failure;
+            return "ok";
+        }
+    }
 
-            double panRMSE = Math.sqrt(panErrSquareSum / idx);
-            double xRMSE = Math.sqrt(xErrSquareSum / idx);
-            double zRMSE = Math.sqrt(zErrSquareSum / idx);
-            double posRMSE = Math.sqrt(positionErrSquareSum / idx);
-            double relativeBearingRMSE = Math.sqrt(relativeBearingErrSquareSum / idx);
-            double rangeRMSE = Math.sqrt(rangeErrSquareSum / idx);
-
-            if (showSummary) {
-                if (showGrid)
-                    System.out.println("===========================");
-                System.out.printf("%40s %10.4f %10.4f %10.4f %10.4f %10.4f %10.4f %10.4f %10d\n",
-                        name, panRMSE, xRMSE, zRMSE, posRMSE, relativeBearingRMSE, rangeRMSE, 1000.0 * idx / workTime, failures);
-                if (showGrid)
-                    System.out.println("===========================");
+    /**
+     * Running totals over the results for one estimator; constant size, so the
+     * sweep can be any length.
+     */
+    static class Summary {
+        int count;
+        // solved, but with nothing to compare to, e.g. replayed field data
+        int unscored;
+        int failures;
+        long workTimeNs;
+        double panErrSquareSum;
+        double xErrSquareSum;
+        double zErrSquareSum;
+        double positionErrSquareSum;
+        double relativeBearingErrSquareSum;
+        double rangeErrSquareSum;
+        // over the results with a covariance: the predicted variances, and the
+        // squared errors divided by them.
+        int covarianceCount;
+        double xVarSum;
+        double zVarSum;
+        double panVarSum;
+        double xNormSquareSum;
+        double zNormSquareSum;
+        double panNormSquareSum;
+
+        void add(CellResult r) {
+            if (r.skipped())
+                return;
+            workTimeNs += r.workTimeNs;
+            if (r.failed()) {
+                failures++;
+                return;
             }
+            ++count;
+            panErrSquareSum += r.panErr * r.panErr;
+            xErrSquareSum += r.xErr * r.xErr;
+            zErrSquareSum += r.zErr * r.zErr;
+            positionErrSquareSum += r.posErr * r.posErr;
+            relativeBearingErrSquareSum += r.relativeBearingErr * r.relativeBearingErr;
+            rangeErrSquareSum += r.rangeErr * r.rangeErr;
+            if (!Double.isNaN(r.xVar)) {
+                ++covarianceCount;
+                xVarSum += r.xVar;
+                zVarSum += r.zVar;
+                panVarSum += r.panVar;
+                xNormSquareSum += r.xErr * r.xErr / r.xVar;
+                zNormSquareSum += r.zErr * r.zErr / r.zVar;
+                panNormSquareSum += r.panErr * r.panErr / r.panVar;
+            }
+        }
+
+        double rmse(double squareSum) {
+            return Math.sqrt(squareSum / count);
+        }
+
+        /** root of the mean predicted variance */
+        double covarianceRms(double varSum) {
+            return Math.sqrt(varSum / covarianceCount);
+        }
+
+        double covarianceMean(double sum) {
+            return sum / covarianceCount;
         }
 
+        /** successful solves per second of work */
+        double rate() {
+            return 1e9 * (count + unscored) / workTimeNs;
+        }
+    }
+
+    private Mat[] getFrames(int cameras) {
+        Mat[] m = frames.get();
+        if (m == null || m.length < cameras) {
+            m = new Mat[cameras];
+            for (int i = 0; i < cameras; ++i) {
+                m[i] = new Mat();
+            }
+            frames.set(m);
+        }
+        return m;
+    }
+
+    static Path getResultsPath() {
+        return Paths.get(System.getProperty("vision.resultsFile",
+                new File(System.getProperty("java.io.tmpdir"), "pose-results.csv").getPath()));
     }
 }
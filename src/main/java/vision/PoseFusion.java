@@ -0,0 +1,282 @@
+package vision;
+
+import org.opencv.core.Mat;
+
+/**
+ * Fuses odometry with delayed vision poses, {x, z, heading} in the target
+ * frame as in {@link VisionUtil#transformToPose(Mat, double[])}.
+ *
+ * Odometry comes in as the integrated odometry pose, as often as it's
+ * measured; the fused pose is the odometry motion applied to the last
+ * correction. A vision pose describes the moment its frame was captured,
+ * which may be several odometry samples ago, so it's applied there: the
+ * history is rolled back to the capture time, corrected, and the odometry
+ * since then is replayed on top of the correction.
+ *
+ * The filter is a Kalman filter with a diagonal covariance: the variance of
+ * each axis grows with the distance (or turn) the odometry reports, and each
+ * vision pose pulls the estimate toward it in proportion to the variances.
+ *
+ * The history is a fixed ring of primitive arrays, so nothing is allocated per
+ * update. Not thread-safe; call from one thread, e.g. the robot loop.
+ */
+public class PoseFusion {
+    // per entry: time, odometry x/z/heading, fused x/z/heading, variance of
+    // fused x/z/heading.
+    private final int mask;
+    private final long[] times;
+    private final double[] odometry;
+    private final double[] fused;
+    private final double[] variance;
+
+    // process noise, variance per meter of travel and per radian of turn
+    private final double positionVariancePerMeter;
+    private final double headingVariancePerRadian;
+    // measurement noise
+    private final double visionPositionVariance;
+    private final double visionHeadingVariance;
+
+    // entries written so far; the newest is (count - 1) & mask.
+    private long count = 0;
+
+    // scratch, so vision transforms don't allocate
+    private final double[] visionPose = new double[3];
+    private final double[] at = new double[9];
+
+    /**
+     * @param capacity                  odometry samples of history, rounded up
+     *                                  to a power of two; enough to cover the
+     *                                  vision latency
+     * @param positionStdDevPerMeter    odometry position error per meter
+     *                                  traveled, meters per root meter
+     * @param headingStdDevPerRadian    odometry heading error per radian
+     *                                  turned
+     * @param visionPositionStdDev      meters
+     * @param visionHeadingStdDev       radians
+     */
+    public PoseFusion(int capacity, double positionStdDevPerMeter, double headingStdDevPerRadian,
+            double visionPositionStdDev, double visionHeadingStdDev) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        times = new long[size];
+        odometry = new double[3 * size];
+        fused = new double[3 * size];
+        variance = new double[3 * size];
+        positionVariancePerMeter = positionStdDevPerMeter * positionStdDevPerMeter;
+        headingVariancePerRadian = headingStdDevPerRadian * headingStdDevPerRadian;
+        visionPositionVariance = visionPositionStdDev * visionPositionStdDev;
+        visionHeadingVariance = visionHeadingStdDev * visionHeadingStdDev;
+    }
+
+    /**
+     * Forget the history and start over.
+     *
+     * @param odometryPose the odometry's idea of the pose now
+     * @param pose         the real pose, as far as anyone knows
+     * @param stdDev       how far, meters and radians
+     */
+    public void reset(long timeMicros, double[] odometryPose, double[] pose, double stdDev) {
+        count = 0;
+        int i = 0;
+        times[i] = timeMicros;
+        for (int k = 0; k < 3; ++k) {
+            odometry[3 * i + k] = odometryPose[k];
+            fused[3 * i + k] = pose[k];
+            variance[3 * i + k] = stdDev * stdDev;
+        }
+        count = 1;
+    }
+
+    /** @return true once {@link #reset} has been called */
+    public boolean isInitialized() {
+        return count > 0;
+    }
+
+    /**
+     * Add the integrated odometry pose; times must increase.
+     *
+     * @param timeMicros   when the odometry was read
+     * @param odometryPose {x, z, heading}
+     */
+    public void addOdometry(long timeMicros, double[] odometryPose) {
+        if (count == 0)
+            throw new IllegalStateException("reset first");
+        int prev = (int) ((count - 1) & mask);
+        int i = (int) (count & mask);
+        times[i] = timeMicros;
+        for (int k = 0; k < 3; ++k)
+            odometry[3 * i + k] = odometryPose[k];
+        predict(prev, i);
+        ++count;
+    }
+
+    /**
+     * Apply a vision pose at its capture time.
+     *
+     * @param captureTimeMicros in the odometry's timebase
+     * @param pose              {x, z, heading}
+     * @return false if the capture time is older than the history, in which
+     *         case the pose is ignored
+     */
+    public boolean addVision(long captureTimeMicros, double[] pose) {
+        return addVision(captureTimeMicros, pose, visionPositionVariance, visionPositionVariance,
+                visionHeadingVariance);
+    }
+
+    /**
+     * Apply a vision pose at its capture time, trusting it as much as its own
+     * covariance says, e.g. from {@link PoseEstimator#getCovariance}, rather
+     * than the fixed vision noise. Only the diagonal is used.
+     *
+     * @param covariance row-major 3x3 over {x, z, heading}, or null for the
+     *                   fixed vision noise
+     */
+    public boolean addVision(long captureTimeMicros, double[] pose, double[] covariance) {
+        if (covariance == null)
+            return addVision(captureTimeMicros, pose);
+        return addVision(captureTimeMicros, pose, covariance[0], covariance[4], covariance[8]);
+    }
+
+    private boolean addVision(long captureTimeMicros, double[] pose, double xVariance, double zVariance,
+            double headingVariance) {
+        if (count == 0)
+            return false;
+        long oldest = Math.max(0, count - times.length);
+        long newest = count - 1;
+        if (captureTimeMicros < times[(int) (oldest & mask)])
+            return false;
+        // the entry at or just before the capture time
+        long lo = oldest;
+        long hi = newest;
+        if (captureTimeMicros >= times[(int) (hi & mask)]) {
+            lo = hi;
+        } else {
+            while (hi - lo > 1) {
+                long mid = (lo + hi) >>> 1;
+                if (times[(int) (mid & mask)] <= captureTimeMicros)
+                    lo = mid;
+                else
+                    hi = mid;
+            }
+        }
+        int a = (int) (lo & mask);
+        // odometry, fused, and variance at the capture time, in "at"
+        if (lo == newest || times[(int) (hi & mask)] == times[a]) {
+            System.arraycopy(odometry, 3 * a, at, 0, 3);
+            System.arraycopy(fused, 3 * a, at, 3, 3);
+            System.arraycopy(variance, 3 * a, at, 6, 3);
+        } else {
+            int b = (int) (hi & mask);
+            double s = (double) (captureTimeMicros - times[a]) / (times[b] - times[a]);
+            for (int k = 0; k < 3; ++k) {
+                double delta = odometry[3 * b + k] - odometry[3 * a + k];
+                if (k == 2)
+                    delta = Math.IEEEremainder(delta, 2 * Math.PI);
+                at[k] = odometry[3 * a + k] + s * delta;
+                at[6 + k] = variance[3 * a + k] + s * (variance[3 * b + k] - variance[3 * a + k]);
+            }
+            // back from the later entry, which has any earlier corrections
+            // that landed between the two.
+            compose(fused, 3 * b, odometry, 3 * b, at, 0, at, 3);
+        }
+
+        // correct
+        double kx = at[6] / (at[6] + xVariance);
+        double kz = at[7] / (at[7] + zVariance);
+        double kh = at[8] / (at[8] + headingVariance);
+        double cx = at[3] + kx * (pose[0] - at[3]);
+        double cz = at[4] + kz * (pose[1] - at[4]);
+        double ch = at[5] + kh * Math.IEEEremainder(pose[2] - at[5], 2 * Math.PI);
+        double vx = (1 - kx) * at[6];
+        double vz = (1 - kz) * at[7];
+        double vh = (1 - kh) * at[8];
+
+        // replay everything after the capture time on top of the correction;
+        // the entry at lo itself is history.
+        for (long n = lo + 1; n <= newest; ++n) {
+            int i = (int) (n & mask);
+            replay(i, cx, cz, ch, vx, vz, vh);
+        }
+        if (lo == newest) {
+            // nothing after it; the newest entry is the correction
+            replay(a, cx, cz, ch, vx, vz, vh);
+        }
+        return true;
+    }
+
+    /**
+     * Apply a transform from a PoseEstimator.
+     *
+     * @param transform world-to-camera, see
+     *                  {@link VisionUtil#transformToPose(Mat, double[])}
+     */
+    public boolean addVision(long captureTimeMicros, Mat transform) {
+        VisionUtil.transformToPose(transform, visionPose);
+        return addVision(captureTimeMicros, visionPose);
+    }
+
+    /** @param pose filled with the newest fused {x, z, heading} */
+    public void getPose(double[] pose) {
+        int i = (int) ((count - 1) & mask);
+        System.arraycopy(fused, 3 * i, pose, 0, 3);
+    }
+
+    /** @param stdDev filled with the newest {x, z, heading} standard deviations */
+    public void getStdDev(double[] stdDev) {
+        int i = (int) ((count - 1) & mask);
+        for (int k = 0; k < 3; ++k)
+            stdDev[k] = Math.sqrt(variance[3 * i + k]);
+    }
+
+    /**
+     * Entry i from entry prev: the odometry motion between them, applied to
+     * prev's fused pose, and more variance.
+     */
+    private void predict(int prev, int i) {
+        compose(fused, 3 * prev, odometry, 3 * prev, odometry, 3 * i, fused, 3 * i);
+        double distance = Math.hypot(odometry[3 * i] - odometry[3 * prev],
+                odometry[3 * i + 1] - odometry[3 * prev + 1]);
+        double turn = Math.abs(Math.IEEEremainder(odometry[3 * i + 2] - odometry[3 * prev + 2], 2 * Math.PI));
+        variance[3 * i] = variance[3 * prev] + positionVariancePerMeter * distance;
+        variance[3 * i + 1] = variance[3 * prev + 1] + positionVariancePerMeter * distance;
+        variance[3 * i + 2] = variance[3 * prev + 2] + headingVariancePerRadian * turn;
+    }
+
+    /**
+     * Entry i from the correction at the capture time: the odometry motion
+     * since then, applied to the corrected pose, and the variance added since
+     * then.
+     */
+    private void replay(int i, double cx, double cz, double ch, double vx, double vz, double vh) {
+        at[3] = cx;
+        at[4] = cz;
+        at[5] = ch;
+        compose(at, 3, at, 0, odometry, 3 * i, fused, 3 * i);
+        variance[3 * i] = vx + variance[3 * i] - at[6];
+        variance[3 * i + 1] = vz + variance[3 * i + 1] - at[7];
+        variance[3 * i + 2] = vh + variance[3 * i + 2] - at[8];
+    }
+
+    /**
+     * to = base + (odomTo - odomFrom), with the motion taken in the odometry
+     * frame at odomFrom and applied in base's frame. The heading convention
+     * is {@link VisionUtil#transformToPose(Mat, double[])}: forward is
+     * (sin, cos) in (x, z).
+     */
+    static void compose(double[] base, int b, double[] odom, int from, double[] odomTo, int to,
+            double[] out, int o) {
+        double h0 = odom[from + 2];
+        double dx = odomTo[to] - odom[from];
+        double dz = odomTo[to + 1] - odom[from + 1];
+        double dh = Math.IEEEremainder(odomTo[to + 2] - h0, 2 * Math.PI);
+        // into the robot frame at odomFrom: forward and right
+        double forward = dx * Math.sin(h0) + dz * Math.cos(h0);
+        double right = dx * Math.cos(h0) - dz * Math.sin(h0);
+        double h = base[b + 2];
+        double x = base[b] + right * Math.cos(h) + forward * Math.sin(h);
+        double z = base[b + 1] - right * Math.sin(h) + forward * Math.cos(h);
+        out[o] = x;
+        out[o + 1] = z;
+        out[o + 2] = Math.IEEEremainder(h + dh, 2 * Math.PI);
+    }
+}
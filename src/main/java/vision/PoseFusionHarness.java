@@ -0,0 +1,252 @@
+package vision;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+/**
+ * Drives a simulated robot along a weaving, turning path in front of the
+ * target, with drifting odometry at 200 Hz and a PoseEstimator (from points)
+ * at 50 Hz, and for each of several vision latencies, compares the error of:
+ *
+ * <ul>
+ * <li>odometry alone,
+ * <li>the latest vision pose, as if it were current,
+ * <li>{@link PoseFusion} with each vision pose applied when it arrives,
+ * <li>{@link PoseFusion} with each vision pose applied at its capture time,
+ * <li>the same, with each pose weighted by its own covariance, see
+ * {@link PoseEstimator#getCovariance}.
+ * </ul>
+ *
+ * <pre>
+ * java vision.PoseFusionHarness
+ * </pre>
+ */
+public class PoseFusionHarness {
+    final static Log log = new Log(3, PoseFusionHarness.class.getName());
+
+    static final long ODOMETRY_PERIOD_MICROS = 5000;
+    static final long FRAME_PERIOD_MICROS = 20000;
+    static final long DURATION_MICROS = 30_000_000;
+
+    // capture to arrival
+    final long[] latenciesMicros = { 0, 20000, 50000, 100000, 200000 };
+
+    // wheel odometry reads this much long, and is noisy
+    final double odometryScaleError = 0.03;
+    final double odometryNoise = 0.001;
+    // gyro random walk per step, radians
+    final double gyroDrift = 0.0005;
+    // image point noise
+    final double noisePixels = 0.5;
+
+    final PoseEstimator estimator;
+    final MatOfPoint3f targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+
+    public PoseFusionHarness(PoseEstimator estimator) {
+        this.estimator = estimator;
+        if (estimator instanceof BasePoseEstimator) {
+            // the noise see() adds, so the covariances are right; the gyro
+            // error is a random walk, so use its spread half way through.
+            BasePoseEstimator e = (BasePoseEstimator) estimator;
+            e.setPixelStdDev(noisePixels);
+            e.setHeadingStdDev(gyroDrift * Math.sqrt(DURATION_MICROS / ODOMETRY_PERIOD_MICROS / 2.0));
+        }
+    }
+
+    /** Root-mean-square position error of each approach, meters. */
+    static class Errors {
+        double odometry;
+        double raw;
+        double onArrival;
+        double atCapture;
+        double weighted;
+        int samples;
+        int frames;
+        int rejected;
+
+        void add(double[] truth, double[] odometryPose, double[] raw, double[] onArrival, double[] atCapture,
+                double[] weighted) {
+            odometry += square(truth, odometryPose);
+            this.raw += square(truth, raw);
+            this.onArrival += square(truth, onArrival);
+            this.atCapture += square(truth, atCapture);
+            this.weighted += square(truth, weighted);
+            ++samples;
+        }
+
+        static double square(double[] a, double[] b) {
+            double dx = a[0] - b[0];
+            double dz = a[1] - b[1];
+            return dx * dx + dz * dz;
+        }
+
+        double rms(double sum) {
+            return Math.sqrt(sum / samples);
+        }
+    }
+
+    /**
+     * The path: weaving side to side and in and out, always turned roughly
+     * toward the target, and turning back and forth on top of that.
+     */
+    static void truth(long timeMicros, double[] pose) {
+        double t = timeMicros / 1e6;
+        double x = 1.5 * Math.sin(0.4 * t);
+        double z = -4 + 1.5 * Math.sin(0.25 * t);
+        pose[0] = x;
+        pose[1] = z;
+        pose[2] = Math.atan2(-x, -z) + 0.25 * Math.sin(1.3 * t);
+    }
+
+    public void run() {
+        System.out.printf("%40s position RMSE, meters\n", estimator.getName());
+        System.out.printf("%10s %10s %10s %10s %10s %10s %10s %10s\n",
+                "latency ms", "odometry", "raw", "on arrival", "at capture", "weighted", "frames", "rejected");
+        for (long latency : latenciesMicros) {
+            Errors e = run(latency, new Random(42));
+            System.out.printf("%10.0f %10.4f %10.4f %10.4f %10.4f %10.4f %10d %10d\n",
+                    latency / 1e3, e.rms(e.odometry), e.rms(e.raw), e.rms(e.onArrival), e.rms(e.atCapture),
+                    e.rms(e.weighted), e.frames, e.rejected);
+        }
+    }
+
+    /**
+     * @param latencyMicros how long each vision pose takes to arrive
+     */
+    Errors run(long latencyMicros, Random rand) {
+        Errors errors = new Errors();
+        // enough history for the latency, with room to spare
+        int capacity = (int) (4 * latencyMicros / ODOMETRY_PERIOD_MICROS) + 16;
+        PoseFusion onArrival = new PoseFusion(capacity, 0.05, 0.02, 0.05, 0.02);
+        PoseFusion atCapture = new PoseFusion(capacity, 0.05, 0.02, 0.05, 0.02);
+        PoseFusion weighted = new PoseFusion(capacity, 0.05, 0.02, 0.05, 0.02);
+
+        double[] truth = new double[3];
+        double[] prevTruth = new double[3];
+        double[] odometryPose = new double[3];
+        double[] raw = null;
+        double[] onArrivalPose = new double[3];
+        double[] atCapturePose = new double[3];
+        double[] weightedPose = new double[3];
+        // {capture time, arrival time, x, z, heading, covariance}
+        ArrayDeque<double[]> inFlight = new ArrayDeque<double[]>();
+
+        truth(0, truth);
+        System.arraycopy(truth, 0, odometryPose, 0, 3);
+        onArrival.reset(0, odometryPose, truth, 0.1);
+        atCapture.reset(0, odometryPose, truth, 0.1);
+        weighted.reset(0, odometryPose, truth, 0.1);
+        double gyroError = 0;
+
+        for (long time = ODOMETRY_PERIOD_MICROS; time <= DURATION_MICROS; time += ODOMETRY_PERIOD_MICROS) {
+            System.arraycopy(truth, 0, prevTruth, 0, 3);
+            truth(time, truth);
+
+            // the true motion in the robot frame, perturbed, applied to the
+            // odometry pose.
+            double dx = truth[0] - prevTruth[0];
+            double dz = truth[1] - prevTruth[1];
+            double h = prevTruth[2];
+            double forward = (dx * Math.sin(h) + dz * Math.cos(h)) * (1 + odometryScaleError)
+                    + odometryNoise * rand.nextGaussian();
+            double right = (dx * Math.cos(h) - dz * Math.sin(h)) * (1 + odometryScaleError)
+                    + odometryNoise * rand.nextGaussian();
+            double oh = odometryPose[2];
+            odometryPose[0] += right * Math.cos(oh) + forward * Math.sin(oh);
+            odometryPose[1] += -right * Math.sin(oh) + forward * Math.cos(oh);
+            gyroError += gyroDrift * rand.nextGaussian();
+            odometryPose[2] = truth[2] + gyroError;
+            onArrival.addOdometry(time, odometryPose);
+            atCapture.addOdometry(time, odometryPose);
+            weighted.addOdometry(time, odometryPose);
+
+            if (time % FRAME_PERIOD_MICROS == 0) {
+                double[] pose = see(truth, truth[2] + gyroError, rand);
+                if (pose != null) {
+                    double[] m = new double[14];
+                    m[0] = time;
+                    m[1] = time + latencyMicros;
+                    System.arraycopy(pose, 0, m, 2, 12);
+                    inFlight.add(m);
+                    ++errors.frames;
+                }
+            }
+
+            while (!inFlight.isEmpty() && inFlight.peek()[1] <= time) {
+                double[] m = inFlight.poll();
+                raw = new double[] { m[2], m[3], m[4] };
+                onArrival.addVision(time, raw);
+                if (!atCapture.addVision((long) m[0], raw))
+                    ++errors.rejected;
+                double[] covariance = Double.isNaN(m[5]) ? null : Arrays.copyOfRange(m, 5, 14);
+                weighted.addVision((long) m[0], raw, covariance);
+            }
+
+            if (raw != null) {
+                onArrival.getPose(onArrivalPose);
+                atCapture.getPose(atCapturePose);
+                weighted.getPose(weightedPose);
+                errors.add(truth, odometryPose, raw, onArrivalPose, atCapturePose, weightedPose);
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * What the estimator makes of the target from the true pose, with noisy
+     * image points.
+     *
+     * @return {x, z, heading} and the covariance (NaN if unknown), or null if
+     *         the target isn't in view
+     */
+    double[] see(double[] truth, double gyro, Random rand) {
+        Mat[] kMat = estimator.getIntrinsicMatrices();
+        MatOfDouble[] dMat = estimator.getDistortionMatrices();
+        Mat[] extrinsics = estimator.getExtrinsics();
+        Size[] sizes = estimator.getSizes();
+        Mat worldToRobot = VisionUtil.makeWorldToCameraHomogeneous(truth[2], truth[0], 0, truth[1]);
+        MatOfPoint2f[] imagePoints = new MatOfPoint2f[kMat.length];
+        int visible = 0;
+        for (int cameraIdx = 0; cameraIdx < kMat.length; ++cameraIdx) {
+            Mat worldToCamera = VisionUtil.worldToCamera(worldToRobot, extrinsics[cameraIdx]);
+            if (!VisionUtil.inFront(targetGeometryMeters, worldToCamera))
+                continue;
+            MatOfPoint2f pts = VisionUtil.imagePoints(kMat[cameraIdx], dMat[cameraIdx],
+                    targetGeometryMeters, worldToCamera);
+            Rect viewport = new Rect(0, 0, (int) sizes[cameraIdx].width, (int) sizes[cameraIdx].height);
+            if (!VisionUtil.inViewport(pts, viewport))
+                continue;
+            imagePoints[cameraIdx] = VisionUtil.perturbPoints(pts, 1, noisePixels, rand);
+            ++visible;
+        }
+        if (visible == 0 || (visible < kMat.length && estimator.requiresAllCameras()))
+            return null;
+        Mat transform = estimator.getPose(gyro, targetGeometryMeters, imagePoints);
+        if (transform == null)
+            return null;
+        double[] pose = new double[12];
+        VisionUtil.transformToPose(transform, pose);
+        double[] covariance = estimator.getCovariance(transform, targetGeometryMeters);
+        if (covariance != null)
+            System.arraycopy(covariance, 0, pose, 3, 9);
+        else
+            Arrays.fill(pose, 3, 12, Double.NaN);
+        transform.release();
+        return pose;
+    }
+
+    public static void main(String... args) {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        new PoseFusionHarness(new MonocularPoseEstimator(true)).run();
+        new PoseFusionHarness(new Binocular2dUmeyamaPoseEstimator(true)).run();
+    }
+}
@@ -0,0 +1,283 @@
+package vision;
+
+import java.util.Arrays;
+
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+
+/**
+ * Finds the corners a binocular estimator should believe, so one bad corner
+ * (say, a reflection merged into the contour) doesn't drag the pose along
+ * with it.
+ *
+ * Each corner pair is triangulated, as in
+ * {@link Binocular2dUmeyamaPoseEstimator#solve}, and the fit is the same 2d
+ * rigid transform from the target's (x, z) to the triangulated (x, z). Each
+ * hypothesis comes from a minimal sample, one point if the rotation is the
+ * gyro's, two otherwise, and is scored over all the points by truncated
+ * squared residual (MSAC), which ranks hypotheses with the same number of
+ * inliers by how well they fit. The best one is refit, least squares, on its
+ * inliers, and the inliers are taken again from the refit.
+ *
+ * Residuals are in pixels: the triangulated z error is scaled to disparity
+ * and the x error to image u, so near and far corners get the same
+ * threshold. With few points every sample is tried; with more, a fixed number
+ * of random ones, from a fixed seed, so the result is reproducible. Scratch
+ * arrays are per thread, so nothing is allocated per solve.
+ */
+public class RansacRigid2d {
+    /** inlier threshold, pixels */
+    public static final double THRESHOLD_PIXELS = 6.0;
+    /** beyond this many possible samples, draw this many at random */
+    static final int MAX_HYPOTHESES = 256;
+    /** the least the 2d solvers will take */
+    static final int MIN_INLIERS = 3;
+
+    /**
+     * Per-thread triangulated points and residual weights.
+     */
+    static class Scratch {
+        // (x, z) pairs
+        double[] from = new double[0];
+        double[] to = new double[0];
+        // squared pixels per squared meter, x and z; zero for a point that
+        // doesn't triangulate.
+        double[] wx = new double[0];
+        double[] wz = new double[0];
+        boolean[] inliers = new boolean[0];
+        // the refit, 2x3 row-major
+        final double[] rt = new double[6];
+
+        void ensure(int count) {
+            if (wx.length < count) {
+                from = new double[2 * count];
+                to = new double[2 * count];
+                wx = new double[count];
+                wz = new double[count];
+                inliers = new boolean[count];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private RansacRigid2d() {
+    }
+
+    /**
+     * @param left      image points in the left camera, (u, v) pairs
+     * @param right     image points in the right camera
+     * @param target    target points, (x, y, z) triples
+     * @param useIMU    true = the rotation is the heading, only the
+     *                  translation is fitted
+     * @param threshold pixels
+     * @param inliers   set for each point, true if it's an inlier
+     * @return the number of inliers
+     */
+    public static int findInliers(float[] left, float[] right, float[] target, int count, double b, double f,
+            double cx, boolean useIMU, double heading, double threshold, boolean[] inliers) {
+        Scratch s = scratch.get();
+        s.ensure(count);
+        double[] from = s.from;
+        double[] to = s.to;
+        double[] wx = s.wx;
+        double[] wz = s.wz;
+        for (int i = 0; i < count; ++i) {
+            double uL = left[2 * i];
+            double uR = right[2 * i];
+            double d = uL - uR;
+            from[2 * i] = target[3 * i];
+            from[2 * i + 1] = target[3 * i + 2];
+            if (d > 0) {
+                to[2 * i] = b * (uL + uR - 2 * cx) / (2 * d);
+                to[2 * i + 1] = b * f / d;
+                // du = dx f / z = dx d / b; dd = dz d^2 / (b f)
+                double kx = d / b;
+                double kz = d * d / (b * f);
+                wx[i] = kx * kx;
+                wz[i] = kz * kz;
+            } else {
+                to[2 * i] = 0;
+                to[2 * i + 1] = 0;
+                wx[i] = 0;
+                wz[i] = 0;
+            }
+        }
+        return findInliers(from, to, wx, wz, count, useIMU, heading, threshold, inliers);
+    }
+
+    /**
+     * @param from (x, z) pairs
+     * @param to   (x, z) pairs
+     * @param wx   residual weight per point in x; zero means never an inlier
+     * @param wz   residual weight in z
+     */
+    static int findInliers(double[] from, double[] to, double[] wx, double[] wz, int count, boolean useIMU,
+            double heading, double threshold, boolean[] inliers) {
+        double limit = threshold * threshold;
+        // rotation, translation
+        double bestC = 0, bestS = 0, bestTx = 0, bestTz = 0;
+        double bestCost = Double.MAX_VALUE;
+        long possible = useIMU ? count : (long) count * (count - 1) / 2;
+        boolean exhaustive = possible <= MAX_HYPOTHESES;
+        int hypotheses = exhaustive ? (int) possible : MAX_HYPOTHESES;
+        long random = 0x9E3779B97F4A7C15L ^ count;
+        int i = 0;
+        int j = 1;
+        for (int h = 0; h < hypotheses; ++h) {
+            if (exhaustive) {
+                if (h > 0) {
+                    if (useIMU) {
+                        ++i;
+                    } else if (++j == count) {
+                        ++i;
+                        j = i + 1;
+                    }
+                }
+            } else {
+                // xorshift
+                random ^= random << 13;
+                random ^= random >>> 7;
+                random ^= random << 17;
+                i = (int) Long.remainderUnsigned(random, count);
+                j = (int) Long.remainderUnsigned(random >>> 32, count);
+            }
+            if (wx[i] == 0)
+                continue;
+            double c;
+            double s;
+            if (useIMU) {
+                c = Math.cos(heading);
+                s = Math.sin(heading);
+            } else {
+                if (i == j || wx[j] == 0)
+                    continue;
+                double ax = from[2 * j] - from[2 * i];
+                double az = from[2 * j + 1] - from[2 * i + 1];
+                double bx = to[2 * j] - to[2 * i];
+                double bz = to[2 * j + 1] - to[2 * i + 1];
+                // e.g. duplicated points
+                if (ax * ax + az * az < 1e-12)
+                    continue;
+                double theta = Math.atan2(ax * bz - az * bx, ax * bx + az * bz);
+                c = Math.cos(theta);
+                s = Math.sin(theta);
+            }
+            double tx = to[2 * i] - (c * from[2 * i] - s * from[2 * i + 1]);
+            double tz = to[2 * i + 1] - (s * from[2 * i] + c * from[2 * i + 1]);
+            double cost = 0;
+            for (int k = 0; k < count && cost < bestCost; ++k) {
+                double ex = to[2 * k] - (c * from[2 * k] - s * from[2 * k + 1] + tx);
+                double ez = to[2 * k + 1] - (s * from[2 * k] + c * from[2 * k + 1] + tz);
+                double r = wx[k] * ex * ex + wz[k] * ez * ez;
+                cost += wx[k] == 0 || r > limit ? limit : r;
+            }
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestC = c;
+                bestS = s;
+                bestTx = tx;
+                bestTz = tz;
+            }
+        }
+        if (bestCost == Double.MAX_VALUE) {
+            for (int k = 0; k < count; ++k)
+                inliers[k] = false;
+            return 0;
+        }
+        int n = mark(from, to, wx, wz, count, bestC, bestS, bestTx, bestTz, limit, inliers);
+        if (n < (useIMU ? 1 : 2))
+            return n;
+
+        // refit on the inliers, least squares
+        double[] rt = scratch.get().rt;
+        MyCalib3d.estimateRigid2D(from, to, inliers, count, useIMU ? heading : Double.NaN, rt);
+        return mark(from, to, wx, wz, count, rt[0], rt[3], rt[2], rt[5], limit, inliers);
+    }
+
+    private static int mark(double[] from, double[] to, double[] wx, double[] wz, int count, double c, double s,
+            double tx, double tz, double limit, boolean[] inliers) {
+        int n = 0;
+        for (int k = 0; k < count; ++k) {
+            double ex = to[2 * k] - (c * from[2 * k] - s * from[2 * k + 1] + tx);
+            double ez = to[2 * k + 1] - (s * from[2 * k] + c * from[2 * k + 1] + tz);
+            inliers[k] = wx[k] != 0 && wx[k] * ex * ex + wz[k] * ez * ez <= limit;
+            if (inliers[k])
+                ++n;
+        }
+        return n;
+    }
+
+    /**
+     * Move the kept elements to the front, in order.
+     *
+     * @param stride floats per point
+     * @return the number kept
+     */
+    static int compact(float[] points, int stride, boolean[] keep, int count) {
+        int n = 0;
+        for (int i = 0; i < count; ++i) {
+            if (!keep[i])
+                continue;
+            if (n != i)
+                System.arraycopy(points, stride * i, points, stride * n, stride);
+            ++n;
+        }
+        return n;
+    }
+
+    /** The inliers of a stereo pair, for the Mat-based solvers. */
+    static class Selection {
+        MatOfPoint3f target;
+        MatOfPoint2f left;
+        MatOfPoint2f right;
+    }
+
+    /**
+     * @return the inliers, as the inputs themselves if they're all inliers, or
+     *         null if there aren't enough to solve with
+     */
+    static Selection select(MatOfPoint3f targetPoints, MatOfPoint2f leftPts, MatOfPoint2f rightPts, double b,
+            double f, double cx, boolean useIMU, double heading) {
+        int count = (int) targetPoints.total();
+        if (leftPts.total() != count || rightPts.total() != count)
+            throw new IllegalArgumentException("Point sets need to have the same size");
+        float[] left = new float[2 * count];
+        float[] right = new float[2 * count];
+        float[] target = new float[3 * count];
+        leftPts.get(0, 0, left);
+        rightPts.get(0, 0, right);
+        targetPoints.get(0, 0, target);
+        boolean[] inliers = new boolean[count];
+        int n = findInliers(left, right, target, count, b, f, cx, useIMU, heading, THRESHOLD_PIXELS, inliers);
+        if (n < MIN_INLIERS)
+            return null;
+        Selection selection = new Selection();
+        if (n == count) {
+            selection.target = targetPoints;
+            selection.left = leftPts;
+            selection.right = rightPts;
+            return selection;
+        }
+        compact(left, 2, inliers, count);
+        compact(right, 2, inliers, count);
+        compact(target, 3, inliers, count);
+        selection.target = new MatOfPoint3f();
+        selection.target.alloc(n);
+        selection.target.put(0, 0, Arrays.copyOf(target, 3 * n));
+        selection.left = new MatOfPoint2f();
+        selection.left.alloc(n);
+        selection.left.put(0, 0, Arrays.copyOf(left, 2 * n));
+        selection.right = new MatOfPoint2f();
+        selection.right.alloc(n);
+        selection.right.put(0, 0, Arrays.copyOf(right, 2 * n));
+        return selection;
+    }
+
+    /** this thread's inlier flags, at least count long */
+    static boolean[] inliers(int count) {
+        Scratch s = scratch.get();
+        s.ensure(count);
+        return s.inliers;
+    }
+}
@@ -0,0 +1,183 @@
+package vision;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams harness results to a CSV file, one row per grid cell, through a
+ * FileChannel and a fixed direct buffer, so memory stays constant however big
+ * the sweep is.
+ *
+ * The work time is followed by the time in each {@link StageTimings.Stage}
+ * for that cell, zero if the stage didn't run.
+ *
+ * Numbers are formatted by hand (fixed point, six decimals) rather than with
+ * String.format, which was a visible part of the harness profile. Values that
+ * weren't computed (e.g. the estimate for a failed cell) are written as NaN.
+ *
+ * Not thread-safe; the harness writes from the reducing thread only.
+ */
+public class ResultsWriter implements AutoCloseable {
+    static final String[] COLUMNS = {
+            "name", "idx", "status",
+            "pan", "xpos", "ypos", "zpos", "rbear", "range",
+            "ppan", "pxpos", "pypos", "pzpos", "prbear", "prange",
+            "panErr", "xErr", "zErr", "posErr", "relativeBearingErr", "rangeErr",
+            "workTimeNs" };
+    static final StageTimings.Stage[] STAGES = StageTimings.Stage.values();
+    static final long SCALE = 1000000;
+
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private long rows = 0;
+
+    public ResultsWriter(Path file) {
+        this(file, 1 << 16);
+    }
+
+    /**
+     * Truncates the file and writes the header.
+     *
+     * @param bufferSize bytes buffered between writes; at least one row.
+     */
+    public ResultsWriter(Path file, int bufferSize) {
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buf = ByteBuffer.allocateDirect(bufferSize);
+        for (int i = 0; i < COLUMNS.length; ++i) {
+            if (i > 0)
+                put(',');
+            put(COLUMNS[i]);
+        }
+        for (StageTimings.Stage stage : STAGES) {
+            put(',');
+            put(stage.name().toLowerCase());
+            put("Ns");
+        }
+        put('\n');
+    }
+
+    /**
+     * Append one row.
+     *
+     * @param name estimator name
+     */
+    public void write(String name, PoseEstimatorHarness.CellResult r) {
+        // the longest row is well under this; flushing up front means the put
+        // calls below never need to check.
+        if (buf.remaining() < 1024)
+            drain();
+        put(name);
+        put(',');
+        putLong(r.idx);
+        put(',');
+        put(r.status());
+        put(',');
+        putDouble(r.pan);
+        putDouble(r.xPos);
+        putDouble(r.yPos);
+        putDouble(r.zPos);
+        putDouble(r.relativeBearing);
+        putDouble(r.range);
+        putDouble(r.ppan);
+        putDouble(r.pxPos);
+        putDouble(r.pyPos);
+        putDouble(r.pzPos);
+        putDouble(r.pRelativeBearing);
+        putDouble(r.pRange);
+        putDouble(r.panErr);
+        putDouble(r.xErr);
+        putDouble(r.zErr);
+        putDouble(r.posErr);
+        putDouble(r.relativeBearingErr);
+        putDouble(r.rangeErr);
+        putLong(r.workTimeNs);
+        for (int i = 0; i < STAGES.length; ++i) {
+            put(',');
+            putLong(r.stageNs == null ? 0 : r.stageNs[i]);
+        }
+        put('\n');
+        ++rows;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    @Override
+    public void close() {
+        drain();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void drain() {
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buf.clear();
+    }
+
+    private void put(char c) {
+        buf.put((byte) c);
+    }
+
+    private void put(String s) {
+        buf.put(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** with a trailing comma */
+    private void putDouble(double d) {
+        if (Double.isNaN(d)) {
+            put("NaN,");
+            return;
+        }
+        double scaled = Math.abs(d) * SCALE;
+        if (Double.isInfinite(d) || scaled >= Long.MAX_VALUE) {
+            put(Double.toString(d));
+            put(',');
+            return;
+        }
+        long fixed = Math.round(scaled);
+        if (d < 0 && fixed != 0)
+            put('-');
+        putLong(fixed / SCALE);
+        put('.');
+        long frac = fixed % SCALE;
+        for (long div = SCALE / 10; div > 0; div /= 10) {
+            buf.put((byte) ('0' + (frac / div) % 10));
+        }
+        put(',');
+    }
+
+    private void putLong(long v) {
+        if (v < 0) {
+            put('-');
+            v = -v;
+        }
+        long div = 1;
+        while (v / div >= 10) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            buf.put((byte) ('0' + (v / div) % 10));
+        }
+    }
+}
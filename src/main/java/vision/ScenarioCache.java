@@ -0,0 +1,242 @@
+package vision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * On-disk cache of rendered harness inputs, so that sweeping a new estimator
+ * over the same cameras only costs the solve.
+ *
+ * Entries are content-addressed: the file name is a hash of everything that
+ * went into the images (camera parameters, pose, brightness, seed, renderer
+ * options; see {@link Key}). Each file is a small header followed by the raw
+ * 8-bit pixels of each camera's image, and is read by mapping it, so the Mats
+ * point straight at the page cache without a copy.
+ *
+ * The mapped Mats are read-only (writing to them will crash), and are only
+ * valid while the {@link Scenario} is reachable.
+ */
+public class ScenarioCache {
+    final static Log log = new Log(2, ScenarioCache.class.getName());
+
+    // bump this when the rendering changes, to invalidate old entries.
+    static final int VERSION = 1;
+    static final int MAGIC = 0x5343454e; // "SCEN"
+    static final int HEADER = 4 + 4 + 4 + 8;
+    /** where the cache goes; PoseEstimatorHarness only caches if it's set */
+    public static final String DIRECTORY_PROPERTY = "vision.scenarioCache";
+
+    private final File directory;
+    private long hits = 0;
+    private long misses = 0;
+
+    public ScenarioCache(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            log.debugmsg(3, "can't make directory " + directory);
+    }
+
+    /**
+     * The default directory is in the "vision.scenarioCache" system property, or
+     * "vision-scenarios" in the temp directory.
+     */
+    public static ScenarioCache getDefault() {
+        String dir = System.getProperty(DIRECTORY_PROPERTY,
+                new File(System.getProperty("java.io.tmpdir"), "vision-scenarios").getPath());
+        return new ScenarioCache(new File(dir));
+    }
+
+    /**
+     * The images for one grid cell, plus the (noisy) gyro reading drawn with
+     * them.
+     */
+    public static class Scenario {
+        public final Mat[] images;
+        public final double gyro;
+        // keeps the mapping alive as long as the Mats are in use.
+        @SuppressWarnings("unused")
+        private final MappedByteBuffer buffer;
+
+        Scenario(Mat[] images, double gyro, MappedByteBuffer buffer) {
+            this.images = images;
+            this.gyro = gyro;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Accumulates the inputs that determine a scenario.
+     */
+    public static class Key {
+        private final MessageDigest digest;
+        private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+        public Key() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            add(VERSION);
+        }
+
+        public Key add(double d) {
+            scratch.clear();
+            scratch.putDouble(d);
+            digest.update(scratch.array(), 0, 8);
+            return this;
+        }
+
+        public Key add(long l) {
+            scratch.clear();
+            scratch.putLong(l);
+            digest.update(scratch.array(), 0, 8);
+            return this;
+        }
+
+        public Key add(boolean b) {
+            return add(b ? 1L : 0L);
+        }
+
+        /** the contents of a double matrix, e.g. intrinsics or distortion */
+        public Key add(Mat m) {
+            add(m.rows());
+            add(m.cols());
+            double[] values = new double[(int) m.total() * m.channels()];
+            Mat doubles = m;
+            if (m.depth() != CvType.CV_64F) {
+                doubles = new Mat();
+                m.convertTo(doubles, CvType.CV_64F);
+            }
+            doubles.get(0, 0, values);
+            for (double d : values) {
+                add(d);
+            }
+            return this;
+        }
+
+        String name() {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.append(".scn").toString();
+        }
+    }
+
+    /**
+     * @return the cached scenario, or null
+     */
+    public Scenario get(Key key) {
+        return get(key.name());
+    }
+
+    /**
+     * Store the images (8-bit mono) and gyro reading under the key.
+     */
+    public void put(Key key, Mat[] images, double gyro) {
+        put(key.name(), images, gyro);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    Scenario get(String name) {
+        File file = new File(directory, name);
+        if (!file.isFile()) {
+            count(false);
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC) {
+                log.debugmsg(3, "bad cache entry " + file);
+                count(false);
+                return null;
+            }
+            int cameras = buffer.getInt(4);
+            double gyro = buffer.getDouble(12);
+            Mat[] images = new Mat[cameras];
+            int offset = HEADER;
+            for (int i = 0; i < cameras; ++i) {
+                int rows = buffer.getInt(offset);
+                int cols = buffer.getInt(offset + 4);
+                offset += 8;
+                ByteBuffer pixels = buffer.duplicate();
+                pixels.position(offset);
+                pixels.limit(offset + rows * cols);
+                images[i] = new Mat(rows, cols, CvType.CV_8UC1, pixels.slice());
+                offset += rows * cols;
+            }
+            count(true);
+            return new Scenario(images, gyro, buffer);
+        } catch (IOException e) {
+            log.debugmsg(3, "can't read cache entry " + file + " " + e.getMessage());
+            count(false);
+            return null;
+        }
+    }
+
+    void put(String name, Mat[] images, double gyro) {
+        int size = HEADER;
+        for (Mat m : images) {
+            if (m.type() != CvType.CV_8UC1)
+                throw new IllegalArgumentException("expected 8UC1, got " + CvType.typeToString(m.type()));
+            size += 8 + (int) m.total();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putInt(images.length);
+        buf.putInt(0);
+        buf.putDouble(gyro);
+        for (Mat m : images) {
+            buf.putInt(m.rows());
+            buf.putInt(m.cols());
+            byte[] pixels = new byte[(int) m.total()];
+            m.get(0, 0, pixels);
+            buf.put(pixels);
+        }
+        buf.flip();
+        // write under a temporary name and rename, so a reader never sees half
+        // an entry.
+        Path target = new File(directory, name).toPath();
+        try {
+            Path tmp = Files.createTempFile(directory.toPath(), "tmp", ".scn");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized void count(boolean hit) {
+        if (hit)
+            ++hits;
+        else
+            ++misses;
+    }
+}
@@ -0,0 +1,133 @@
+package vision;
+
+import java.util.Arrays;
+
+/**
+ * Per-stage latency histograms for the image-to-pose pipeline. Each estimator
+ * has one (see {@link BasePoseEstimator#getTimings()}), shared by all the
+ * threads using it; robot code can read the histograms directly.
+ *
+ * Stages are timed by chaining laps:
+ *
+ * <pre>
+ * long t = System.nanoTime();
+ * Imgproc.threshold(...);
+ * t = timings.lap(Stage.THRESHOLD, t);
+ * Imgproc.findContours(...);
+ * t = timings.lap(Stage.FIND_CONTOURS, t);
+ * </pre>
+ *
+ * Each thread also keeps the total per stage for its current frame, see
+ * {@link #getFrame()}, for per-frame reporting.
+ */
+public class StageTimings {
+    public enum Stage {
+        // undistort and untilt, now one remap
+        REMAP,
+        MEDIAN_BLUR,
+        GAUSSIAN_BLUR,
+        THRESHOLD,
+        FIND_CONTOURS,
+        // contour filtering, approxPolyDP and corner ordering
+        APPROX_POLY,
+        // threshold, labeling, and corners, all in one pass, see BlobDetector
+        LABEL,
+        // subpixel corners, see CornerRefiner
+        REFINE,
+        SOLVE,
+        // getPose from images to transform
+        TOTAL
+    }
+
+    /** Records nothing, for callers that don't care. */
+    public static final StageTimings NONE = new StageTimings(false);
+
+    private final boolean enabled;
+    private final LatencyHistogram[] histograms;
+    private final ThreadLocal<long[]> frame = ThreadLocal.withInitial(() -> new long[Stage.values().length]);
+
+    public StageTimings() {
+        this(true);
+    }
+
+    private StageTimings(boolean enabled) {
+        this.enabled = enabled;
+        Stage[] stages = Stage.values();
+        histograms = new LatencyHistogram[stages.length];
+        for (int i = 0; i < stages.length; ++i) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record the time since start against the stage.
+     *
+     * @return now, i.e. the start of the next stage
+     */
+    public long lap(Stage stage, long start) {
+        long now = System.nanoTime();
+        if (enabled) {
+            long ns = now - start;
+            histograms[stage.ordinal()].record(ns);
+            frame.get()[stage.ordinal()] += ns;
+        }
+        return now;
+    }
+
+    /**
+     * Start a new frame on this thread; clears {@link #getFrame()}.
+     */
+    public void beginFrame() {
+        if (enabled)
+            Arrays.fill(frame.get(), 0);
+    }
+
+    /**
+     * @return this thread's ns per stage since {@link #beginFrame()}, indexed by
+     *         ordinal. This is the live array, copy it to keep it.
+     */
+    public long[] getFrame() {
+        return frame.get();
+    }
+
+    /**
+     * Add another thread's frame (e.g. a helper's copy of its
+     * {@link #getFrame()}) to this thread's frame. The histograms already have
+     * it.
+     */
+    public void addFrame(long[] ns) {
+        if (!enabled)
+            return;
+        long[] f = frame.get();
+        for (int i = 0; i < f.length; ++i) {
+            f[i] += ns[i];
+        }
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public void reset() {
+        for (LatencyHistogram h : histograms) {
+            h.reset();
+        }
+    }
+
+    /**
+     * One line per stage that has samples, times in microseconds.
+     */
+    public void print(String name) {
+        System.out.printf("%40s %14s %8s %10s %10s %10s %10s %10s\n",
+                name, "stage", "count", "mean", "p50", "p90", "p99", "max");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = histograms[stage.ordinal()];
+            if (h.getCount() == 0)
+                continue;
+            System.out.printf("%40s %14s %8d %10.1f %10.1f %10.1f %10.1f %10.1f\n",
+                    "", stage, h.getCount(), h.getMean() / 1e3,
+                    h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(90) / 1e3,
+                    h.getValueAtPercentile(99) / 1e3, h.getMax() / 1e3);
+        }
+    }
+}
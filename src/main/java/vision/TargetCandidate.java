@@ -0,0 +1,37 @@
+package vision;
+
+import java.util.Comparator;
+
+import org.opencv.core.MatOfPoint2f;
+
+/**
+ * One quadrilateral found in an image, which may or may not be a target; see
+ * {@link VisionUtil#findTargetCandidatesInImage(int, boolean, org.opencv.core.Mat, int, MatPool, StageTimings)}.
+ */
+public class TargetCandidate {
+    /** highest score first, then largest */
+    public static final Comparator<TargetCandidate> BEST_FIRST = Comparator
+            .comparingDouble((TargetCandidate c) -> -c.score)
+            .thenComparingDouble(c -> -c.area);
+
+    /** four corners, from the upper left, in the same order as the target geometry */
+    public final MatOfPoint2f corners;
+    /** contour area, square pixels */
+    public final double area;
+    /**
+     * how well the quadrilateral fits the contour: the ratio of the smaller of
+     * their areas to the larger, so 1 is a perfect fit.
+     */
+    public final double score;
+
+    public TargetCandidate(MatOfPoint2f corners, double area, double score) {
+        this.corners = corners;
+        this.area = area;
+        this.score = score;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TargetCandidate(area %.0f score %.3f)", area, score);
+    }
+}
@@ -0,0 +1,159 @@
+package vision;
+
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+/**
+ * Remembers where the target was in the last frame, for one camera, so that
+ * the next frame only needs to look at a padded region around it.
+ *
+ * The region size is rounded up to a multiple of {@link #QUANTUM} and shifted
+ * (not clipped) to stay inside the frame, so there are only a few distinct
+ * region sizes, which keeps the {@link MatPool} small.
+ *
+ * If the target is lost, or its corners touch the edge of the region (so it
+ * might be cut off), the caller should look at the whole frame instead.
+ */
+public class TargetTracker {
+    // region dimensions are multiples of this
+    static final int QUANTUM = 64;
+    // corners this close to a region edge (that isn't the frame edge) mean the
+    // target might not be all there.
+    static final int EDGE_MARGIN = 4;
+    // pad the target bounds by this fraction of the target size on each side
+    final double padFraction;
+    // ... or at least this many pixels
+    final int minPad;
+
+    private Point[] lastCorners = null;
+
+    private long frames = 0;
+    private long hits = 0;
+    private long pixels = 0;
+
+    public TargetTracker() {
+        this(0.5, 32);
+    }
+
+    public TargetTracker(double padFraction, int minPad) {
+        this.padFraction = padFraction;
+        this.minPad = minPad;
+    }
+
+    /**
+     * Call once per frame.
+     * 
+     * @return the region to look at in this frame; the whole frame if there's no
+     *         previous target.
+     */
+    public Rect getRegion(Size frameSize) {
+        ++frames;
+        int frameWidth = (int) frameSize.width;
+        int frameHeight = (int) frameSize.height;
+        if (lastCorners == null)
+            return new Rect(0, 0, frameWidth, frameHeight);
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (Point p : lastCorners) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        double pad = Math.max(minPad, padFraction * Math.max(maxX - minX, maxY - minY));
+        int width = Math.min(frameWidth, quantize(maxX - minX + 2 * pad));
+        int height = Math.min(frameHeight, quantize(maxY - minY + 2 * pad));
+        int x = clamp((int) Math.round((minX + maxX - width) / 2), 0, frameWidth - width);
+        int y = clamp((int) Math.round((minY + maxY - height) / 2), 0, frameHeight - height);
+        return new Rect(x, y, width, height);
+    }
+
+    /**
+     * Record the outcome of looking at the region, or at the whole frame after
+     * a miss.
+     *
+     * @param regionPoints corners found in the region, in region coordinates, or
+     *                     null if none
+     * @param region       where the points were found
+     * @param frameSize    the whole frame
+     * @return the corners in frame coordinates, or null if the target was lost
+     *         or might be cut off, in which case look at the whole frame.
+     */
+    public MatOfPoint2f update(MatOfPoint2f regionPoints, Rect region, Size frameSize) {
+        boolean fullFrame = isFullFrame(region, frameSize);
+        pixels += region.area();
+        if (regionPoints == null) {
+            lastCorners = null;
+            return null;
+        }
+        Point[] corners = regionPoints.toArray();
+        for (Point p : corners) {
+            p.x += region.x;
+            p.y += region.y;
+            if (!fullFrame && touches(p, region, frameSize)) {
+                lastCorners = null;
+                return null;
+            }
+        }
+        if (!fullFrame)
+            ++hits;
+        lastCorners = corners;
+        return new MatOfPoint2f(corners);
+    }
+
+    /**
+     * Forget the target, e.g. when the camera moved discontinuously.
+     */
+    public void reset() {
+        lastCorners = null;
+    }
+
+    /** frames seen */
+    public long getFrames() {
+        return frames;
+    }
+
+    /** fraction of frames where the region alone was enough */
+    public double getHitRate() {
+        if (frames == 0)
+            return 0;
+        return (double) hits / frames;
+    }
+
+    /** average pixels processed per frame, including full-frame fallbacks */
+    public double getPixelsPerFrame() {
+        if (frames == 0)
+            return 0;
+        return (double) pixels / frames;
+    }
+
+    public static boolean isFullFrame(Rect region, Size frameSize) {
+        return region.width == (int) frameSize.width && region.height == (int) frameSize.height;
+    }
+
+    static boolean touches(Point p, Rect region, Size frameSize) {
+        if (region.x > 0 && p.x < region.x + EDGE_MARGIN)
+            return true;
+        if (region.y > 0 && p.y < region.y + EDGE_MARGIN)
+            return true;
+        int right = region.x + region.width;
+        if (right < frameSize.width && p.x > right - 1 - EDGE_MARGIN)
+            return true;
+        int bottom = region.y + region.height;
+        if (bottom < frameSize.height && p.y > bottom - 1 - EDGE_MARGIN)
+            return true;
+        return false;
+    }
+
+    static int quantize(double d) {
+        return QUANTUM * (int) Math.ceil(d / QUANTUM);
+    }
+
+    static int clamp(int v, int min, int max) {
+        return Math.max(min, Math.min(max, v));
+    }
+}
@@ -11,7 +11,6 @@ import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
-import org.opencv.core.MatOfInt;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
@@ -20,7 +19,6 @@ import org.opencv.core.Point3;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 public abstract class VisionUtil {
@@ -81,6 +79,24 @@ public abstract class VisionUtil {
         return Core.mean(diff).val[0];
     }
 
+    /**
+     * Same as {@link #averageAngularError(Mat, Mat)} but for primitive arrays of
+     * centered points, packed x, y, z; the angles are in the XZ plane.
+     */
+    public static double averageAngularError(double[] a, double[] b, int count) {
+        double sum = 0;
+        for (int i = 0; i < 3 * count; i += 3) {
+            double val = Math.atan2(a[i + 2], a[i]) - Math.atan2(b[i + 2], b[i]);
+            if (val > Math.PI) {
+                val -= 2 * Math.PI;
+            } else if (val < -Math.PI) {
+                val += 2 * Math.PI;
+            }
+            sum += val;
+        }
+        return sum / count;
+    }
+
     public static Mat makeBMat3d(MatOfPoint2f leftPts, MatOfPoint2f rightPts, double f, double cx, double cy,
             double b) {
         // To solve Ax=b triangulation (Ax=M-1T-1u), first make u: (u,u',v,1):
@@ -254,6 +270,26 @@ public abstract class VisionUtil {
         return untiltedCameraView;
     }
 
+    /**
+     * make remap tables equivalent to {@link Calib3d#undistort()} followed by
+     * {@link #removeTilt()}, so that one {@link Imgproc#remap()} does both.
+     * The untilt is just a rotation, so it's the "rectification" part of
+     * initUndistortRectifyMap, and the tall kMat is the new camera matrix.
+     *
+     * @param map1 output, CV_16SC2 fixed-point coordinates
+     * @param map2 output, interpolation table
+     */
+    public static void makeUndistortUntiltMaps(Mat kMat, MatOfDouble dMat, double tilt, double f, Size newSize,
+            Mat map1, Mat map2) {
+        Mat unTiltV = Mat.zeros(3, 1, CvType.CV_64F);
+        unTiltV.put(0, 0, tilt, 0.0, 0.0);
+        Mat unTiltM = new Mat();
+        Calib3d.Rodrigues(unTiltV, unTiltM);
+        Mat tallKMat = VisionUtil.makeIntrinsicMatrix(f, newSize);
+        Calib3d.initUndistortRectifyMap(kMat, dMat, unTiltM, tallKMat, newSize, CvType.CV_16SC2, map1, map2);
+        log.debug(0, "untilt rotation", unTiltM);
+    }
+
     /**
      * first pan (about y) and then tilt (about x), return resulting rotation vector
      * 
@@ -427,23 +463,136 @@ public abstract class VisionUtil {
      */
     public static MatOfPoint2f findTargetCornersInImage(int picIdx, boolean writeFiles, Mat rawCameraView,
             int threshold) {
+        MatPool pool = new MatPool();
+        MatOfPoint2f imagePoints = findTargetCornersInImage(picIdx, writeFiles, rawCameraView, threshold, pool);
+        pool.clear();
+        return imagePoints;
+    }
+
+    /**
+     * find the target corners, using scratch buffers from the pool. The
+     * contours themselves are still allocated by findContours, but they're
+     * released here rather than left for the GC.
+     * 
+     * @param picIdx        for debugging
+     * @param rawCameraView unprocessed image
+     * @param pool          scratch buffers, all returned before this returns
+     * @return 2d geometry of the corners, in the image
+     */
+    public static MatOfPoint2f findTargetCornersInImage(int picIdx, boolean writeFiles, Mat rawCameraView,
+            int threshold, MatPool pool) {
+        return findTargetCornersInImage(picIdx, writeFiles, rawCameraView, threshold, pool, StageTimings.NONE);
+    }
+
+    /**
+     * @param timings records the threshold, findContours, and approxPolyDP
+     *                stages
+     */
+    public static MatOfPoint2f findTargetCornersInImage(int picIdx, boolean writeFiles, Mat rawCameraView,
+            int threshold, MatPool pool, StageTimings timings) {
+        return findTargetCornersInImage(picIdx, writeFiles, rawCameraView, threshold, pool, timings, false);
+    }
+
+    /**
+     * @param refine true = move the corners to subpixel positions, see
+     *               {@link CornerRefiner}; they're left alone if that fails.
+     */
+    public static MatOfPoint2f findTargetCornersInImage(int picIdx, boolean writeFiles, Mat rawCameraView,
+            int threshold, MatPool pool, StageTimings timings, boolean refine) {
+        try (MatPool.Scope scope = pool.scope()) {
+            List<MatOfPoint> contours = findContours(picIdx, writeFiles, rawCameraView, threshold, pool, timings);
+            long t = System.nanoTime();
+            MatOfPoint2f imagePoints;
+            try {
+                imagePoints = findTargetCornersInContours(picIdx, writeFiles, rawCameraView, contours, pool);
+            } finally {
+                t = timings.lap(StageTimings.Stage.APPROX_POLY, t);
+                for (MatOfPoint c : contours) {
+                    c.release();
+                }
+            }
+            if (refine && imagePoints != null) {
+                if (!CornerRefiner.refine(rawCameraView, imagePoints))
+                    log.debugmsg(2, "refinement failed");
+                timings.lap(StageTimings.Stage.REFINE, t);
+            }
+            return imagePoints;
+        }
+    }
+
+    /**
+     * Like {@link #findTargetCornersInImage(int, boolean, Mat, int, MatPool, StageTimings)}
+     * but for any number of targets: every contour that's a quadrilateral,
+     * best first.
+     * 
+     * @return candidates, maybe empty, with the corners in the same order as
+     *         findTargetCornersInImage
+     */
+    public static List<TargetCandidate> findTargetCandidatesInImage(int picIdx, boolean writeFiles,
+            Mat rawCameraView, int threshold, MatPool pool, StageTimings timings) {
+        return findTargetCandidatesInImage(picIdx, writeFiles, rawCameraView, threshold, pool, timings, false);
+    }
+
+    /**
+     * @param refine true = refine each candidate's corners, see
+     *               {@link CornerRefiner}
+     */
+    public static List<TargetCandidate> findTargetCandidatesInImage(int picIdx, boolean writeFiles,
+            Mat rawCameraView, int threshold, MatPool pool, StageTimings timings, boolean refine) {
+        try (MatPool.Scope scope = pool.scope()) {
+            List<MatOfPoint> contours = findContours(picIdx, writeFiles, rawCameraView, threshold, pool, timings);
+            long t = System.nanoTime();
+            List<TargetCandidate> candidates = new ArrayList<>();
+            for (MatOfPoint c : contours) {
+                double area = Imgproc.contourArea(c);
+                if (area > 10) {
+                    List<Point> poly = approxPoly(c);
+                    if (poly.size() == 4) {
+                        MatOfPoint2f corners = new MatOfPoint2f(orderFromUpperLeft(poly).toArray(new Point[0]));
+                        double quadArea = Imgproc.contourArea(corners);
+                        candidates.add(new TargetCandidate(corners, area,
+                                quadArea > 0 ? Math.min(area, quadArea) / Math.max(area, quadArea) : 0));
+                    }
+                }
+                c.release();
+            }
+            candidates.sort(TargetCandidate.BEST_FIRST);
+            t = timings.lap(StageTimings.Stage.APPROX_POLY, t);
+            if (refine) {
+                for (TargetCandidate c : candidates) {
+                    CornerRefiner.refine(rawCameraView, c.corners);
+                }
+                timings.lap(StageTimings.Stage.REFINE, t);
+            }
+            log.debug(2, "candidates", candidates.size());
+            return candidates;
+        }
+    }
 
+    /**
+     * Threshold and find the external contours; the caller releases them.
+     */
+    private static List<MatOfPoint> findContours(int picIdx, boolean writeFiles, Mat rawCameraView,
+            int threshold, MatPool pool, StageTimings timings) {
         // first "binarize" to remove blur
-        Mat cameraView = new Mat();
+        long t = System.nanoTime();
+        Mat cameraView = pool.acquire(rawCameraView.size(), rawCameraView.type());
         Imgproc.threshold(rawCameraView, cameraView, threshold, 255, Imgproc.THRESH_BINARY);
+        timings.lap(StageTimings.Stage.THRESHOLD, t);
         if (writeFiles)
-            Imgcodecs.imwrite(String.format("C:\\Users\\joelt\\Desktop\\pics\\target-%d-thresholded.png", picIdx),
+            DebugImageWriter.getDefault().write(picIdx, String.format("target-%d-thresholded.png", picIdx),
                     cameraView);
 
-        Mat singleChannelCameraView = new Mat();
+        Mat singleChannelCameraView;
         if (rawCameraView.channels() == 1)
             singleChannelCameraView = cameraView;
         else {
+            singleChannelCameraView = pool.acquire(rawCameraView.size(), CvType.CV_8UC1);
             Imgproc.cvtColor(cameraView, singleChannelCameraView, Imgproc.COLOR_BGR2GRAY);
 
         }
         if (writeFiles)
-            Imgcodecs.imwrite(String.format("C:\\Users\\joelt\\Desktop\\pics\\target-%d-bw.png", picIdx),
+            DebugImageWriter.getDefault().write(picIdx, String.format("target-%d-bw.png", picIdx),
                     singleChannelCameraView);
         /*
          * Mat edges = new Mat();
@@ -454,17 +603,64 @@ public abstract class VisionUtil {
          * System.out.println(approxCurve.dump());
          */
 
+        t = System.nanoTime();
         List<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
+        Mat hierarchy = pool.acquire(1, 1, CvType.CV_32SC4);
         Imgproc.findContours(singleChannelCameraView,
                 contours,
                 hierarchy,
                 Imgproc.RETR_EXTERNAL,
                 Imgproc.CHAIN_APPROX_SIMPLE);
+        timings.lap(StageTimings.Stage.FIND_CONTOURS, t);
 
         log.debug(0, "hierarchy", hierarchy);
         log.debug(2, "contours size", contours.size());
+        return contours;
+    }
 
+    /**
+     * Per-thread buffers for approxPoly; OpenCV only reallocates them when the
+     * number of points changes.
+     */
+    private static class PolyScratch {
+        final MatOfPoint2f curve = new MatOfPoint2f();
+        final MatOfPoint2f approxCurve = new MatOfPoint2f();
+    }
+
+    private static final ThreadLocal<PolyScratch> polyScratch = ThreadLocal.withInitial(PolyScratch::new);
+
+    /**
+     * Simplify the contour to a polygon, with tolerance 4% of the perimeter.
+     */
+    private static List<Point> approxPoly(MatOfPoint contour) {
+        PolyScratch scratch = polyScratch.get();
+        contour.convertTo(scratch.curve, CvType.CV_32F);
+        double epsilon = 0.04 * Imgproc.arcLength(scratch.curve, true);
+        Imgproc.approxPolyDP(scratch.curve, scratch.approxCurve, epsilon, true);
+        return scratch.approxCurve.toList();
+    }
+
+    /**
+     * Rotate the corners to start from the upper left one, keeping their
+     * winding.
+     */
+    private static List<Point> orderFromUpperLeft(List<Point> corners) {
+        Point upperLeftPoint = new Point(Double.MAX_VALUE, Double.MAX_VALUE);
+        int idx = 0;
+        for (int i = 0; i < corners.size(); ++i) {
+            Point p = corners.get(i);
+            if (p.x + p.y < upperLeftPoint.x + upperLeftPoint.y) {
+                upperLeftPoint = p;
+                idx = i;
+            }
+        }
+        List<Point> result = new ArrayList<>(corners);
+        Collections.rotate(result, -idx);
+        return result;
+    }
+
+    private static MatOfPoint2f findTargetCornersInContours(int picIdx, boolean writeFiles, Mat rawCameraView,
+            List<MatOfPoint> contours, MatPool pool) {
         List<MatOfPoint> bigContours = new ArrayList<>();
         for (MatOfPoint c : contours) {
             if (Imgproc.contourArea(c) > 10) {
@@ -484,65 +680,52 @@ public abstract class VisionUtil {
             return null;
         }
 
-        if (writeFiles) {
-            Mat contourView2 = Mat.zeros(cameraView.size(), CvType.CV_8U);
+        if (writeFiles && DebugImageWriter.getDefault().sample(picIdx)) {
+            Mat contourView2 = pool.acquire(rawCameraView.size(), CvType.CV_8U);
+            contourView2.setTo(new Scalar(0));
             Imgproc.drawContours(contourView2, contours, 0, new Scalar(255, 0, 0));
-            Imgcodecs.imwrite(String.format("C:\\Users\\joelt\\Desktop\\pics\\target-%d-contours.png", picIdx),
+            DebugImageWriter.getDefault().write(picIdx, String.format("target-%d-contours.png", picIdx),
                     contourView2);
         }
 
-        MatOfPoint2f curve = new MatOfPoint2f(contours.get(0).toArray());
-        MatOfPoint2f approxCurve = new MatOfPoint2f();
-        double epsilon = 0.04 * Imgproc.arcLength(curve, true);
-        Imgproc.approxPolyDP(curve, approxCurve, epsilon, true);
-        MatOfPoint points = new MatOfPoint(approxCurve.toArray());
+        List<Point> approxCurveList = approxPoly(contours.get(0));
         // System.out.println("points");
         // System.out.println(points.dump());
 
-        if (writeFiles) {
-            Mat contourView = Mat.zeros(cameraView.size(), CvType.CV_8U);
+        if (writeFiles && DebugImageWriter.getDefault().sample(picIdx)) {
+            MatOfPoint points = new MatOfPoint(approxCurveList.toArray(new Point[0]));
+            Mat contourView = pool.acquire(rawCameraView.size(), CvType.CV_8U);
+            contourView.setTo(new Scalar(0));
             Imgproc.drawContours(contourView, List.of(points), 0, new Scalar(255, 0, 0));
-            Imgcodecs.imwrite(String.format("C:\\Users\\joelt\\Desktop\\pics\\target-%d-poly.png", picIdx),
+            DebugImageWriter.getDefault().write(picIdx, String.format("target-%d-poly.png", picIdx),
                     contourView);
+            points.release();
         }
         // System.out.println("approxcurve");
         // System.out.println(approxCurve.dump());
-        if (approxCurve.toList().size() != 4) {
+        if (approxCurveList.size() != 4) {
             log.debugmsg(2, "wrong size");
-            log.debug(2, "approxcurve", approxCurve);
+            log.debug(2, "approxcurve size", approxCurveList.size());
             return null;
         }
 
-        MatOfInt hull = new MatOfInt();
-
-        Imgproc.convexHull(points, hull, true);
-
-        Point upperLeftPoint = new Point(Double.MAX_VALUE, Double.MAX_VALUE);
-        int idx = 0;
-        List<Point> approxCurveList = approxCurve.toList();
-        for (int i = 0; i < approxCurveList.size(); ++i) {
-            Point p = approxCurveList.get(i);
-            if (p.x + p.y < upperLeftPoint.x + upperLeftPoint.y) {
-                upperLeftPoint = p;
-                idx = i;
-            }
-        }
-
-        Collections.rotate(approxCurveList, -idx);
+        approxCurveList = orderFromUpperLeft(approxCurveList);
 
         MatOfPoint2f imagePoints = new MatOfPoint2f(approxCurveList.toArray(new Point[0]));
 
-        Mat pointView = rawCameraView.clone();
-        for (Point pt : imagePoints.toList()) {
-            Imgproc.circle(pointView,
-                    new Point(pt.x, pt.y),
-                    3,
-                    new Scalar(0, 255, 0),
-                    Imgproc.FILLED);
-        }
-        if (writeFiles)
-            Imgcodecs.imwrite(String.format("C:\\Users\\joelt\\Desktop\\pics\\target-%d-points.png", picIdx),
+        if (writeFiles && DebugImageWriter.getDefault().sample(picIdx)) {
+            Mat pointView = pool.acquire(rawCameraView.size(), rawCameraView.type());
+            rawCameraView.copyTo(pointView);
+            for (Point pt : approxCurveList) {
+                Imgproc.circle(pointView,
+                        new Point(pt.x, pt.y),
+                        3,
+                        new Scalar(0, 255, 0),
+                        Imgproc.FILLED);
+            }
+            DebugImageWriter.getDefault().write(picIdx, String.format("target-%d-points.png", picIdx),
                     pointView);
+        }
         return imagePoints;
     }
 
@@ -585,6 +768,32 @@ public abstract class VisionUtil {
         return result;
     }
 
+    /**
+     * apply a camera's extrinsic (robot-to-camera) transform to the world-to-robot
+     * transform, both 4x4 CV_32F.
+     */
+    public static Mat worldToCamera(Mat worldToRobot, Mat extrinsic) {
+        Mat result = new Mat();
+        Core.gemm(extrinsic, worldToRobot, 1.0, new Mat(), 0.0, result);
+        return result;
+    }
+
+    /**
+     * projectPoints is happy to project points behind the camera, so check that
+     * they're all in front of it.
+     */
+    public static boolean inFront(MatOfPoint3f geometry, Mat worldToCamera) {
+        double r20 = worldToCamera.get(2, 0)[0];
+        double r21 = worldToCamera.get(2, 1)[0];
+        double r22 = worldToCamera.get(2, 2)[0];
+        double t2 = worldToCamera.get(2, 3)[0];
+        for (Point3 p : geometry.toArray()) {
+            if (r20 * p.x + r21 * p.y + r22 * p.z + t2 <= 0)
+                return false;
+        }
+        return true;
+    }
+
     public static boolean inViewport(MatOfPoint2f pts, Rect viewport) {
         for (Point pt : pts.toList()) {
             if (!viewport.contains(pt))
@@ -778,6 +987,164 @@ public abstract class VisionUtil {
         return cameraView;
     }
 
+    /**
+     * Invert an estimator's world-to-camera transform into the camera position
+     * in the target frame and the heading, as PoseEstimatorHarness does.
+     * 
+     * @param transform 3x4 or 4x4, double
+     * @param pose      filled with {x, z, heading}
+     */
+    public static void transformToPose(Mat transform, double[] pose) {
+        int cols = transform.cols();
+        double[] t = new double[transform.rows() * cols];
+        transform.get(0, 0, t);
+        double tx = t[3];
+        double ty = t[cols + 3];
+        double tz = t[2 * cols + 3];
+        // -R^T t
+        pose[0] = -(t[0] * tx + t[cols] * ty + t[2 * cols] * tz);
+        pose[1] = -(t[2] * tx + t[cols + 2] * ty + t[2 * cols + 2] * tz);
+        pose[2] = Math.atan2(t[2 * cols], t[0]);
+    }
+
+    /**
+     * Like renderImage, but instead of warping a target bitmap into the frame,
+     * fill the projected quadrilateral directly: each pixel gets the brightness
+     * times the fraction of its area inside the quad, so edges are antialiased
+     * with exact subpixel coverage. Only the quad's bounding box is rasterized,
+     * and nothing is allocated if dst is already the right size.
+     * 
+     * Matches the warp path to within a gray level or two in the interior and
+     * about half the brightness at the edges, where warpPerspective's bilinear
+     * sampling spreads differently; see TestVisionUtil.
+     * 
+     * @param skewedImagePts2f the four target corners, in order around the
+     *                         perimeter
+     * @param dst              reused for the output, 8-bit mono
+     */
+    public static Mat rasterizeImage(int brightness, Size dsize, MatOfPoint2f skewedImagePts2f, Mat dst) {
+        dst.create(dsize, CvType.CV_8UC1);
+        dst.setTo(new Scalar(0));
+        rasterizeQuad(dst, skewedImagePts2f.toArray(), brightness);
+        return dst;
+    }
+
+    /**
+     * Fill a convex polygon with antialiased coverage; pixel (i, j) is the unit
+     * square centered on (i, j), as in OpenCV.
+     */
+    static void rasterizeQuad(Mat dst, Point[] poly, int brightness) {
+        int n = poly.length;
+        // edge functions a*x + b*y + c, positive inside.
+        double signedArea = 0;
+        for (int i = 0; i < n; ++i) {
+            Point p0 = poly[i];
+            Point p1 = poly[(i + 1) % n];
+            signedArea += p0.x * p1.y - p1.x * p0.y;
+        }
+        double sign = signedArea < 0 ? -1 : 1;
+        double[] ea = new double[n];
+        double[] eb = new double[n];
+        double[] ec = new double[n];
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < n; ++i) {
+            Point p0 = poly[i];
+            Point p1 = poly[(i + 1) % n];
+            ea[i] = -sign * (p1.y - p0.y);
+            eb[i] = sign * (p1.x - p0.x);
+            ec[i] = -(ea[i] * p0.x + eb[i] * p0.y);
+            minX = Math.min(minX, p0.x);
+            minY = Math.min(minY, p0.y);
+            maxX = Math.max(maxX, p0.x);
+            maxY = Math.max(maxY, p0.y);
+        }
+        int x0 = Math.max(0, (int) Math.floor(minX + 0.5));
+        int y0 = Math.max(0, (int) Math.floor(minY + 0.5));
+        int x1 = Math.min(dst.cols() - 1, (int) Math.ceil(maxX - 0.5));
+        int y1 = Math.min(dst.rows() - 1, (int) Math.ceil(maxY - 0.5));
+        if (x1 < x0 || y1 < y0)
+            return;
+
+        byte[] row = new byte[x1 - x0 + 1];
+        // scratch for clipping the pixel square, at most 4 + n vertices.
+        double[][] clip = new double[4][4 + n];
+        for (int y = y0; y <= y1; ++y) {
+            for (int x = x0; x <= x1; ++x) {
+                double coverage = 1;
+                for (int i = 0; i < n; ++i) {
+                    double f = ea[i] * x + eb[i] * y + ec[i];
+                    // the largest change in f from the center to a corner
+                    double h = 0.5 * (Math.abs(ea[i]) + Math.abs(eb[i]));
+                    if (f <= -h) {
+                        coverage = 0;
+                        break;
+                    }
+                    if (f < h)
+                        coverage = -1;
+                }
+                if (coverage < 0)
+                    coverage = pixelCoverage(x, y, ea, eb, ec, clip);
+                row[x - x0] = (byte) Math.min(255, Math.round(brightness * coverage));
+            }
+            dst.put(y, x0, row);
+        }
+    }
+
+    /**
+     * Area of the pixel square inside all the edge half-planes, by
+     * Sutherland-Hodgman.
+     */
+    private static double pixelCoverage(int x, int y, double[] ea, double[] eb, double[] ec, double[][] clip) {
+        double[] xs = clip[0];
+        double[] ys = clip[1];
+        double[] nxs = clip[2];
+        double[] nys = clip[3];
+        xs[0] = x - 0.5;
+        ys[0] = y - 0.5;
+        xs[1] = x + 0.5;
+        ys[1] = y - 0.5;
+        xs[2] = x + 0.5;
+        ys[2] = y + 0.5;
+        xs[3] = x - 0.5;
+        ys[3] = y + 0.5;
+        int count = 4;
+        for (int i = 0; i < ea.length && count > 0; ++i) {
+            int out = 0;
+            for (int j = 0; j < count; ++j) {
+                int k = (j + 1) % count;
+                double fj = ea[i] * xs[j] + eb[i] * ys[j] + ec[i];
+                double fk = ea[i] * xs[k] + eb[i] * ys[k] + ec[i];
+                if (fj >= 0) {
+                    nxs[out] = xs[j];
+                    nys[out] = ys[j];
+                    ++out;
+                }
+                if ((fj >= 0) != (fk >= 0)) {
+                    double t = fj / (fj - fk);
+                    nxs[out] = xs[j] + t * (xs[k] - xs[j]);
+                    nys[out] = ys[j] + t * (ys[k] - ys[j]);
+                    ++out;
+                }
+            }
+            double[] tmp = xs;
+            xs = nxs;
+            nxs = tmp;
+            tmp = ys;
+            ys = nys;
+            nys = tmp;
+            count = out;
+        }
+        double area = 0;
+        for (int j = 0; j < count; ++j) {
+            int k = (j + 1) % count;
+            area += xs[j] * ys[k] - xs[k] * ys[j];
+        }
+        return Math.min(1, Math.abs(area) / 2);
+    }
+
     /**
      * Add speckle in place
      */
@@ -807,13 +1174,19 @@ public abstract class VisionUtil {
         System.gc();
     }
 
-    public static void writePng(MatOfPoint2f pts, int width, int height, String filename) {
+    /**
+     * draw the points and queue the result on the debug image writer.
+     */
+    public static void writePng(int frame, MatOfPoint2f pts, int width, int height, String filename) {
+        DebugImageWriter writer = DebugImageWriter.getDefault();
+        if (!writer.sample(frame))
+            return;
         final Scalar green = new Scalar(0, 255, 0);
         Mat img = Mat.zeros(height, width, CvType.CV_32FC3);
         for (Point pt : pts.toList()) {
             Imgproc.circle(img, pt, 6, green, 1);
         }
-        Imgcodecs.imwrite(filename, img);
+        writer.writeOwned(frame, filename, img);
     }
 
     /**
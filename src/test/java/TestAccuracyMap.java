@@ -0,0 +1,107 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+import vision.AccuracyMap;
+
+public class TestAccuracyMap {
+    final AccuracyMap.Axis range = new AccuracyMap.Axis(4, 1.0, 1.0);
+    final AccuracyMap.Axis bearing = new AccuracyMap.Axis(3, -0.5, 0.5);
+    final AccuracyMap.Axis pan = new AccuracyMap.Axis(5, -1.0, 0.5);
+
+    static double linear(double r, double b, double p) {
+        return 0.1 * r + 0.2 * b - 0.05 * p + 0.5;
+    }
+
+    /** A linear function everywhere, and failures only at one grid point. */
+    float[] makeData() {
+        float[] data = new float[range.count * bearing.count * pan.count * AccuracyMap.FIELDS];
+        for (int r = 0; r < range.count; ++r) {
+            for (int b = 0; b < bearing.count; ++b) {
+                for (int p = 0; p < pan.count; ++p) {
+                    int i = AccuracyMap.index(bearing, pan, r, b, p);
+                    data[i + AccuracyMap.POSITION_ERROR] = (float) linear(range.get(r), bearing.get(b),
+                            pan.get(p));
+                    data[i + AccuracyMap.HEADING_ERROR] = 0.01f;
+                    data[i + AccuracyMap.FAILURE_PROBABILITY] = 0;
+                }
+            }
+        }
+        int far = AccuracyMap.index(bearing, pan, 3, 2, 4);
+        data[far + AccuracyMap.POSITION_ERROR] = Float.NaN;
+        data[far + AccuracyMap.HEADING_ERROR] = Float.NaN;
+        data[far + AccuracyMap.FAILURE_PROBABILITY] = 1;
+        return data;
+    }
+
+    AccuracyMap roundTrip(float[] data) throws IOException {
+        Path path = Files.createTempFile("accuracy", ".acc");
+        path.toFile().deleteOnExit();
+        AccuracyMap.write(path, range, bearing, pan, data);
+        return AccuracyMap.load(path);
+    }
+
+    /** Trilinear interpolation reproduces a linear function exactly. */
+    @Test
+    public void testInterpolation() throws IOException {
+        AccuracyMap map = roundTrip(makeData());
+        assertEquals(4, map.getRange().count);
+        for (double r = 1.0; r <= 3.9; r += 0.37) {
+            for (double b = -0.5; b <= 0.5; b += 0.13) {
+                for (double p = -1.0; p <= 0.5; p += 0.29) {
+                    assertEquals(linear(r, b, p), map.get(AccuracyMap.POSITION_ERROR, r, b, p), 1e-6);
+                    assertEquals(0.01, map.get(AccuracyMap.HEADING_ERROR, r, b, p), 1e-6);
+                }
+            }
+        }
+    }
+
+    /** Outside the grid, the edge value. */
+    @Test
+    public void testClamp() throws IOException {
+        AccuracyMap map = roundTrip(makeData());
+        assertEquals(linear(1.0, -0.5, -1.0), map.get(AccuracyMap.POSITION_ERROR, 0.2, -2, -3), 1e-6);
+        assertEquals(linear(1.0, 0.5, 0), map.get(AccuracyMap.POSITION_ERROR, 0.2, 2, 0), 1e-6);
+        assertTrue(Double.isNaN(map.get(AccuracyMap.POSITION_ERROR, Double.NaN, 0, 0)));
+    }
+
+    /** Points with no data are left out; failures interpolate like anything else. */
+    @Test
+    public void testMissing() throws IOException {
+        AccuracyMap map = roundTrip(makeData());
+        assertTrue(Double.isNaN(map.get(AccuracyMap.POSITION_ERROR, 4, 0.5, 1)));
+        assertEquals(1, map.get(AccuracyMap.FAILURE_PROBABILITY, 4, 0.5, 1), 1e-6);
+        // half way to the missing point: the rest of the neighbors
+        assertEquals(linear(4, 0.5, 0.5), map.get(AccuracyMap.POSITION_ERROR, 4, 0.5, 0.75), 1e-6);
+        assertEquals(0.5, map.get(AccuracyMap.FAILURE_PROBABILITY, 4, 0.5, 0.75), 1e-6);
+    }
+
+    /** Poses go in as {x, z, heading}. */
+    @Test
+    public void testTrusted() throws IOException {
+        AccuracyMap map = roundTrip(makeData());
+        // 2 m straight out, facing the target
+        double[] pose = { 0, -2, 0 };
+        assertEquals(linear(2, 0, 0), map.get(AccuracyMap.POSITION_ERROR, pose), 1e-6);
+        assertTrue(map.isTrusted(pose, 0.8, 0.1));
+        assertFalse(map.isTrusted(pose, 0.6, 0.1));
+        // the corner that always fails
+        double[] far = { 4 * Math.sin(0.5), -4 * Math.cos(0.5), 1 };
+        assertFalse(map.isTrusted(far, 10, 0.5));
+    }
+
+    @Test
+    public void testBadFile() throws IOException {
+        Path path = Files.createTempFile("accuracy", ".acc");
+        path.toFile().deleteOnExit();
+        Files.write(path, new byte[100]);
+        assertThrows(IOException.class, () -> AccuracyMap.load(path));
+    }
+}
@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import vision.BlobDetector;
+import vision.MatPool;
+import vision.StageTimings;
+import vision.VisionUtil;
+
+public class TestBlobDetector {
+    public TestBlobDetector() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * The blob corners should be within a pixel or two of the contour corners,
+     * in the same order.
+     */
+    @Test
+    public void testMatchesContours() {
+        MatOfPoint3f targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        Size size = new Size(1280, 800);
+        Mat kMat = VisionUtil.makeIntrinsicMatrix(985.0, size);
+        MatOfDouble dMat = new MatOfDouble(Mat.zeros(4, 1, CvType.CV_64F));
+        MatPool pool = new MatPool();
+        Mat image = new Mat();
+        for (double pan : new double[] { -0.4, 0, 0.3 }) {
+            for (double zPos : new double[] { -2, -5, -9 }) {
+                Mat worldToCamera = VisionUtil.makeWorldToCameraHomogeneous(pan, 0.3, 0, zPos);
+                MatOfPoint2f pts = VisionUtil.imagePoints(kMat, dMat, targetGeometryMeters, worldToCamera);
+                VisionUtil.rasterizeImage(230, size, pts, image);
+                Imgproc.GaussianBlur(image, image, new Size(3, 3), 0);
+
+                MatOfPoint2f contours = VisionUtil.findTargetCornersInImage(0, false, image, 200, pool,
+                        StageTimings.NONE, false);
+                MatOfPoint2f blobs = BlobDetector.findTargetCorners(image, 200, StageTimings.NONE, false);
+                assertNotNull(contours);
+                assertNotNull(blobs);
+                Point[] expected = contours.toArray();
+                Point[] actual = blobs.toArray();
+                assertEquals(4, actual.length);
+                for (int i = 0; i < 4; ++i) {
+                    assertEquals(expected[i].x, actual[i].x, 2);
+                    assertEquals(expected[i].y, actual[i].y, 2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRejects() {
+        Mat image = Mat.zeros(200, 300, CvType.CV_8UC1);
+        assertNull(BlobDetector.findTargetCorners(image, 200, StageTimings.NONE, false));
+
+        // not a quadrilateral
+        Imgproc.circle(image, new Point(100, 100), 40, new Scalar(230), Imgproc.FILLED);
+        assertNull(BlobDetector.findTargetCorners(image, 200, StageTimings.NONE, false));
+
+        // two targets
+        image.setTo(new Scalar(0));
+        Imgproc.rectangle(image, new Point(20, 20), new Point(60, 60), new Scalar(230), Imgproc.FILLED);
+        Imgproc.rectangle(image, new Point(120, 20), new Point(160, 60), new Scalar(230), Imgproc.FILLED);
+        assertNull(BlobDetector.findTargetCorners(image, 200, StageTimings.NONE, false));
+
+        // one, plus a speck of noise
+        image.setTo(new Scalar(0));
+        Imgproc.rectangle(image, new Point(20, 20), new Point(60, 60), new Scalar(230), Imgproc.FILLED);
+        image.put(150, 250, new byte[] { (byte) 230 });
+        MatOfPoint2f corners = BlobDetector.findTargetCorners(image, 200, StageTimings.NONE, false);
+        assertNotNull(corners);
+        Point[] c = corners.toArray();
+        assertEquals(new Point(20, 20), c[0]);
+        assertEquals(new Point(20, 60), c[1]);
+        assertEquals(new Point(60, 60), c[2]);
+        assertEquals(new Point(60, 20), c[3]);
+    }
+}
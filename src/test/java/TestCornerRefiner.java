@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import vision.MatPool;
+import vision.StageTimings;
+import vision.VisionUtil;
+
+public class TestCornerRefiner {
+    public TestCornerRefiner() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * Mean distance from each expected corner to the nearest actual one.
+     */
+    static double meanError(Point[] actual, Point[] expected) {
+        double sum = 0;
+        for (Point e : expected) {
+            double nearest = Double.MAX_VALUE;
+            for (Point a : actual) {
+                nearest = Math.min(nearest, Math.hypot(a.x - e.x, a.y - e.y));
+            }
+            sum += nearest;
+        }
+        return sum / expected.length;
+    }
+
+    /**
+     * Refined corners should be much closer to the true (projected) corners
+     * than the approxPolyDP ones, near and far.
+     */
+    @Test
+    public void testRefinedCornersAreCloser() {
+        MatOfPoint3f targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        Size size = new Size(1280, 800);
+        Mat kMat = VisionUtil.makeIntrinsicMatrix(985.0, size);
+        MatOfDouble dMat = new MatOfDouble(Mat.zeros(4, 1, CvType.CV_64F));
+        MatPool pool = new MatPool();
+        Mat image = new Mat();
+        for (double pan : new double[] { -0.4, 0, 0.3 }) {
+            for (double zPos : new double[] { -2, -5, -9 }) {
+                Mat worldToCamera = VisionUtil.makeWorldToCameraHomogeneous(pan, 0.3, 0, zPos);
+                MatOfPoint2f pts = VisionUtil.imagePoints(kMat, dMat, targetGeometryMeters, worldToCamera);
+                VisionUtil.rasterizeImage(230, size, pts, image);
+                Imgproc.GaussianBlur(image, image, new Size(3, 3), 0);
+
+                MatOfPoint2f plain = VisionUtil.findTargetCornersInImage(0, false, image, 200, pool,
+                        StageTimings.NONE, false);
+                MatOfPoint2f refined = VisionUtil.findTargetCornersInImage(0, false, image, 200, pool,
+                        StageTimings.NONE, true);
+                assertNotNull(plain);
+                assertNotNull(refined);
+                double plainError = meanError(plain.toArray(), pts.toArray());
+                double refinedError = meanError(refined.toArray(), pts.toArray());
+                assertTrue(refinedError < 0.2, "refined " + refinedError);
+                assertTrue(refinedError < plainError, "refined " + refinedError + " plain " + plainError);
+            }
+        }
+    }
+}
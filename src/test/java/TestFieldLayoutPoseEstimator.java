@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import vision.FieldLayout;
+import vision.FieldLayoutPoseEstimator;
+import vision.MatPool;
+import vision.StageTimings;
+import vision.TargetCandidate;
+import vision.VisionUtil;
+
+public class TestFieldLayoutPoseEstimator {
+    public TestFieldLayoutPoseEstimator() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * Draw every layout target the camera sees.
+     *
+     * @return how many
+     */
+    static int render(FieldLayoutPoseEstimator e, Mat worldToCamera, Mat image) {
+        Rect viewport = new Rect(0, 0, image.cols(), image.rows());
+        int visible = 0;
+        for (FieldLayout.Target target : e.getLayout().getTargets()) {
+            if (!VisionUtil.inFront(target.corners, worldToCamera))
+                continue;
+            MatOfPoint2f pts = VisionUtil.imagePoints(e.getIntrinsicMatrices()[0], e.getDistortionMatrices()[0],
+                    target.corners, worldToCamera);
+            if (!VisionUtil.inViewport(pts, viewport))
+                continue;
+            Imgproc.fillConvexPoly(image, new MatOfPoint(pts.toArray()), new Scalar(230));
+            ++visible;
+        }
+        return visible;
+    }
+
+    @Test
+    public void testCandidates() {
+        Mat image = Mat.zeros(800, 1280, CvType.CV_8UC1);
+        Imgproc.fillConvexPoly(image, new MatOfPoint(new Point(100, 100), new Point(100, 200),
+                new Point(210, 210), new Point(200, 90)), new Scalar(230));
+        Imgproc.fillConvexPoly(image, new MatOfPoint(new Point(600, 300), new Point(600, 500),
+                new Point(800, 500), new Point(800, 300)), new Scalar(230));
+        // not a quadrilateral
+        Imgproc.circle(image, new Point(1000, 600), 50, new Scalar(230), Imgproc.FILLED);
+        List<TargetCandidate> candidates = VisionUtil.findTargetCandidatesInImage(0, false, image, 200,
+                new MatPool(), StageTimings.NONE);
+        assertEquals(2, candidates.size());
+        for (TargetCandidate c : candidates) {
+            assertEquals(1.0, c.score, 0.05);
+        }
+    }
+
+    /**
+     * Straight on, with the whole layout in view, and off to the side.
+     */
+    @Test
+    public void testTwoTargets() {
+        FieldLayoutPoseEstimator e = new FieldLayoutPoseEstimator(FieldLayout.example(), true);
+        double[][] poses = {
+                // pan, x, z
+                { 0.0, 0.5, -5 },
+                { 0.4, -2.5, -3 },
+        };
+        for (double[] pose : poses) {
+            Mat worldToCamera = VisionUtil.makeWorldToCameraHomogeneous(pose[0], pose[1], 0, pose[2]);
+            Mat image = Mat.zeros(e.getSizes()[0], CvType.CV_8UC1);
+            int rendered = render(e, worldToCamera, image);
+            assertTrue(rendered > 0);
+            if (pose == poses[0]) {
+                // straight on, the pose has to come from more than one target
+                assertTrue(rendered >= 2);
+                List<TargetCandidate> candidates = VisionUtil.findTargetCandidatesInImage(0, false, image, 200,
+                        new MatPool(), StageTimings.NONE);
+                int[] assignment = e.match(pose[0], candidates);
+                assertNotNull(assignment);
+                int matched = 0;
+                for (int target : assignment) {
+                    if (target >= 0)
+                        ++matched;
+                }
+                assertTrue(matched >= 2);
+            }
+            Mat transform = e.getPose(0, false, pose[0], null, new Mat[] { image });
+            assertNotNull(transform);
+            double[] estimate = new double[3];
+            VisionUtil.transformToPose(transform, estimate);
+            assertEquals(pose[1], estimate[0], 0.1);
+            assertEquals(pose[2], estimate[1], 0.1);
+        }
+    }
+}
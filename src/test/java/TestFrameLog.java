@@ -0,0 +1,110 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+
+import vision.FrameLogReader;
+import vision.FrameLogWriter;
+
+/**
+ * Frames should come back from the log as they went in, including after
+ * reopening the log to append.
+ */
+public class TestFrameLog {
+    public TestFrameLog() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path file = Files.createTempFile("test", ".flog");
+        // not deleted right away: windows won't delete a file that's still mapped
+        file.toFile().deleteOnExit();
+        Size[] sizes = new Size[] { new Size(64, 48), new Size(64, 48) };
+        try (FrameLogWriter writer = new FrameLogWriter(file, sizes)) {
+            for (int i = 0; i < 3; ++i) {
+                writer.append(1000 * i, 0.1 * i, new double[] { i, -i, 0.5 }, images(sizes, i));
+            }
+        }
+        // reopen and append one without a true pose
+        try (FrameLogWriter writer = new FrameLogWriter(file, sizes)) {
+            writer.append(3000, 0.3, null, images(sizes, 3));
+        }
+
+        try (FrameLogReader reader = new FrameLogReader(file)) {
+            assertEquals(4, reader.getFrames());
+            FrameLogReader.Frame frame = new FrameLogReader.Frame();
+            for (int i = 0; i < 4; ++i) {
+                reader.read(i, frame);
+                assertEquals(1000 * i, frame.captureTimeMicros);
+                assertEquals(0.1 * i, frame.heading, 1e-12);
+                assertEquals(i < 3, frame.hasTruth());
+                for (int c = 0; c < sizes.length; ++c) {
+                    assertEquals(48, frame.images[c].rows());
+                    assertEquals(64, frame.images[c].cols());
+                    assertEquals(10 * i + c, frame.images[c].get(5, 7)[0], 0);
+                }
+            }
+            assertEquals(-2, reader.read(2, frame).truth[1], 0);
+            assertFalse(reader.read(3, frame).hasTruth());
+            assertTrue(Double.isNaN(frame.truth[0]));
+        }
+    }
+
+    /**
+     * A record cut off mid-write (say, the robot lost power) is dropped when
+     * the log is reopened, and the next frame goes where it was.
+     */
+    @Test
+    public void testPartialRecord() throws IOException {
+        Path file = Files.createTempFile("test", ".flog");
+        file.toFile().deleteOnExit();
+        Size[] sizes = new Size[] { new Size(64, 48) };
+        try (FrameLogWriter writer = new FrameLogWriter(file, sizes)) {
+            for (int i = 0; i < 2; ++i) {
+                writer.append(1000 * i, 0.1 * i, null, images(sizes, i));
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 100);
+        }
+        try (FrameLogReader reader = new FrameLogReader(file)) {
+            assertEquals(1, reader.getFrames());
+        }
+
+        try (FrameLogWriter writer = new FrameLogWriter(file, sizes)) {
+            writer.append(5000, 0.5, null, images(sizes, 5));
+        }
+        try (FrameLogReader reader = new FrameLogReader(file)) {
+            assertEquals(2, reader.getFrames());
+            FrameLogReader.Frame frame = reader.read(0, new FrameLogReader.Frame());
+            assertEquals(0, frame.captureTimeMicros);
+            assertEquals(0, frame.images[0].get(47, 63)[0], 0);
+            reader.read(1, frame);
+            assertEquals(5000, frame.captureTimeMicros);
+            assertEquals(0.5, frame.heading, 1e-12);
+            assertEquals(50, frame.images[0].get(0, 0)[0], 0);
+            assertEquals(50, frame.images[0].get(47, 63)[0], 0);
+        }
+    }
+
+    private static Mat[] images(Size[] sizes, int i) {
+        Mat[] images = new Mat[sizes.length];
+        for (int c = 0; c < sizes.length; ++c) {
+            images[c] = new Mat(sizes[c], CvType.CV_8UC1, new Scalar(10 * i + c));
+        }
+        return images;
+    }
+}
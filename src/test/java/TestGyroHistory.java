@@ -0,0 +1,81 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import vision.GyroHistory;
+
+public class TestGyroHistory {
+    @Test
+    public void testInterpolate() {
+        GyroHistory g = new GyroHistory(16);
+        assertTrue(Double.isNaN(g.getHeading(0)));
+        g.add(1000, 0.0);
+        assertEquals(0.0, g.getHeading(500), 1e-12);
+        g.add(6000, 0.5);
+        g.add(11000, 0.6);
+        assertEquals(0.0, g.getHeading(0), 1e-12);
+        assertEquals(0.25, g.getHeading(3500), 1e-12);
+        assertEquals(0.5, g.getHeading(6000), 1e-12);
+        assertEquals(0.58, g.getHeading(10000), 1e-12);
+        // after the newest
+        assertEquals(0.6, g.getHeading(20000), 1e-12);
+    }
+
+    @Test
+    public void testWrap() {
+        GyroHistory g = new GyroHistory(16);
+        g.add(0, Math.PI - 0.1);
+        g.add(1000, -Math.PI + 0.1);
+        // the short way, through pi
+        assertEquals(Math.PI, g.getHeading(500), 1e-12);
+    }
+
+    /** Only the newer half of the buffer is history. */
+    @Test
+    public void testOverwrite() {
+        GyroHistory g = new GyroHistory(16);
+        for (int i = 0; i < 100; ++i) {
+            g.add(i * 1000, i);
+        }
+        assertEquals(100, g.getCount());
+        assertEquals(92, g.getHeading(0), 1e-12);
+        assertEquals(95.5, g.getHeading(95500), 1e-12);
+    }
+
+    /**
+     * With the heading proportional to time, every read should be exact, no
+     * matter how the writer and reader interleave.
+     */
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        GyroHistory g = new GyroHistory(8);
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<String> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                long n = g.getCount();
+                if (n < 2)
+                    continue;
+                long t = (n - 2) * 10 + 5;
+                double heading = g.getHeading(t);
+                // either between the two samples, or, if the writer has moved
+                // on, clamped to the oldest sample, which is newer.
+                long k = Math.round(heading / 0.01);
+                boolean clamped = Math.abs(heading - k * 0.01) < 1e-9 && k * 10 > t;
+                if (Math.abs(heading - t * 1e-3) > 1e-9 && !clamped)
+                    error.set("time " + t + " heading " + heading);
+            }
+        });
+        reader.start();
+        for (long i = 0; i < 2_000_000; ++i) {
+            g.add(i * 10, i * 10 * 1e-3);
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(null, error.get());
+    }
+}
@@ -0,0 +1,37 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import vision.LatencyHistogram;
+
+public class TestLatencyHistogram {
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; ++i) {
+            h.record(i * 1000);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(500500, h.getMean(), 1e-9);
+        assertEquals(1000000, h.getMax());
+        // within the ~6% bucket width
+        long p50 = h.getValueAtPercentile(50);
+        assertTrue(p50 >= 500000 && p50 < 530000, "p50 " + p50);
+        long p99 = h.getValueAtPercentile(99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000, "p99 " + p99);
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void testSmallValuesExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 32; ++i) {
+            h.record(i);
+        }
+        assertEquals(15, h.getValueAtPercentile(50));
+        assertEquals(31, h.getValueAtPercentile(100));
+    }
+}
@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+
+import vision.ConstantPoseEstimator;
+import vision.MatPool;
+import vision.VisionUtil;
+
+/**
+ * Verify that the image path reuses its pooled buffers; see {@link MatPool} for
+ * the allocations that aren't pooled.
+ */
+public class TestMatPool {
+    public TestMatPool() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * After the first frame, the pool shouldn't grow, and everything should be
+     * returned after every frame. This says nothing about the contours and
+     * corners, which aren't pooled.
+     */
+    @Test
+    public void testSteadyState() {
+        ConstantPoseEstimator e = new ConstantPoseEstimator();
+        MatOfPoint3f targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        Size size = e.getSizes()[0];
+        Mat worldToCamera = VisionUtil.makeWorldToCameraHomogeneous(0.1, 0.5, 0, -3);
+        MatOfPoint2f pts = VisionUtil.imagePoints(e.getIntrinsicMatrices()[0], e.getDistortionMatrices()[0],
+                targetGeometryMeters, worldToCamera);
+        Mat[] images = new Mat[] { VisionUtil.renderImage(230, size, targetGeometryMeters, pts) };
+
+        assertNotNull(e.getPose(0, false, 0, targetGeometryMeters, images));
+        MatPool pool = e.getMatPools(1)[0];
+        long allocations = pool.getAllocations();
+        long acquires = pool.getAcquires();
+
+        for (int frame = 0; frame < 10000; ++frame) {
+            assertNotNull(e.getPose(0, false, 0, targetGeometryMeters, images));
+            assertEquals(0, pool.getOutstanding());
+        }
+        assertEquals(allocations, pool.getAllocations());
+        assertEquals(acquires * 10001, pool.getAcquires());
+    }
+
+    @Test
+    public void testScope() {
+        MatPool pool = new MatPool();
+        try (MatPool.Scope outer = pool.scope()) {
+            Mat a = pool.acquire(10, 10, 0);
+            try (MatPool.Scope inner = pool.scope()) {
+                Mat b = pool.acquire(10, 10, 0);
+                assertEquals(2, pool.getOutstanding());
+                assertEquals(2, pool.getAllocations());
+                b.setTo(new Scalar(1));
+            }
+            assertEquals(1, pool.getOutstanding());
+            Mat c = pool.acquire(10, 10, 0);
+            assertEquals(2, pool.getAllocations());
+            a.setTo(new Scalar(1));
+            c.setTo(new Scalar(1));
+        }
+        assertEquals(0, pool.getOutstanding());
+        pool.clear();
+    }
+}
@@ -0,0 +1,70 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+
+import vision.MonocularPoseEstimator;
+import vision.VisionUtil;
+
+public class TestMonocularPoseEstimator {
+    public TestMonocularPoseEstimator() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    static MatOfPoint2f[] project(MonocularPoseEstimator e, MatOfPoint3f geometry, double pan, double xPos,
+            double zPos) {
+        Mat worldToCamera = VisionUtil.makeWorldToCameraHomogeneous(pan, xPos, 0, zPos);
+        return new MatOfPoint2f[] { VisionUtil.imagePoints(e.getIntrinsicMatrices()[0],
+                e.getDistortionMatrices()[0], geometry, worldToCamera) };
+    }
+
+    /**
+     * Warm solves along a smooth path match cold ones, and a jump (which the
+     * gyro doesn't explain) still comes out right.
+     */
+    @Test
+    public void testWarmStartMatchesCold() {
+        MatOfPoint3f geometry = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        MonocularPoseEstimator cold = new MonocularPoseEstimator(false);
+        MonocularPoseEstimator warm = new MonocularPoseEstimator(false);
+        warm.setWarmStart(true);
+        for (int i = 0; i < 50; ++i) {
+            double pan = 0.3 * Math.sin(i * 0.1);
+            double xPos = -1 + 0.02 * i;
+            double zPos = i == 40 ? -8 : -4 + 0.01 * i;
+            MatOfPoint2f[] imagePoints = project(cold, geometry, pan, xPos, zPos);
+            Mat expected = cold.getPose(pan, geometry, imagePoints);
+            Mat actual = warm.getPose(pan, geometry, imagePoints);
+            for (int row = 0; row < 3; ++row) {
+                for (int col = 0; col < 4; ++col) {
+                    assertEquals(expected.get(row, col)[0], actual.get(row, col)[0], 1e-4,
+                            String.format("frame %d (%d, %d)", i, row, col));
+                }
+            }
+        }
+        assertEquals(1, warm.getColdSolves());
+        assertEquals(49, warm.getWarmSolves() + warm.getColdRestarts());
+        assertTrue(warm.getWarmSolves() > 40);
+    }
+
+    /** setWarmStart() makes the next solve cold, even on this thread. */
+    @Test
+    public void testSetWarmStartResets() {
+        MatOfPoint3f geometry = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        MonocularPoseEstimator warm = new MonocularPoseEstimator(false);
+        warm.setWarmStart(true);
+        MatOfPoint2f[] imagePoints = project(warm, geometry, 0.1, -1, -4);
+        warm.getPose(0.1, geometry, imagePoints);
+        warm.getPose(0.1, geometry, imagePoints);
+        assertEquals(1, warm.getColdSolves());
+        warm.setWarmStart(true);
+        warm.getPose(0.1, geometry, imagePoints);
+        assertEquals(2, warm.getColdSolves());
+        warm.getPose(0.1, geometry, imagePoints);
+        assertEquals(2, warm.getColdSolves());
+    }
+}
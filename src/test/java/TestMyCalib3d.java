@@ -1,11 +1,19 @@
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
 
+import vision.Binocular2dUmeyamaPoseEstimator;
 import vision.MyCalib3d;
+import vision.VisionUtil;
 
 /**
  * Verify {@MyCalib3d#estimateAffine3D()} which is the Umeyama method.
@@ -76,4 +84,172 @@ public class TestMyCalib3d {
         assertEquals(scale, 1.0, 1e-6);
     }
 
+    /**
+     * The primitive solver should agree with the OpenCV one, for random rigid
+     * transforms of random (and coplanar, like a target) point sets.
+     */
+    @Test
+    public void testPrimitiveMatchesOpenCV() {
+        Random rand = new Random(42);
+        for (int trial = 0; trial < 100; ++trial) {
+            int count = 4 + rand.nextInt(37);
+            boolean coplanar = trial % 2 == 0;
+            Mat rvec = Mat.zeros(3, 1, CvType.CV_64F);
+            rvec.put(0, 0, rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian());
+            Mat R = new Mat();
+            Calib3d.Rodrigues(rvec, R);
+            double[] r = new double[9];
+            R.get(0, 0, r);
+            double[] t = { rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian() };
+
+            // points in rows for the Mat version, packed for the primitive one
+            double[] from = new double[3 * count];
+            double[] to = new double[3 * count];
+            for (int i = 0; i < count; ++i) {
+                from[3 * i] = rand.nextGaussian();
+                from[3 * i + 1] = rand.nextGaussian();
+                from[3 * i + 2] = coplanar ? 0 : rand.nextGaussian();
+                for (int j = 0; j < 3; ++j) {
+                    to[3 * i + j] = t[j] + 0.01 * rand.nextGaussian();
+                    for (int k = 0; k < 3; ++k) {
+                        to[3 * i + j] += r[3 * j + k] * from[3 * i + k];
+                    }
+                }
+            }
+            Mat fromMat = new Mat(count, 3, CvType.CV_64F);
+            fromMat.put(0, 0, from);
+            Mat toMat = new Mat(count, 3, CvType.CV_64F);
+            toMat.put(0, 0, to);
+
+            Mat expected = MyCalib3d.estimateAffine3D(fromMat, toMat, null, true);
+            double[] expectedData = new double[12];
+            expected.get(0, 0, expectedData);
+
+            double[] actual = new double[12];
+            double scale = MyCalib3d.estimateAffine3D(from, to, count, false, true, actual);
+            assertEquals(1.0, scale, 1e-12);
+            for (int i = 0; i < 12; ++i) {
+                assertEquals(expectedData[i], actual[i], 1e-9);
+            }
+        }
+    }
+
+    /**
+     * The scale is returned, not dropped.
+     */
+    @Test
+    public void testPrimitiveScale() {
+        double[] from = {
+                0.80549149, 0.8225781, 0.79949521,
+                0.28906756, 0.57158557, 0.9864789,
+                0.58266182, 0.65474983, 0.25078834,
+                0.1, 0.2, 0.3 };
+        double[] to = new double[12];
+        for (int i = 0; i < 12; ++i) {
+            to[i] = 2.5 * from[i] + (i % 3);
+        }
+        double[] transform = new double[12];
+        double scale = MyCalib3d.estimateAffine3D(from, to, 4, true, true, transform);
+        assertEquals(2.5, scale, 1e-9);
+        assertEquals(1.0, transform[0], 1e-9);
+        assertEquals(0.0, transform[3], 1e-9);
+        assertEquals(1.0, transform[7], 1e-9);
+        assertEquals(2.0, transform[11], 1e-9);
+    }
+
+    /**
+     * 2d points are just coplanar 3d points, so the closed-form 2d solver should
+     * match the 3d one (without scale) with z = 0.
+     */
+    @Test
+    public void testPrimitive2dMatches3d() {
+        Random rand = new Random(42);
+        for (int trial = 0; trial < 100; ++trial) {
+            int count = 3 + rand.nextInt(38);
+            double theta = rand.nextGaussian();
+            double c = Math.cos(theta);
+            double s = Math.sin(theta);
+            double[] from2 = new double[2 * count];
+            double[] to2 = new double[2 * count];
+            double[] from3 = new double[3 * count];
+            double[] to3 = new double[3 * count];
+            for (int i = 0; i < count; ++i) {
+                double x = rand.nextGaussian();
+                double y = rand.nextGaussian();
+                from2[2 * i] = x;
+                from2[2 * i + 1] = y;
+                to2[2 * i] = 1.0 + c * x - s * y + 0.01 * rand.nextGaussian();
+                to2[2 * i + 1] = 2.0 + s * x + c * y + 0.01 * rand.nextGaussian();
+                from3[3 * i] = from2[2 * i];
+                from3[3 * i + 1] = from2[2 * i + 1];
+                to3[3 * i] = to2[2 * i];
+                to3[3 * i + 1] = to2[2 * i + 1];
+            }
+            double[] transform2 = new double[6];
+            assertEquals(count, MyCalib3d.estimateRigid2D(from2, to2, null, count, Double.NaN, transform2));
+            double[] transform3 = new double[12];
+            MyCalib3d.estimateAffine3D(from3, to3, count, false, true, transform3);
+            assertEquals(transform3[0], transform2[0], 1e-9);
+            assertEquals(transform3[1], transform2[1], 1e-9);
+            assertEquals(transform3[3], transform2[2], 1e-9);
+            assertEquals(transform3[4], transform2[3], 1e-9);
+            assertEquals(transform3[5], transform2[4], 1e-9);
+            assertEquals(transform3[7], transform2[5], 1e-9);
+        }
+    }
+
+    /**
+     * The Mat-free solve in Binocular2dUmeyamaPoseEstimator should match
+     * triangulating with Mats and fitting with estimateRigid2D, with and
+     * without the IMU.
+     */
+    @Test
+    public void testBinocular2dUmeyamaMatchesMatPath() {
+        Random rand = new Random(42);
+        MatOfPoint3f targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        int count = (int) targetGeometryMeters.total();
+        for (boolean useIMU : new boolean[] { false, true }) {
+            Binocular2dUmeyamaPoseEstimator e = new Binocular2dUmeyamaPoseEstimator(useIMU);
+            Mat kMat = e.getIntrinsicMatrices()[0];
+            double f = kMat.get(0, 0)[0];
+            double cx = kMat.get(0, 2)[0];
+            double[] xOffsets = e.getXOffsets();
+            double b = xOffsets[0] - xOffsets[1];
+            for (int trial = 0; trial < 20; ++trial) {
+                double pan = 0.3 * rand.nextGaussian();
+                double xPos = rand.nextGaussian();
+                double zPos = -2 - 4 * rand.nextDouble();
+                // a slightly wrong gyro, so the IMU path can't just agree by accident
+                double heading = pan + 0.01 * rand.nextGaussian();
+                MatOfPoint2f[] imagePoints = new MatOfPoint2f[2];
+                for (int cameraIdx = 0; cameraIdx < 2; ++cameraIdx) {
+                    Mat worldToCamera = VisionUtil.translateX(
+                            VisionUtil.makeWorldToCameraHomogeneous(pan, xPos, 0, zPos), xOffsets[cameraIdx]);
+                    imagePoints[cameraIdx] = VisionUtil.imagePoints(e.getIntrinsicMatrices()[cameraIdx],
+                            e.getDistortionMatrices()[cameraIdx], targetGeometryMeters, worldToCamera);
+                }
+
+                Mat bMat = VisionUtil.makeBMat2d(imagePoints[0], imagePoints[1], b, f, cx);
+                Mat XMat = VisionUtil.makeXMat2d(targetGeometryMeters);
+                double[] from = new double[2 * count];
+                double[] to = new double[2 * count];
+                for (int col = 0; col < count; ++col) {
+                    from[2 * col] = XMat.get(0, col)[0];
+                    from[2 * col + 1] = XMat.get(1, col)[0];
+                    to[2 * col] = bMat.get(0, col)[0];
+                    to[2 * col + 1] = bMat.get(1, col)[0];
+                }
+                double[] rt = new double[6];
+                MyCalib3d.estimateRigid2D(from, to, null, count, useIMU ? heading : Double.NaN, rt);
+
+                Mat transform = e.getPose(heading, targetGeometryMeters, imagePoints);
+                assertEquals(rt[0], transform.get(0, 0)[0], 1e-9);
+                assertEquals(rt[1], transform.get(0, 2)[0], 1e-9);
+                assertEquals(rt[2], transform.get(0, 3)[0], 1e-9);
+                assertEquals(rt[3], transform.get(2, 0)[0], 1e-9);
+                assertEquals(rt[4], transform.get(2, 2)[0], 1e-9);
+                assertEquals(rt[5], transform.get(2, 3)[0], 1e-9);
+            }
+        }
+    }
 }
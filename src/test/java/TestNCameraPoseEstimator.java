@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+
+import vision.NCameraPoseEstimator;
+import vision.PoseEstimator;
+import vision.VisionUtil;
+
+public class TestNCameraPoseEstimator {
+    public TestNCameraPoseEstimator() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * Ideal points for each camera that sees the target, null for the others.
+     */
+    static MatOfPoint2f[] project(PoseEstimator e, MatOfPoint3f geometry, double pan, double xPos,
+            double zPos) {
+        Mat worldToRobot = VisionUtil.makeWorldToCameraHomogeneous(pan, xPos, 0, zPos);
+        Mat[] extrinsics = e.getExtrinsics();
+        MatOfPoint2f[] result = new MatOfPoint2f[extrinsics.length];
+        for (int i = 0; i < extrinsics.length; ++i) {
+            Mat worldToCamera = VisionUtil.worldToCamera(worldToRobot, extrinsics[i]);
+            if (!VisionUtil.inFront(geometry, worldToCamera))
+                continue;
+            result[i] = VisionUtil.imagePoints(e.getIntrinsicMatrices()[i], e.getDistortionMatrices()[i],
+                    geometry, worldToCamera);
+        }
+        return result;
+    }
+
+    /**
+     * The pose comes back the same whichever camera (or cameras) see the target.
+     */
+    void check(NCameraPoseEstimator e, double pan, double xPos, double zPos, double heading) {
+        MatOfPoint3f geometry = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        Mat worldToRobot = VisionUtil.makeWorldToCameraHomogeneous(pan, xPos, 0, zPos);
+        Mat transform = e.getPose(heading, geometry, project(e, geometry, pan, xPos, zPos));
+        assertNotNull(transform);
+        double estimatedPan = Math.atan2(transform.get(2, 0)[0], transform.get(0, 0)[0]);
+        assertEquals(0, Math.IEEEremainder(pan - estimatedPan, 2 * Math.PI), 1e-4);
+        assertEquals(worldToRobot.get(0, 3)[0], transform.get(0, 3)[0], 1e-4);
+        assertEquals(worldToRobot.get(2, 3)[0], transform.get(2, 3)[0], 1e-4);
+    }
+
+    @Test
+    public void testBinocular() {
+        check(NCameraPoseEstimator.binocular(0.8, false), 0.2, -1, -4, 0);
+        check(NCameraPoseEstimator.binocular(0.8, true), 0.2, -1, -4, 0.2);
+    }
+
+    @Test
+    public void testQuad() {
+        // facing the target, so the front camera sees it
+        check(NCameraPoseEstimator.quad(0.3, false), 0.1, 0.5, -3, 0);
+        // facing away, so the back camera sees it
+        check(NCameraPoseEstimator.quad(0.3, false), Math.PI + 0.1, 0.5, -3, 0);
+        // sideways
+        check(NCameraPoseEstimator.quad(0.3, true), Math.PI / 2, 0.5, -3, Math.PI / 2);
+    }
+
+    @Test
+    public void testNoCameras() {
+        NCameraPoseEstimator e = NCameraPoseEstimator.quad(0.3, false);
+        assertNull(e.getPose(0, VisionUtil.makeTargetGeometry3f(0.5, 0.5), new MatOfPoint2f[4]));
+    }
+}
@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Scalar;
+
+import vision.NoiseBank;
+import vision.VisionUtil;
+
+/**
+ * The noise bank should look like the OpenCV noise, and be reproducible.
+ */
+public class TestNoiseBank {
+    public TestNoiseBank() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Test
+    public void testMatchesOpenCV() {
+        NoiseBank bank = NoiseBank.getDefault();
+        for (int brightness : new int[] { 0, 100, 230 }) {
+            Mat expected = new Mat(400, 400, CvType.CV_8UC1, new Scalar(brightness));
+            VisionUtil.addSaltAndPepper(expected);
+            VisionUtil.addGaussianNoise(expected);
+            Mat actual = new Mat(400, 400, CvType.CV_8UC1, new Scalar(brightness));
+            bank.apply(actual, new Random(1));
+
+            MatOfDouble expectedMean = new MatOfDouble();
+            MatOfDouble expectedStdev = new MatOfDouble();
+            Core.meanStdDev(expected, expectedMean, expectedStdev);
+            MatOfDouble actualMean = new MatOfDouble();
+            MatOfDouble actualStdev = new MatOfDouble();
+            Core.meanStdDev(actual, actualMean, actualStdev);
+            assertEquals(expectedMean.get(0, 0)[0], actualMean.get(0, 0)[0], 1.0);
+            assertEquals(expectedStdev.get(0, 0)[0], actualStdev.get(0, 0)[0], 1.0);
+
+            // saturated pixels, which is most of what the detector sees
+            double expectedWhite = Core.countNonZero(threshold(expected, 254));
+            double actualWhite = Core.countNonZero(threshold(actual, 254));
+            assertEquals(expectedWhite / expected.total(), actualWhite / actual.total(), 0.01);
+        }
+    }
+
+    @Test
+    public void testReproducible() {
+        NoiseBank bank = NoiseBank.getDefault();
+        Mat a = new Mat(100, 100, CvType.CV_8UC1, new Scalar(50));
+        Mat b = new Mat(100, 100, CvType.CV_8UC1, new Scalar(50));
+        bank.apply(a, new Random(42));
+        bank.apply(b, new Random(42));
+        Mat diff = new Mat();
+        Core.absdiff(a, b, diff);
+        assertEquals(0, Core.countNonZero(diff));
+    }
+
+    private static Mat threshold(Mat m, int t) {
+        Mat result = new Mat();
+        Core.compare(m, new Scalar(t), result, Core.CMP_GT);
+        return result;
+    }
+}
@@ -0,0 +1,107 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+
+import vision.BasePoseEstimator;
+import vision.Binocular2dUmeyamaPoseEstimator;
+import vision.ConstantPoseEstimator;
+import vision.MonocularPoseEstimator;
+import vision.VisionUtil;
+
+public class TestPoseCovariance {
+    public TestPoseCovariance() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    static MatOfPoint2f[] project(BasePoseEstimator e, MatOfPoint3f geometry, double pan, double xPos,
+            double zPos) {
+        Mat worldToRobot = VisionUtil.makeWorldToCameraHomogeneous(pan, xPos, 0, zPos);
+        Mat[] extrinsics = e.getExtrinsics();
+        MatOfPoint2f[] points = new MatOfPoint2f[extrinsics.length];
+        for (int i = 0; i < extrinsics.length; ++i) {
+            points[i] = VisionUtil.imagePoints(e.getIntrinsicMatrices()[i], e.getDistortionMatrices()[i],
+                    geometry, VisionUtil.worldToCamera(worldToRobot, extrinsics[i]));
+        }
+        return points;
+    }
+
+    /**
+     * Solve many noisy copies of the same points, and compare the scatter of
+     * the poses with the covariance the estimator claims.
+     *
+     * @return {predicted variance / actual variance} for x, z, heading
+     */
+    static double[] ratios(BasePoseEstimator e, double noisePixels, double gyroNoise) {
+        MatOfPoint3f geometry = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        double pan = 0.1;
+        double xPos = 0.5;
+        double zPos = -3;
+        e.setPixelStdDev(noisePixels);
+        e.setHeadingStdDev(gyroNoise);
+        MatOfPoint2f[] ideal = project(e, geometry, pan, xPos, zPos);
+        Random rand = new Random(42);
+        int trials = 400;
+        double[] sum = new double[3];
+        double[] pose = new double[3];
+        double[] predicted = null;
+        for (int i = 0; i < trials; ++i) {
+            MatOfPoint2f[] noisy = new MatOfPoint2f[ideal.length];
+            for (int cameraIdx = 0; cameraIdx < ideal.length; ++cameraIdx) {
+                noisy[cameraIdx] = VisionUtil.perturbPoints(ideal[cameraIdx], 1, noisePixels, rand);
+            }
+            Mat transform = e.getPose(pan + gyroNoise * rand.nextGaussian(), geometry, noisy);
+            assertNotNull(transform);
+            if (predicted == null)
+                predicted = e.getCovariance(transform, geometry);
+            VisionUtil.transformToPose(transform, pose);
+            double[] err = { pose[0] - xPos, pose[1] - zPos, pose[2] - pan };
+            for (int k = 0; k < 3; ++k)
+                sum[k] += err[k] * err[k];
+        }
+        assertNotNull(predicted);
+        return new double[] { predicted[0] / (sum[0] / trials), predicted[4] / (sum[1] / trials),
+                predicted[8] / (sum[2] / trials) };
+    }
+
+    @Test
+    public void testMonocular() {
+        double[] r = ratios(new MonocularPoseEstimator(false), 0.5, 0.0035);
+        for (double ratio : r)
+            assertEquals(1, ratio, 0.35, "ratio " + ratio);
+    }
+
+    /** The heading is the gyro's, and its error shows up in x too. */
+    @Test
+    public void testMonocularIMU() {
+        double[] r = ratios(new MonocularPoseEstimator(true), 0.5, 0.01);
+        for (double ratio : r)
+            assertEquals(1, ratio, 0.35, "ratio " + ratio);
+    }
+
+    /**
+     * The 2d solver ignores v, so it does worse than the covariance says, but
+     * not much.
+     */
+    @Test
+    public void testBinocularIMU() {
+        double[] r = ratios(new Binocular2dUmeyamaPoseEstimator(true), 0.5, 0.0035);
+        for (double ratio : r)
+            assertTrue(ratio > 0.3 && ratio < 1.35, "ratio " + ratio);
+    }
+
+    @Test
+    public void testConstant() {
+        ConstantPoseEstimator e = new ConstantPoseEstimator();
+        MatOfPoint3f geometry = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        assertNull(e.getCovariance(e.getPose(0, geometry, null), geometry));
+    }
+}
@@ -0,0 +1,134 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import vision.PoseFusion;
+
+public class TestPoseFusion {
+    /** Odometry motion is applied in the fused frame, not added as-is. */
+    @Test
+    public void testOdometry() {
+        PoseFusion f = new PoseFusion(16, 0.05, 0.02, 0.05, 0.02);
+        // odometry thinks it's at the origin facing +z; really it's at (1, -4)
+        // facing +x.
+        f.reset(0, new double[] { 0, 0, 0 }, new double[] { 1, -4, Math.PI / 2 }, 0.1);
+        // one meter forward
+        f.addOdometry(1000, new double[] { 0, 1, 0 });
+        double[] pose = new double[3];
+        f.getPose(pose);
+        assertEquals(2, pose[0], 1e-9);
+        assertEquals(-4, pose[1], 1e-9);
+        assertEquals(Math.PI / 2, pose[2], 1e-9);
+        double[] stdDev = new double[3];
+        f.getStdDev(stdDev);
+        assertTrue(stdDev[0] > 0.1);
+    }
+
+    /**
+     * A delayed vision pose moves the current pose by the correction at the
+     * capture time.
+     */
+    @Test
+    public void testDelayedCorrection() {
+        PoseFusion f = new PoseFusion(16, 0.05, 0.02, 0.05, 0.02);
+        f.reset(0, new double[] { 0, 0, 0 }, new double[] { 0, 0, 0 }, 1.0);
+        for (int i = 1; i <= 10; ++i) {
+            f.addOdometry(i * 1000, new double[] { 0, 0.1 * i, 0 });
+        }
+        // at t = 5 ms the odometry said z = 0.5, vision says 0.7; the variance
+        // there is much bigger than the vision's, so the correction is nearly
+        // all of it, and it carries forward.
+        assertTrue(f.addVision(5000, new double[] { 0, 0.7, 0 }));
+        double[] pose = new double[3];
+        f.getPose(pose);
+        assertEquals(1.2, pose[1], 0.01);
+        assertEquals(0, pose[0], 1e-9);
+    }
+
+    @Test
+    public void testTooOld() {
+        PoseFusion f = new PoseFusion(4, 0.05, 0.02, 0.05, 0.02);
+        f.reset(0, new double[] { 0, 0, 0 }, new double[] { 0, 0, 0 }, 1.0);
+        for (int i = 1; i <= 10; ++i) {
+            f.addOdometry(i * 1000, new double[] { 0, 0.1 * i, 0 });
+        }
+        assertFalse(f.addVision(2000, new double[] { 0, 0.7, 0 }));
+    }
+
+    /**
+     * The PoseFusionHarness scenario without the camera: with 100 ms of
+     * latency, fusing at the capture time should be much better than fusing
+     * on arrival.
+     */
+    @Test
+    public void testLatencyCompensation() {
+        long latency = 100000;
+        Random rand = new Random(42);
+        PoseFusion onArrival = new PoseFusion(128, 0.05, 0.02, 0.05, 0.02);
+        PoseFusion atCapture = new PoseFusion(128, 0.05, 0.02, 0.05, 0.02);
+        double[] truth = new double[3];
+        double[] prev = new double[3];
+        double[] odometry = new double[3];
+        double[] pose = new double[3];
+        truth(0, truth);
+        System.arraycopy(truth, 0, odometry, 0, 3);
+        onArrival.reset(0, odometry, truth, 0.1);
+        atCapture.reset(0, odometry, truth, 0.1);
+        ArrayDeque<double[]> inFlight = new ArrayDeque<double[]>();
+        double onArrivalError = 0;
+        double atCaptureError = 0;
+        int n = 0;
+        for (long t = 5000; t <= 10_000_000; t += 5000) {
+            System.arraycopy(truth, 0, prev, 0, 3);
+            truth(t, truth);
+            // odometry reads 3% long
+            double dx = truth[0] - prev[0];
+            double dz = truth[1] - prev[1];
+            double h = prev[2];
+            double forward = 1.03 * (dx * Math.sin(h) + dz * Math.cos(h));
+            double right = 1.03 * (dx * Math.cos(h) - dz * Math.sin(h));
+            double oh = odometry[2];
+            odometry[0] += right * Math.cos(oh) + forward * Math.sin(oh);
+            odometry[1] += -right * Math.sin(oh) + forward * Math.cos(oh);
+            odometry[2] = truth[2];
+            onArrival.addOdometry(t, odometry);
+            atCapture.addOdometry(t, odometry);
+            if (t % 20000 == 0) {
+                inFlight.add(new double[] { t, truth[0] + 0.05 * rand.nextGaussian(),
+                        truth[1] + 0.05 * rand.nextGaussian(), truth[2] });
+            }
+            while (!inFlight.isEmpty() && inFlight.peek()[0] + latency <= t) {
+                double[] m = inFlight.poll();
+                double[] vision = { m[1], m[2], m[3] };
+                onArrival.addVision(t, vision);
+                assertTrue(atCapture.addVision((long) m[0], vision));
+            }
+            if (t > 1_000_000) {
+                onArrival.getPose(pose);
+                onArrivalError += Math.hypot(pose[0] - truth[0], pose[1] - truth[1]);
+                atCapture.getPose(pose);
+                atCaptureError += Math.hypot(pose[0] - truth[0], pose[1] - truth[1]);
+                ++n;
+            }
+        }
+        onArrivalError /= n;
+        atCaptureError /= n;
+        assertTrue(atCaptureError < 0.03, "at capture " + atCaptureError);
+        assertTrue(atCaptureError < 0.6 * onArrivalError,
+                "at capture " + atCaptureError + " on arrival " + onArrivalError);
+    }
+
+    static void truth(long timeMicros, double[] pose) {
+        double t = timeMicros / 1e6;
+        double x = 1.5 * Math.sin(0.4 * t);
+        double z = -4 + 1.5 * Math.sin(0.25 * t);
+        pose[0] = x;
+        pose[1] = z;
+        pose[2] = Math.atan2(-x, -z) + 0.25 * Math.sin(1.3 * t);
+    }
+}
@@ -0,0 +1,151 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+
+import vision.Binocular2dUmeyamaPoseEstimator;
+import vision.RansacRigid2d;
+import vision.VisionUtil;
+
+public class TestRansacRigid2d {
+    static final double B = 0.8;
+    static final double F = 914;
+    static final double CX = 640;
+
+    public TestRansacRigid2d() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * Project target points, (x, y, z) triples, into a stereo pair, with the
+     * rotation theta and translation (tx, tz) from target to robot.
+     */
+    static void project(float[] target, int count, double theta, double tx, double tz, double noise,
+            Random rand, float[] left, float[] right) {
+        double c = Math.cos(theta);
+        double s = Math.sin(theta);
+        for (int i = 0; i < count; ++i) {
+            double x = c * target[3 * i] - s * target[3 * i + 2] + tx;
+            double z = s * target[3 * i] + c * target[3 * i + 2] + tz;
+            double v = 400 + F * target[3 * i + 1] / z;
+            left[2 * i] = (float) (CX + F * (x + B / 2) / z + noise * rand.nextGaussian());
+            left[2 * i + 1] = (float) v;
+            right[2 * i] = (float) (CX + F * (x - B / 2) / z + noise * rand.nextGaussian());
+            right[2 * i + 1] = (float) v;
+        }
+    }
+
+    /** the target corners, repeated */
+    static float[] target(int multiplier) {
+        float[] corners = { -0.25f, -0.25f, 0, -0.25f, 0.25f, 0, 0.25f, 0.25f, 0, 0.25f, -0.25f, 0 };
+        float[] target = new float[corners.length * multiplier];
+        for (int i = 0; i < multiplier; ++i)
+            System.arraycopy(corners, 0, target, i * corners.length, corners.length);
+        return target;
+    }
+
+    @Test
+    public void testClean() {
+        float[] target = target(1);
+        float[] left = new float[8];
+        float[] right = new float[8];
+        project(target, 4, 0.2, 0.5, 4, 0, new Random(42), left, right);
+        boolean[] inliers = new boolean[4];
+        for (boolean useIMU : new boolean[] { false, true }) {
+            int n = RansacRigid2d.findInliers(left, right, target, 4, B, F, CX, useIMU, 0.2,
+                    RansacRigid2d.THRESHOLD_PIXELS, inliers);
+            assertEquals(4, n);
+        }
+    }
+
+    /** One corner off by 30 pixels in one camera is the only outlier. */
+    @Test
+    public void testOneBadCorner() {
+        for (int bad = 0; bad < 4; ++bad) {
+            float[] target = target(1);
+            float[] left = new float[8];
+            float[] right = new float[8];
+            project(target, 4, -0.3, -1, 5, 0.5, new Random(bad), left, right);
+            left[2 * bad] += 30;
+            boolean[] inliers = new boolean[4];
+            for (boolean useIMU : new boolean[] { false, true }) {
+                int n = RansacRigid2d.findInliers(left, right, target, 4, B, F, CX, useIMU, -0.3,
+                        RansacRigid2d.THRESHOLD_PIXELS, inliers);
+                assertEquals(3, n, "bad " + bad + " imu " + useIMU);
+                for (int i = 0; i < 4; ++i)
+                    assertEquals(i != bad, inliers[i], "bad " + bad + " point " + i);
+            }
+        }
+    }
+
+    /** Multiplied points, more than can be tried exhaustively, with outliers. */
+    @Test
+    public void testMultiplied() {
+        int multiplier = 8;
+        int count = 4 * multiplier;
+        float[] target = target(multiplier);
+        float[] left = new float[2 * count];
+        float[] right = new float[2 * count];
+        project(target, count, 0.1, 0.3, 8, 1, new Random(7), left, right);
+        // a quarter of them wild
+        Random rand = new Random(8);
+        boolean[] bad = new boolean[count];
+        for (int i = 0; i < count; i += 4) {
+            bad[i] = true;
+            right[2 * i] += 20 + 40 * rand.nextDouble();
+        }
+        boolean[] inliers = new boolean[count];
+        int n = RansacRigid2d.findInliers(left, right, target, count, B, F, CX, false, 0,
+                RansacRigid2d.THRESHOLD_PIXELS, inliers);
+        assertEquals(count - multiplier, n);
+        for (int i = 0; i < count; ++i)
+            assertEquals(!bad[i], inliers[i], "point " + i);
+    }
+
+    /** The robust estimator ignores the bad corner; the plain one doesn't. */
+    @Test
+    public void testEstimator() {
+        MatOfPoint3f geometry = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        Binocular2dUmeyamaPoseEstimator e = new Binocular2dUmeyamaPoseEstimator(true);
+        double pan = 0.1;
+        double xPos = 0.5;
+        double zPos = -4;
+        Mat worldToRobot = VisionUtil.makeWorldToCameraHomogeneous(pan, xPos, 0, zPos);
+        Mat[] extrinsics = e.getExtrinsics();
+        MatOfPoint2f[] imagePoints = new MatOfPoint2f[2];
+        for (int i = 0; i < 2; ++i) {
+            imagePoints[i] = VisionUtil.imagePoints(e.getIntrinsicMatrices()[i], e.getDistortionMatrices()[i],
+                    geometry, VisionUtil.worldToCamera(worldToRobot, extrinsics[i]));
+        }
+        Point[] left = imagePoints[0].toArray();
+        left[1].x += 30;
+        imagePoints[0] = new MatOfPoint2f(left);
+
+        double[] pose = new double[3];
+        Mat plain = e.getPose(pan, geometry, imagePoints);
+        VisionUtil.transformToPose(plain, pose);
+        double plainError = Math.hypot(pose[0] - xPos, pose[1] - zPos);
+
+        e.setRobust(true);
+        Mat robust = e.getPose(pan, geometry, imagePoints);
+        assertNotNull(robust);
+        VisionUtil.transformToPose(robust, pose);
+        double robustError = Math.hypot(pose[0] - xPos, pose[1] - zPos);
+        assertTrue(robustError < 0.01, "robust " + robustError);
+        assertTrue(plainError > 0.1, "plain " + plainError);
+
+        // two bad corners out of four is no consensus
+        left[2].x -= 30;
+        imagePoints[0] = new MatOfPoint2f(left);
+        assertNull(e.getPose(pan, geometry, imagePoints));
+    }
+}
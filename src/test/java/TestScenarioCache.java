@@ -0,0 +1,75 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Scalar;
+
+import vision.ScenarioCache;
+import vision.VisionUtil;
+
+public class TestScenarioCache {
+    public TestScenarioCache() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    ScenarioCache makeCache() throws IOException {
+        File directory = Files.createTempDirectory("scenarios").toFile();
+        directory.deleteOnExit();
+        return new ScenarioCache(directory);
+    }
+
+    ScenarioCache.Key makeKey(double pan) {
+        return new ScenarioCache.Key().add(42).add(pan).add(true)
+                .add(VisionUtil.makeTargetGeometry3f(0.5, 0.5))
+                .add(new MatOfDouble(900, 0, 640, 0, 900, 400, 0, 0, 1));
+    }
+
+    /** Images and gyro come back the same, from another key object. */
+    @Test
+    public void testRoundTrip() throws IOException {
+        ScenarioCache cache = makeCache();
+        Mat[] images = new Mat[2];
+        for (int i = 0; i < images.length; ++i) {
+            images[i] = new Mat(80, 120 + i, CvType.CV_8UC1);
+            Core.randu(images[i], 0, 256);
+        }
+        cache.put(makeKey(0.1), images, 0.1234);
+
+        ScenarioCache.Scenario s = cache.get(makeKey(0.1));
+        assertNotNull(s);
+        assertEquals(0.1234, s.gyro, 0);
+        assertEquals(2, s.images.length);
+        for (int i = 0; i < images.length; ++i) {
+            assertEquals(images[i].rows(), s.images[i].rows());
+            assertEquals(images[i].cols(), s.images[i].cols());
+            Mat diff = new Mat();
+            Core.absdiff(images[i], s.images[i], diff);
+            assertEquals(0, Core.countNonZero(diff));
+        }
+        assertEquals(1, cache.getHits());
+    }
+
+    /** Any change to the inputs is a different entry. */
+    @Test
+    public void testChangedKeyMisses() throws IOException {
+        ScenarioCache cache = makeCache();
+        Mat[] images = { new Mat(10, 10, CvType.CV_8UC1, new Scalar(7)) };
+        cache.put(makeKey(0.1), images, 0);
+        assertNull(cache.get(makeKey(0.2)));
+        assertNull(cache.get(makeKey(0.1).add(1)));
+        assertNull(cache.get(new ScenarioCache.Key().add(42).add(0.1).add(true)
+                .add(VisionUtil.makeTargetGeometry3f(0.6, 0.5))
+                .add(new MatOfDouble(900, 0, 640, 0, 900, 400, 0, 0, 1))));
+        assertNotNull(cache.get(makeKey(0.1)));
+        assertEquals(3, cache.getMisses());
+    }
+}
@@ -0,0 +1,138 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Core;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+import vision.TargetTracker;
+
+public class TestTargetTracker {
+    public TestTargetTracker() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    final Size frameSize = new Size(1280, 800);
+    final Rect fullFrame = new Rect(0, 0, 1280, 800);
+
+    /** corners of an axis-aligned rectangle, upper-left first, clockwise */
+    static Point[] rectangle(double x0, double y0, double x1, double y1) {
+        return new Point[] { new Point(x0, y0), new Point(x1, y0), new Point(x1, y1), new Point(x0, y1) };
+    }
+
+    /** the corners as seen from inside the region */
+    static MatOfPoint2f inRegion(Point[] corners, Rect region) {
+        Point[] result = new Point[corners.length];
+        for (int i = 0; i < corners.length; ++i) {
+            result[i] = new Point(corners[i].x - region.x, corners[i].y - region.y);
+        }
+        return new MatOfPoint2f(result);
+    }
+
+    /** Start from the whole frame, then a quantized, padded box around the target. */
+    @Test
+    public void testRegion() {
+        TargetTracker tracker = new TargetTracker();
+        assertEquals(fullFrame, tracker.getRegion(frameSize));
+        Point[] target = rectangle(600, 300, 700, 400);
+        MatOfPoint2f corners = tracker.update(new MatOfPoint2f(target), fullFrame, frameSize);
+        assertNotNull(corners);
+        assertArrayEquals(target, corners.toArray());
+
+        // 100 pixels wide, padded by 50 on each side, rounded up to 256.
+        Rect region = tracker.getRegion(frameSize);
+        assertEquals(new Rect(522, 222, 256, 256), region);
+        assertFalse(TargetTracker.isFullFrame(region, frameSize));
+
+        // found again, in region coordinates; it comes back in frame coordinates.
+        corners = tracker.update(inRegion(target, region), region, frameSize);
+        assertNotNull(corners);
+        assertArrayEquals(target, corners.toArray());
+    }
+
+    /** Near the corner of the frame, the region moves inside it rather than shrinking. */
+    @Test
+    public void testRegionShiftedIntoFrame() {
+        TargetTracker tracker = new TargetTracker();
+        tracker.getRegion(frameSize);
+        Point[] target = rectangle(1180, 700, 1270, 790);
+        tracker.update(new MatOfPoint2f(target), fullFrame, frameSize);
+
+        // 90 pixels, padded by 45 on each side, rounded up to 192.
+        Rect region = tracker.getRegion(frameSize);
+        assertEquals(new Rect(1088, 608, 192, 192), region);
+
+        // close to the right and bottom edges, but those are the frame's edges.
+        MatOfPoint2f corners = tracker.update(inRegion(target, region), region, frameSize);
+        assertNotNull(corners);
+        assertArrayEquals(target, corners.toArray());
+    }
+
+    /** A target at the edge of the region might be cut off, so look at the whole frame. */
+    @Test
+    public void testTouchesRegionEdge() {
+        TargetTracker tracker = new TargetTracker();
+        tracker.getRegion(frameSize);
+        tracker.update(new MatOfPoint2f(rectangle(600, 300, 700, 400)), fullFrame, frameSize);
+        Rect region = tracker.getRegion(frameSize);
+
+        // the target moved left, up to the region's left edge.
+        Point[] moved = rectangle(region.x + 1, 300, region.x + 101, 400);
+        assertNull(tracker.update(inRegion(moved, region), region, frameSize));
+        assertEquals(fullFrame, tracker.getRegion(frameSize));
+
+        // in the whole frame, it's fine.
+        MatOfPoint2f corners = tracker.update(new MatOfPoint2f(moved), fullFrame, frameSize);
+        assertNotNull(corners);
+        assertArrayEquals(moved, corners.toArray());
+        assertFalse(TargetTracker.isFullFrame(tracker.getRegion(frameSize), frameSize));
+    }
+
+    /** Nothing in the region, so look at the whole frame next. */
+    @Test
+    public void testLost() {
+        TargetTracker tracker = new TargetTracker();
+        tracker.getRegion(frameSize);
+        tracker.update(new MatOfPoint2f(rectangle(600, 300, 700, 400)), fullFrame, frameSize);
+        Rect region = tracker.getRegion(frameSize);
+        assertNull(tracker.update(null, region, frameSize));
+        assertEquals(fullFrame, tracker.getRegion(frameSize));
+    }
+
+    /**
+     * Only a region-only frame is a hit; the pixels include the full-frame
+     * fallback after a miss.
+     */
+    @Test
+    public void testCounters() {
+        TargetTracker tracker = new TargetTracker();
+        assertEquals(0, tracker.getHitRate(), 0);
+        assertEquals(0, tracker.getPixelsPerFrame(), 0);
+        Point[] target = rectangle(600, 300, 700, 400);
+
+        // first frame: whole frame, not a hit.
+        tracker.getRegion(frameSize);
+        tracker.update(new MatOfPoint2f(target), fullFrame, frameSize);
+
+        // second frame: the region is enough.
+        Rect region = tracker.getRegion(frameSize);
+        tracker.update(inRegion(target, region), region, frameSize);
+
+        // third frame: missed in the region, found in the whole frame.
+        region = tracker.getRegion(frameSize);
+        assertNull(tracker.update(null, region, frameSize));
+        assertNotNull(tracker.update(new MatOfPoint2f(target), fullFrame, frameSize));
+
+        assertEquals(3, tracker.getFrames());
+        assertEquals(1.0 / 3, tracker.getHitRate(), 1e-9);
+        assertEquals((2 * 1280 * 800 + 2 * 256 * 256) / 3.0, tracker.getPixelsPerFrame(), 1e-9);
+        assertTrue(tracker.getPixelsPerFrame() < 1280 * 800);
+    }
+}
@@ -1,10 +1,17 @@
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import org.junit.jupiter.api.Test;
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
 
 import vision.VisionUtil;
 
@@ -77,6 +84,103 @@ public class TestVisionUtil {
         assertEquals(0, euler.get(2, 0)[0], DELTA); // no rotation around the camera axis
     }
 
+    /**
+     * The direct rasterizer should draw the same target as the warp, up to
+     * antialiasing differences along the edges.
+     */
+    @Test
+    public void testRasterizeMatchesWarp() {
+        MatOfPoint3f targetGeometryMeters = VisionUtil.makeTargetGeometry3f(0.5, 0.5);
+        Size size = new Size(1280, 800);
+        Mat kMat = VisionUtil.makeIntrinsicMatrix(512.0, size);
+        MatOfDouble dMat = new MatOfDouble(Mat.zeros(4, 1, CvType.CV_64F));
+        for (double pan : new double[] { -0.5, 0, 0.3 }) {
+            for (double zPos : new double[] { -1.5, -4, -9 }) {
+                Mat worldToCamera = VisionUtil.makeWorldToCameraHomogeneous(pan, 0.5, 0, zPos);
+                MatOfPoint2f pts = VisionUtil.imagePoints(kMat, dMat,
+                        targetGeometryMeters, worldToCamera);
+                Mat warped = VisionUtil.renderImage(230, size, targetGeometryMeters, pts);
+                Mat rasterized = VisionUtil.rasterizeImage(230, size, pts, new Mat());
+
+                double warpedSum = Core.sumElems(warped).val[0];
+                double rasterizedSum = Core.sumElems(rasterized).val[0];
+                debug("warped", warpedSum);
+                debug("rasterized", rasterizedSum);
+                assertEquals(1.0, rasterizedSum / warpedSum, 0.03);
+
+                // only edge pixels differ much
+                Mat diff = new Mat();
+                Core.absdiff(warped, rasterized, diff);
+                double meanDiff = Core.mean(diff).val[0];
+                Mat bigDiff = new Mat();
+                Core.compare(diff, new Scalar(2), bigDiff, Core.CMP_GT);
+                int differing = Core.countNonZero(bigDiff);
+                double perimeter = Imgproc.arcLength(pts, true);
+                assertTrue(differing < 3 * perimeter, "differing " + differing + " perimeter " + perimeter);
+                assertTrue(meanDiff < 1, "mean diff " + meanDiff);
+            }
+        }
+    }
+
+    /**
+     * One remap with the combined tables should match undistort followed by
+     * removeTilt, up to interpolation (the old path interpolates twice), away
+     * from the black borders.
+     */
+    @Test
+    public void testRemapMatchesUndistortUntilt() {
+        Size size = new Size(640, 400);
+        double f = 500;
+        double tilt = 0.2;
+        Mat kMat = VisionUtil.makeIntrinsicMatrix(f, size);
+        MatOfDouble dMat = new MatOfDouble(-0.1, 0.02, 0.001, -0.001);
+
+        // smooth, but with plenty of contrast everywhere
+        int width = (int) size.width;
+        int height = (int) size.height;
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                pixels[y * width + x] = (byte) Math.round(128 + 100 * Math.sin(x / 15.0) * Math.cos(y / 20.0));
+            }
+        }
+        Mat image = new Mat(size, CvType.CV_8UC1);
+        image.put(0, 0, pixels);
+        Mat white = new Mat(size, CvType.CV_8UC1, new Scalar(255));
+
+        Mat map1 = new Mat();
+        Mat map2 = new Mat();
+        VisionUtil.makeUndistortUntiltMaps(kMat, dMat, tilt, f, size, map1, map2);
+        Mat remapped = new Mat();
+        Imgproc.remap(image, remapped, map1, map2, Imgproc.INTER_LINEAR, Core.BORDER_CONSTANT);
+        Mat remappedValid = new Mat();
+        Imgproc.remap(white, remappedValid, map1, map2, Imgproc.INTER_LINEAR, Core.BORDER_CONSTANT);
+
+        Mat undistorted = new Mat();
+        Calib3d.undistort(image, undistorted, kMat, dMat);
+        Mat expected = VisionUtil.removeTilt(undistorted, tilt, f, kMat, size);
+        Mat undistortedValid = new Mat();
+        Calib3d.undistort(white, undistortedValid, kMat, dMat);
+        Mat expectedValid = VisionUtil.removeTilt(undistortedValid, tilt, f, kMat, size);
+
+        // compare only where both paths saw the whole neighborhood
+        Mat mask = new Mat();
+        Core.bitwise_and(remappedValid, expectedValid, mask);
+        Imgproc.threshold(mask, mask, 254, 255, Imgproc.THRESH_BINARY);
+        Imgproc.erode(mask, mask, Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(5, 5)));
+        int compared = Core.countNonZero(mask);
+        assertTrue(compared > width * height / 2, "compared " + compared);
+
+        Mat diff = new Mat();
+        Core.absdiff(remapped, expected, diff);
+        double maxDiff = Core.minMaxLoc(diff, mask).maxVal;
+        double meanDiff = Core.mean(diff, mask).val[0];
+        debug("max diff", maxDiff);
+        debug("mean diff", meanDiff);
+        assertTrue(maxDiff <= 4, "max diff " + maxDiff);
+        assertTrue(meanDiff < 1, "mean diff " + meanDiff);
+    }
+
     public static void debugmsg(String msg) {
         if (!DEBUG)
             return;